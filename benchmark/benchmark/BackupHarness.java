@@ -0,0 +1,579 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package benchmark;
+
+import backup.PropertiesSystem;
+import backup.PropertyConstants;
+import io.FileUtils;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.scheduler.BukkitScheduler;
+import threading.PrepareBackupTask;
+
+/**
+ * Runs complete backups of a generated server without Minecraft. The server
+ * is a stub, whose main thread ticks 20 times per second and runs the
+ * scheduled tasks like Bukkit does, so the whole pipeline from the
+ * PrepareBackupTask to the removal of the old backups runs like on a real
+ * server. Between two backups the worlds are mutated like by players.
+ * <p>
+ * Every run measures the wall time of the backup, the bytes of the new
+ * backups, the peak heap and how long the worlds weren't saved. The first
+ * run and the median of the other runs are compared with a stored baseline,
+ * the harness fails when a value got worse by more than the tolerance.
+ * <p>
+ * The harness uses the working directory as server folder, so run it in an
+ * empty directory:
+ * <pre>
+ * java -cp build/classes:build/test/classes:BUKKIT_JAR benchmark.BackupHarness [option=value ...] [Key=Value ...]
+ * </pre>
+ * The options are worlds, regions, fill, players, pluginDepth, runs,
+ * mutation, baseline (the name of the baseline file without .baseline),
+ * tolerance and save=true, which stores the results as new baseline. The other arguments are keys of the config.ini, for example
+ * <code>ZIPBackup=false</code>.
+ * @author Kilian Gaertner
+ * @see WorldGenerator
+ */
+public class BackupHarness implements PropertyConstants {
+
+    /** Marks a directory, which the harness may clean */
+    private static final String MARKER = ".backup-harness";
+    /** The baselines are kept, when the folder is cleaned */
+    private static final String BASELINE_EXTENSION = ".baseline";
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final String[] METRICS = { "wall", "bytes", "heap", "saveOff" };
+
+    private final File serverDir;
+    private final List<Task> tasks = new ArrayList<Task>();
+    private final AtomicInteger asyncTasks = new AtomicInteger();
+    private final AtomicInteger taskIDs = new AtomicInteger();
+    private final Server server;
+    private final Plugin plugin;
+    private volatile long saveOffTime = 0;
+    private volatile long saveOnTime = 0;
+    private long tick = 0;
+
+    private BackupHarness (File serverDir, final List<String> worlds) throws Exception {
+        this.serverDir = serverDir;
+        final PluginDescriptionFile description = new PluginDescriptionFile(BackupHarness.class.getResourceAsStream("/plugin.yml"));
+        final BukkitScheduler scheduler = stub(BukkitScheduler.class, new InvocationHandler() {
+
+            @Override
+            public Object invoke (Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                Runnable task = args != null && args.length > 1 && args[1] instanceof Runnable ? (Runnable) args[1] : null;
+                long delay = args != null && args.length > 2 ? (Long) args[2] : 0;
+                if (name.equals("scheduleSyncDelayedTask"))
+                    return schedule(task, delay, -1);
+                if (name.equals("scheduleSyncRepeatingTask"))
+                    return schedule(task, delay, (Long) args[3]);
+                if (name.equals("scheduleAsyncDelayedTask"))
+                    return startAsync(task, delay);
+                if (name.equals("cancelTask"))
+                    cancel((Integer) args[0]);
+                return getDefault(method.getReturnType());
+            }
+        });
+        final PluginManager pluginManager = stub(PluginManager.class, new InvocationHandler() {
+
+            @Override
+            public Object invoke (Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getPlugin"))
+                    return plugin;
+                return getDefault(method.getReturnType());
+            }
+        });
+        final List<World> worldStubs = new ArrayList<World>();
+        for (final String world : worlds)
+            worldStubs.add(stub(World.class, new InvocationHandler() {
+
+                @Override
+                public Object invoke (Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("getName"))
+                        return world;
+                    return getDefault(method.getReturnType());
+                }
+            }));
+        server = stub(Server.class, new InvocationHandler() {
+
+            @Override
+            public Object invoke (Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getScheduler"))
+                    return scheduler;
+                if (name.equals("getPluginManager"))
+                    return pluginManager;
+                if (name.equals("getWorlds"))
+                    return worldStubs;
+                if (name.equals("getOnlinePlayers"))
+                    return new Player[0];
+                if (name.equals("dispatchCommand")) {
+                    if ("save-off".equals(args[1]))
+                        saveOffTime = System.nanoTime();
+                    else if ("save-on".equals(args[1]))
+                        saveOnTime = System.nanoTime();
+                    return true;
+                }
+                return getDefault(method.getReturnType());
+            }
+        });
+        plugin = stub(Plugin.class, new InvocationHandler() {
+
+            @Override
+            public Object invoke (Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getDescription"))
+                    return description;
+                if (name.equals("getServer"))
+                    return server;
+                if (name.equals("getDataFolder"))
+                    return new File(BackupHarness.this.serverDir, "plugins/Backup");
+                if (name.equals("isEnabled"))
+                    return true;
+                return getDefault(method.getReturnType());
+            }
+        });
+    }
+
+    public static void main (String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        Map<String, String> config = new LinkedHashMap<String, String>();
+        // the harness needs a backup of every run and a measured save-off window
+        config.put("BackupOnlyWithPlayer", "false");
+        config.put("EnableAutoSave", "true");
+        for (String arg : args) {
+            String[] split = arg.split("=", 2);
+            if (split.length != 2) {
+                System.out.println("Unknown argument " + arg);
+                System.exit(2);
+            }
+            if (Character.isUpperCase(split[0].charAt(0)))
+                config.put(split[0], split[1]);
+            else
+                options.put(split[0], split[1]);
+        }
+        int worlds = getInt(options, "worlds", 3);
+        int regions = getInt(options, "regions", 8);
+        double fill = getDouble(options, "fill", 0.6);
+        int players = getInt(options, "players", 1000);
+        int pluginDepth = getInt(options, "pluginDepth", 8);
+        int runs = Math.max(getInt(options, "runs", 5), 1);
+        double mutation = getDouble(options, "mutation", 0.05);
+        File baselineFile = new File(get(options, "baseline", "harness").concat(BASELINE_EXTENSION));
+        double tolerance = getDouble(options, "tolerance", 10);
+
+        File serverDir = new File(System.getProperty("user.dir"));
+        if (!prepare(serverDir))
+            System.exit(2);
+        WorldGenerator generator = new WorldGenerator(worlds, regions, fill, players, pluginDepth);
+        long start = System.currentTimeMillis();
+        generator.generate(serverDir);
+        System.out.println(String.format("Generated %d worlds with %d files and %d MB in %d ms", worlds, generator.getFiles(), generator.getBytes() / FileUtils.ONE_MB, System.currentTimeMillis() - start));
+        writeConfig(new File(serverDir, "plugins/Backup/config.ini"), config);
+
+        List<String> worldNames = new ArrayList<String>();
+        for (int i = 0; i < worlds; ++i)
+            worldNames.add(WorldGenerator.getWorldName(i));
+        BackupHarness harness = new BackupHarness(serverDir, worldNames);
+        PropertiesSystem pSystem = new PropertiesSystem(harness.plugin);
+        File backupDir = new File(pSystem.getStringProperty(STRING_BACKUP_FOLDER));
+
+        List<long[]> results = new ArrayList<long[]>();
+        for (int run = 0; run < runs; ++run) {
+            if (run > 0)
+                generator.mutate(serverDir, mutation, run);
+            // the backups are named by the second they were started
+            Thread.sleep(1000 - System.currentTimeMillis() % 1000);
+            results.add(harness.measure(pSystem, backupDir));
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-6s %12s %12s %12s %12s", "Run", "wall ms", "bytes", "heap MB", "save-off ms"));
+        for (int run = 0; run < results.size(); ++run) {
+            long[] result = results.get(run);
+            System.out.println(String.format("%-6d %12d %12d %12d %12d", run + 1, result[0], result[1], result[2] / FileUtils.ONE_MB, result[3]));
+        }
+
+        Properties current = new Properties();
+        // a baseline is only comparable with results of the same setup
+        current.setProperty("setup", Arrays.asList(worlds, regions, fill, players, pluginDepth, runs, mutation) + " " + config);
+        store(current, "first", results.get(0));
+        if (results.size() > 1)
+            store(current, "next", median(results.subList(1, results.size())));
+        if (!baselineFile.exists() || Boolean.parseBoolean(get(options, "save", "false"))) {
+            writeBaseline(baselineFile, current);
+            System.out.println("Stored the results as baseline in " + baselineFile);
+            System.exit(0);
+        }
+        Properties baseline = readBaseline(baselineFile);
+        if (!current.getProperty("setup").equals(baseline.getProperty("setup"))) {
+            System.out.println("The baseline was measured with another setup: " + baseline.getProperty("setup"));
+            System.exit(2);
+        }
+        System.exit(compare(baseline, current, tolerance) ? 0 : 1);
+    }
+
+    /**
+     * Runs one backup and waits until every task it started is finished
+     * @return The wall time in ms, the bytes of the new backups, the peak
+     * heap and the save-off window in ms
+     */
+    private long[] measure (PropertiesSystem pSystem, File backupDir) throws InterruptedException {
+        Set<String> oldBackups = new HashSet<String>(list(backupDir));
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+        saveOffTime = 0;
+        saveOnTime = 0;
+
+        long start = System.nanoTime();
+        new PrepareBackupTask(server, pSystem).run();
+        runUntilIdle();
+        long wall = System.nanoTime() - start;
+
+        long heap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                heap += pool.getPeakUsage().getUsed();
+        long bytes = 0;
+        for (String backup : list(backupDir))
+            if (!oldBackups.contains(backup))
+                bytes += size(new File(backupDir, backup));
+        long saveOff = saveOnTime > saveOffTime ? saveOnTime - saveOffTime : 0;
+        return new long[] { TimeUnit.NANOSECONDS.toMillis(wall), bytes, heap, TimeUnit.NANOSECONDS.toMillis(saveOff) };
+    }
+
+    /**
+     * Ticks the main thread until no task is waiting for it and no async
+     * task is running. Repeating tasks don't keep it running.
+     */
+    private void runUntilIdle () throws InterruptedException {
+        long nextTick = System.nanoTime();
+        while (true) {
+            List<Runnable> due = new ArrayList<Runnable>();
+            boolean waiting = false;
+            synchronized (tasks) {
+                for (Iterator<Task> iter = tasks.iterator(); iter.hasNext();) {
+                    Task task = iter.next();
+                    if (task.period < 0)
+                        waiting = true;
+                    if (task.due > tick)
+                        continue;
+                    due.add(task.runnable);
+                    if (task.period < 0)
+                        iter.remove();
+                    else
+                        task.due = tick + Math.max(task.period, 1);
+                }
+            }
+            if (!waiting && asyncTasks.get() == 0)
+                return;
+            for (Runnable runnable : due)
+                runnable.run();
+            ++tick;
+            nextTick += TICK_NANOS;
+            long sleep = nextTick - System.nanoTime();
+            if (sleep > 0)
+                TimeUnit.NANOSECONDS.sleep(sleep);
+        }
+    }
+
+    private int schedule (Runnable runnable, long delay, long period) {
+        Task task = new Task(taskIDs.incrementAndGet(), runnable, period);
+        synchronized (tasks) {
+            task.due = tick + delay;
+            tasks.add(task);
+        }
+        return task.id;
+    }
+
+    private int startAsync (final Runnable runnable, final long delay) {
+        asyncTasks.incrementAndGet();
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run () {
+                try {
+                    Thread.sleep(delay * 50);
+                    runnable.run();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                finally {
+                    asyncTasks.decrementAndGet();
+                }
+            }
+        }, "Harness-Async");
+        thread.start();
+        return taskIDs.incrementAndGet();
+    }
+
+    private void cancel (int id) {
+        synchronized (tasks) {
+            for (Iterator<Task> iter = tasks.iterator(); iter.hasNext();)
+                if (iter.next().id == id)
+                    iter.remove();
+        }
+    }
+
+    /**
+     * Checks, that the server folder is empty or was used by the harness
+     * before, and removes everything of the last use except the baselines
+     * @return false, when the folder belongs to somebody else
+     */
+    private static boolean prepare (File serverDir) throws IOException {
+        File marker = new File(serverDir, MARKER);
+        String[] content = serverDir.list();
+        if (content == null)
+            throw new IOException("Can't list " + serverDir);
+        if (content.length > 0 && !marker.exists()) {
+            System.out.println("The harness uses the working directory as server folder, run it in an empty directory");
+            return false;
+        }
+        for (File file : serverDir.listFiles()) {
+            if (file.equals(marker) || file.getName().endsWith(BASELINE_EXTENSION))
+                continue;
+            if (file.isDirectory())
+                FileUtils.deleteDirectory(file);
+            else if (!file.delete())
+                throw new IOException("Can't delete " + file);
+        }
+        marker.createNewFile();
+        return true;
+    }
+
+    /**
+     * Writes the default config of the plugin with the given values
+     */
+    private static void writeConfig (File configFile, Map<String, String> values) throws IOException {
+        configFile.getParentFile().mkdirs();
+        Map<String, String> missing = new LinkedHashMap<String, String>(values);
+        BufferedReader bReader = new BufferedReader(new InputStreamReader(BackupHarness.class.getResourceAsStream("/res/config.ini"), "UTF-8"));
+        BufferedWriter bWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(configFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = bReader.readLine()) != null) {
+                String key = line.split("=", 2)[0];
+                if (!line.startsWith("//") && missing.containsKey(key))
+                    line = key + "=" + missing.remove(key);
+                bWriter.write(line);
+                bWriter.newLine();
+            }
+            for (Map.Entry<String, String> entry : missing.entrySet()) {
+                System.out.println("The config has no key " + entry.getKey() + ", it is added anyway");
+                bWriter.write(entry.getKey() + "=" + entry.getValue());
+                bWriter.newLine();
+            }
+        }
+        finally {
+            bReader.close();
+            bWriter.close();
+        }
+    }
+
+    /**
+     * Compares the results with the baseline and prints the changes
+     * @return false, when a value got worse by more than the tolerance
+     */
+    private static boolean compare (Properties baseline, Properties current, double tolerance) {
+        boolean passed = true;
+        System.out.println();
+        System.out.println(String.format("%-14s %14s %14s %9s", "Value", "baseline", "current", "change"));
+        for (String prefix : new String[] { "first", "next" })
+            for (String metric : METRICS) {
+                String key = prefix + "." + metric;
+                if (baseline.getProperty(key) == null || current.getProperty(key) == null)
+                    continue;
+                long before = Long.parseLong(baseline.getProperty(key));
+                long after = Long.parseLong(current.getProperty(key));
+                double change = before == 0 ? 0 : (after - before) * 100.0 / before;
+                boolean regression = change > tolerance;
+                passed &= !regression;
+                System.out.println(String.format("%-14s %14d %14d %8.1f%%%s", key, before, after, change, regression ? " REGRESSION" : ""));
+            }
+        return passed;
+    }
+
+    private static void store (Properties properties, String prefix, long[] result) {
+        for (int i = 0; i < METRICS.length; ++i)
+            properties.setProperty(prefix + "." + METRICS[i], Long.toString(result[i]));
+    }
+
+    /**
+     * @return The median of every value of the runs
+     */
+    private static long[] median (List<long[]> results) {
+        long[] median = new long[METRICS.length];
+        for (int i = 0; i < METRICS.length; ++i) {
+            List<Long> values = new ArrayList<Long>();
+            for (long[] result : results)
+                values.add(result[i]);
+            Collections.sort(values);
+            median[i] = values.get(values.size() / 2);
+        }
+        return median;
+    }
+
+    private static void writeBaseline (File file, Properties baseline) throws IOException {
+        FileOutputStream fOut = new FileOutputStream(file);
+        try {
+            baseline.store(fOut, "Baseline of the BackupHarness");
+        }
+        finally {
+            fOut.close();
+        }
+    }
+
+    private static Properties readBaseline (File file) throws IOException {
+        Properties baseline = new Properties();
+        FileInputStream fIn = new FileInputStream(file);
+        try {
+            baseline.load(fIn);
+        }
+        finally {
+            fIn.close();
+        }
+        return baseline;
+    }
+
+    private static List<String> list (File directory) {
+        String[] names = directory.list();
+        return names == null ? Collections.<String>emptyList() : Arrays.asList(names);
+    }
+
+    /**
+     * @return The bytes of a file or of all files in a directory
+     */
+    private static long size (File file) {
+        if (!file.isDirectory())
+            return file.length();
+        long size = 0;
+        File[] files = file.listFiles();
+        if (files != null)
+            for (File child : files)
+                size += size(child);
+        return size;
+    }
+
+    private static String get (Map<String, String> options, String key, String defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    private static int getInt (Map<String, String> options, String key, int defaultValue) {
+        return Integer.parseInt(get(options, key, Integer.toString(defaultValue)));
+    }
+
+    private static double getDouble (Map<String, String> options, String key, double defaultValue) {
+        return Double.parseDouble(get(options, key, Double.toString(defaultValue)));
+    }
+
+    /**
+     * @return A stub of the interface, whose methods are handled by the
+     * handler
+     */
+    private static <T> T stub (final Class<T> type, final InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(BackupHarness.class.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+
+            @Override
+            public Object invoke (Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("equals") && args != null && args.length == 1)
+                    return proxy == args[0];
+                if (method.getName().equals("hashCode") && args == null)
+                    return System.identityHashCode(proxy);
+                if (method.getName().equals("toString") && args == null)
+                    return "Stub " + type.getSimpleName();
+                return handler.invoke(proxy, method, args);
+            }
+        }));
+    }
+
+    /**
+     * @return The value a stub returns for a method, which isn't stubbed
+     */
+    private static Object getDefault (Class<?> type) {
+        if (type == boolean.class)
+            return false;
+        if (type == int.class)
+            return 0;
+        if (type == long.class)
+            return 0L;
+        if (type == double.class)
+            return 0.0;
+        if (type == float.class)
+            return 0.0f;
+        if (type == short.class)
+            return (short) 0;
+        if (type == byte.class)
+            return (byte) 0;
+        if (type == char.class)
+            return '\0';
+        return null;
+    }
+
+    /**
+     * A task for the main thread
+     */
+    private static class Task {
+
+        private final int id;
+        private final Runnable runnable;
+        /** The ticks between two runs, -1 when it runs once */
+        private final long period;
+        /** The tick of the next run */
+        private long due;
+
+        private Task (int id, Runnable runnable, long period) {
+            this.id = id;
+            this.runnable = runnable;
+            this.period = period;
+        }
+    }
+}
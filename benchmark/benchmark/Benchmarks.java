@@ -0,0 +1,114 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package benchmark;
+
+import io.FileUtils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the allocation profiler and prints, besides the
+ * report of JMH, the throughput of every file operation in MB and files per
+ * second and its allocation rate. Run it as a file of the Benchmarks folder
+ * in NetBeans or with
+ * <pre>
+ * java -cp build/classes:build/test/classes:JMH_JARS benchmark.Benchmarks [REGEX]
+ * </pre>
+ * The optional regular expression selects the benchmarks, for example
+ * <code>FileUtils.*zip</code>. The results of two runs can be compared
+ * before a change is shipped.
+ * @author Kilian Gaertner
+ */
+public class Benchmarks {
+
+    private static final double ONE_MB = 1024 * 1024;
+
+    public static void main (String[] args) throws RunnerException, IOException {
+        Options options = new OptionsBuilder()
+                .include(args.length > 0 ? args[0] : Benchmarks.class.getPackage().getName() + "\\..*Benchmark")
+                .addProfiler(GCProfiler.class)
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+
+        System.out.println();
+        System.out.println(String.format("%-45s %12s %12s %12s %14s", "Benchmark", "ms/op", "MB/s", "files/s", "alloc MB/s"));
+        for (RunResult result : results) {
+            BenchmarkParams params = result.getParams();
+            Result primary = result.getPrimaryResult();
+            double millis = primary.getScore() * toMillis(params.getTimeUnit());
+            String name = params.getBenchmark().substring(params.getBenchmark().lastIndexOf('.', params.getBenchmark().lastIndexOf('.') - 1) + 1);
+            String throughput = String.format("%12s %12s", "-", "-");
+            // the file operations work on the generated server folder
+            if (params.getParam("regions") != null) {
+                WorldGenerator generator = measure(params);
+                double seconds = millis / 1000;
+                throughput = String.format("%12.1f %12.0f", generator.getBytes() / ONE_MB / seconds, generator.getFiles() / seconds);
+            }
+            else if (params.getParam("backups") != null)
+                name += " (" + params.getParam("backups") + " backups)";
+            System.out.println(String.format("%-45s %12.3f %s %14.1f", name, millis, throughput, getAllocationRate(result)));
+        }
+    }
+
+    /**
+     * Generates the server folder of a benchmark once more, because it was
+     * generated by the forked JVM of the benchmark
+     * @return The generator, which knows the size of the folder
+     */
+    private static WorldGenerator measure (BenchmarkParams params) throws IOException {
+        WorldGenerator generator = new WorldGenerator(Integer.parseInt(params.getParam("worlds")), Integer.parseInt(params.getParam("regions")), Double.parseDouble(params.getParam("fill")), Integer.parseInt(params.getParam("players")), Integer.parseInt(params.getParam("pluginDepth")));
+        File serverDir = Files.createTempDirectory("backup-benchmark").toFile();
+        try {
+            generator.generate(serverDir);
+        }
+        finally {
+            FileUtils.deleteDirectory(serverDir);
+        }
+        return generator;
+    }
+
+    /**
+     * @return How many milliseconds one unit of the score has
+     */
+    private static double toMillis (TimeUnit unit) {
+        return unit.toNanos(1) / 1000000.0;
+    }
+
+    /**
+     * @return The allocation rate in MB per second, NaN when the profiler
+     * hasn't measured it
+     */
+    private static double getAllocationRate (RunResult result) {
+        // older versions of JMH start the names of the profiler results with a dot
+        for (Result secondary : result.getSecondaryResults().values())
+            if (secondary.getLabel().endsWith("gc.alloc.rate"))
+                return secondary.getScore();
+        return Double.NaN;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package benchmark;
+
+import io.CodecRules;
+import io.FileUtils;
+import io.IOContext;
+import io.SpeedGovernor;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the file operations of a backup on a generated server folder.
+ * Every invocation copies, zips or deletes the whole folder once, so the
+ * time of an invocation is the time of a backup without the server. The
+ * folder is generated once per fork in the temporary directory.
+ * @author Kilian Gaertner
+ * @see WorldGenerator
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileUtilsBenchmark {
+
+    /** The rules of the default config */
+    private static final String COMPRESSION_RULES = "region/=store;players/=deflate:9;playerdata/=deflate:9;plugins/=deflate:9";
+
+    @Param("1")
+    public int worlds;
+    @Param("16")
+    public int regions;
+    @Param("1.0")
+    public double fill;
+    @Param("4000")
+    public int players;
+    @Param("12")
+    public int pluginDepth;
+
+    private File serverDir;
+    private IOContext context;
+
+    @Setup(Level.Trial)
+    public void generate () throws IOException {
+        serverDir = Files.createTempDirectory("backup-benchmark").toFile();
+        new WorldGenerator(worlds, regions, fill, players, pluginDepth).generate(new File(serverDir, "server"));
+    }
+
+    @TearDown(Level.Trial)
+    public void remove () throws IOException {
+        FileUtils.deleteDirectory(serverDir);
+    }
+
+    @Setup(Level.Iteration)
+    public void createContext () {
+        context = new IOContext(0, 0, 0, 64 * FileUtils.ONE_MB, 0, 0, new SpeedGovernor(), new CodecRules("deflate", COMPRESSION_RULES));
+    }
+
+    @TearDown(Level.Iteration)
+    public void shutdownContext () {
+        context.shutdown();
+    }
+
+    @Benchmark
+    public void copyDirectory (Target target) throws IOException {
+        File server = new File(serverDir, "server");
+        FileUtils.copyDirectory(server.getPath(), target.directory.getPath(), "", null, context);
+    }
+
+    @Benchmark
+    public void zipDir (Target target) throws IOException {
+        File server = new File(serverDir, "server");
+        FileUtils.zipDir(server.getPath(), new File(target.directory, "backup.zip").getPath(), context);
+    }
+
+    @Benchmark
+    public void deleteDirectory (Copy copy) throws IOException {
+        FileUtils.deleteDirectory(copy.directory, context);
+    }
+
+    /**
+     * An empty directory for the output of every invocation
+     */
+    @State(Scope.Thread)
+    public static class Target {
+
+        private File directory;
+
+        @Setup(Level.Iteration)
+        public void create (FileUtilsBenchmark benchmark) {
+            directory = new File(benchmark.serverDir, "target");
+            directory.mkdirs();
+        }
+
+        @TearDown(Level.Iteration)
+        public void remove () throws IOException {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * A copy of the server folder for every invocation, which is deleted by
+     * the invocation
+     */
+    @State(Scope.Thread)
+    public static class Copy {
+
+        private File directory;
+
+        @Setup(Level.Iteration)
+        public void create (FileUtilsBenchmark benchmark) throws IOException {
+            directory = new File(benchmark.serverDir, "copy");
+            FileUtils.copyDirectory(new File(benchmark.serverDir, "server").getPath(), directory.getPath());
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package benchmark;
+
+import io.BackupCatalog;
+import io.BackupManifest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the selection of the old backups, which the prune task removes
+ * after every backup. The catalog has a backup every 15 minutes of one
+ * world, every fourth is a full backup and the others are incremental ones,
+ * which are based on the previous backup. Every hundredth backup failed.
+ * @author Kilian Gaertner
+ * @see BackupCatalog#selectExpired(String, int, int, int, int)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RetentionBenchmark {
+
+    private static final long QUARTER_HOUR = 15L * 60 * 1000;
+
+    @Param({ "100", "1000", "10000" })
+    public int backups;
+
+    private BackupCatalog catalog;
+
+    @Setup(Level.Trial)
+    public void createCatalog () {
+        catalog = new BackupCatalog();
+        long created = System.currentTimeMillis() - backups * QUARTER_HOUR;
+        List<String> worlds = Collections.singletonList("world");
+        String previous = null;
+        for (int i = 0; i < backups; ++i, created += QUARTER_HOUR) {
+            String name = "backup-" + i;
+            boolean full = previous == null || i % 4 == 0;
+            String kind = i % 100 == 99 ? BackupCatalog.KIND_FAILED : (full ? BackupManifest.KIND_FULL : BackupManifest.KIND_INCREMENTAL);
+            List<String> sources = full ? Collections.<String>emptyList() : Arrays.asList(previous);
+            catalog.add(new BackupCatalog.Entry(name.concat(".zip"), "world", created, kind, 64L << 20, 4000, worlds, 0, sources));
+            if (!kind.equals(BackupCatalog.KIND_FAILED))
+                previous = name;
+        }
+    }
+
+    @Benchmark
+    public List<BackupCatalog.Entry> selectExpired () {
+        return catalog.selectExpired("world", 24, 24, 7, 4);
+    }
+}
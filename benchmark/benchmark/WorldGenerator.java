@@ -0,0 +1,442 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Generates a server folder, which looks like a real one to the file
+ * operations of the backup: worlds with valid region files and thousands of
+ * small player files and a plugin folder with deep directories. The content
+ * is generated from a fixed seed, so every run reads the same bytes.
+ * <p>
+ * A region file has a chunk in the given share of its 1024 slots. Every chunk
+ * is a zlib compressed NBT compound with terrain, so it compresses like a
+ * real chunk. The player files are small gzipped files and the
+ * configurations of the plugins are text.
+ * <p>
+ * A generated folder can be mutated afterwards like a server changes it
+ * between two backups: some chunks are changed and saved again and some
+ * players were online.
+ * @author Kilian Gaertner
+ */
+public class WorldGenerator {
+
+    public static final int PLAYER_SIZE = 2 * 1024;
+    public static final int PLUGIN_FILE_SIZE = 512;
+    /** How many plugins the plugin folder has */
+    public static final int PLUGINS = 20;
+    /** How many files every directory of a plugin has */
+    public static final int FILES_PER_DIRECTORY = 2;
+
+    private static final int CHUNKS = 1024;
+    private static final int SECTOR = 4096;
+    private static final int HEADER = 2 * SECTOR;
+    private static final int BLOCKS = 16 * 16 * 128;
+    /** How many blocks a player changes in a changed chunk */
+    private static final int CHANGED_BLOCKS = 64;
+    private static final long SEED = 20110501L;
+
+    private final int worlds;
+    private final int regions;
+    private final double fill;
+    private final int players;
+    private final int pluginDepth;
+    private final Deflater deflater = new Deflater();
+    private final Inflater inflater = new Inflater();
+    private long bytes = 0;
+    private long files = 0;
+    /** The position of the blocks in the NBT of a chunk */
+    private int blocksOffset = -1;
+
+    /**
+     * @param regions How many region files the world has
+     * @param players How many player files the world has
+     * @param pluginDepth How deep the directories of every plugin are
+     */
+    public WorldGenerator (int regions, int players, int pluginDepth) {
+        this(1, regions, 1.0, players, pluginDepth);
+    }
+
+    /**
+     * @param worlds How many worlds the server has, the first one has the
+     * players
+     * @param regions How many region files every world has
+     * @param fill The share of the chunks, which a region file contains,
+     * between 0 and 1
+     * @param players How many player files the first world has
+     * @param pluginDepth How deep the directories of every plugin are
+     */
+    public WorldGenerator (int worlds, int regions, double fill, int players, int pluginDepth) {
+        this.worlds = worlds;
+        this.regions = regions;
+        this.fill = Math.max(0, Math.min(fill, 1));
+        this.players = players;
+        this.pluginDepth = pluginDepth;
+    }
+
+    /**
+     * @param index The number of the world
+     * @return The name of the world, like the server names it
+     */
+    public static String getWorldName (int index) {
+        switch (index) {
+            case 0:
+                return "world";
+            case 1:
+                return "world_nether";
+            case 2:
+                return "world_the_end";
+            default:
+                return "world" + (index + 1);
+        }
+    }
+
+    /**
+     * Creates the worlds and the folder <code>plugins</code> in the server
+     * folder
+     * @param serverDir The server folder, it is created when it is missing
+     * @throws IOException
+     */
+    public void generate (File serverDir) throws IOException {
+        bytes = 0;
+        files = 0;
+        Random random = new Random(SEED);
+        int side = (int) Math.ceil(Math.sqrt(regions));
+        for (int world = 0; world < worlds; ++world) {
+            File worldDir = new File(serverDir, getWorldName(world));
+            File regionDir = new File(worldDir, "region");
+            regionDir.mkdirs();
+            for (int i = 0; i < regions; ++i) {
+                int regionX = i % side - side / 2;
+                int regionZ = i / side - side / 2;
+                write(new File(regionDir, "r." + regionX + "." + regionZ + ".mcr"), createRegion(random, regionX, regionZ));
+            }
+            write(new File(worldDir, "level.dat"), createPlayer(random));
+        }
+
+        File playerDir = new File(serverDir, getWorldName(0) + "/players");
+        playerDir.mkdirs();
+        for (int i = 0; i < players; ++i)
+            write(new File(playerDir, "Player" + i + ".dat"), createPlayer(random));
+
+        byte[] config = createText(random, PLUGIN_FILE_SIZE);
+        for (int i = 0; i < PLUGINS; ++i) {
+            File directory = new File(serverDir, "plugins/Plugin" + i);
+            for (int depth = 0; depth < pluginDepth; ++depth) {
+                directory.mkdirs();
+                for (int j = 0; j < FILES_PER_DIRECTORY; ++j)
+                    write(new File(directory, "config" + j + ".yml"), config);
+                directory = new File(directory, "data" + depth);
+            }
+        }
+    }
+
+    /**
+     * Changes the generated worlds like a server between two backups. Every
+     * chunk is changed with the given probability, the changed chunks get a
+     * new timestamp. The same share of the players was online and every
+     * level.dat is saved again.
+     * @param serverDir The server folder
+     * @param rate The share of the chunks and players, which are changed
+     * @param run The number of the mutation, every number changes other
+     * chunks
+     * @throws IOException
+     */
+    public void mutate (File serverDir, double rate, int run) throws IOException {
+        Random random = new Random(SEED + run);
+        if (blocksOffset < 0)
+            createChunk(random, 0, 0);
+        int timestamp = (int) (System.currentTimeMillis() / 1000);
+        for (int world = 0; world < worlds; ++world) {
+            File worldDir = new File(serverDir, getWorldName(world));
+            File[] regionFiles = new File(worldDir, "region").listFiles();
+            if (regionFiles == null)
+                continue;
+            // the same chunks are changed on every system
+            Arrays.sort(regionFiles);
+            for (File regionFile : regionFiles)
+                mutateRegion(regionFile, random, rate, timestamp);
+            writeFile(new File(worldDir, "level.dat"), createPlayer(random));
+        }
+        for (int i = 0; i < players; ++i)
+            if (random.nextDouble() < rate)
+                writeFile(new File(serverDir, getWorldName(0) + "/players/Player" + i + ".dat"), createPlayer(random));
+    }
+
+    /**
+     * @return How many bytes the last generated folder has
+     */
+    public long getBytes () {
+        return bytes;
+    }
+
+    /**
+     * @return How many files the last generated folder has
+     */
+    public long getFiles () {
+        return files;
+    }
+
+    private byte[] createRegion (Random random, int regionX, int regionZ) throws IOException {
+        byte[][] payloads = new byte[CHUNKS][];
+        int[] timestamps = new int[CHUNKS];
+        int timestamp = (int) (System.currentTimeMillis() / 1000);
+        for (int i = 0; i < CHUNKS; ++i)
+            if (random.nextDouble() < fill) {
+                payloads[i] = compress(createChunk(random, regionX * 32 + i % 32, regionZ * 32 + i / 32));
+                timestamps[i] = timestamp - random.nextInt(86400);
+            }
+        return writeRegion(payloads, timestamps);
+    }
+
+    /**
+     * @return The NBT of a chunk with a simple terrain
+     */
+    private byte[] createChunk (Random random, int chunkX, int chunkZ) throws IOException {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(BLOCKS * 2 + 1024);
+        DataOutputStream dOut = new DataOutputStream(bOut);
+        dOut.writeByte(10);
+        dOut.writeUTF("");
+        dOut.writeByte(10);
+        dOut.writeUTF("Level");
+        dOut.writeByte(3);
+        dOut.writeUTF("xPos");
+        dOut.writeInt(chunkX);
+        dOut.writeByte(3);
+        dOut.writeUTF("zPos");
+        dOut.writeInt(chunkZ);
+        dOut.writeByte(4);
+        dOut.writeUTF("LastUpdate");
+        dOut.writeLong(random.nextInt(1000000));
+
+        byte[] heights = new byte[256];
+        byte[] blocks = new byte[BLOCKS];
+        byte[] skyLight = new byte[BLOCKS / 2];
+        int base = 60 + random.nextInt(8);
+        for (int x = 0; x < 16; ++x)
+            for (int z = 0; z < 16; ++z) {
+                int height = base + (x + z) / 8 + random.nextInt(2);
+                heights[z << 4 | x] = (byte) height;
+                int column = x << 11 | z << 7;
+                for (int y = 0; y < height; ++y) {
+                    byte block = 1;
+                    if (y == 0)
+                        block = 7;
+                    else if (y == height - 1)
+                        block = 2;
+                    else if (y >= height - 4)
+                        block = 3;
+                    else if (random.nextInt(64) == 0)
+                        block = (byte) (14 + random.nextInt(3));
+                    blocks[column | y] = block;
+                }
+                for (int y = height; y < 128; ++y)
+                    skyLight[(column | y) >> 1] |= (byte) (y % 2 == 0 ? 0x0F : 0xF0);
+            }
+        dOut.writeByte(7);
+        dOut.writeUTF("Blocks");
+        dOut.writeInt(BLOCKS);
+        blocksOffset = dOut.size();
+        dOut.write(blocks);
+        writeByteArray(dOut, "Data", new byte[BLOCKS / 2]);
+        writeByteArray(dOut, "SkyLight", skyLight);
+        writeByteArray(dOut, "BlockLight", new byte[BLOCKS / 2]);
+        writeByteArray(dOut, "HeightMap", heights);
+        dOut.writeByte(9);
+        dOut.writeUTF("Entities");
+        dOut.writeByte(10);
+        dOut.writeInt(0);
+        dOut.writeByte(9);
+        dOut.writeUTF("TileEntities");
+        dOut.writeByte(10);
+        dOut.writeInt(0);
+        dOut.writeByte(1);
+        dOut.writeUTF("TerrainPopulated");
+        dOut.writeByte(1);
+        // the end of Level and of the root
+        dOut.writeByte(0);
+        dOut.writeByte(0);
+        dOut.close();
+        return bOut.toByteArray();
+    }
+
+    private static void writeByteArray (DataOutputStream dOut, String name, byte[] value) throws IOException {
+        dOut.writeByte(7);
+        dOut.writeUTF(name);
+        dOut.writeInt(value.length);
+        dOut.write(value);
+    }
+
+    private void mutateRegion (File regionFile, Random random, double rate, int timestamp) throws IOException {
+        byte[][] payloads = new byte[CHUNKS][];
+        int[] timestamps = new int[CHUNKS];
+        readRegion(regionFile, payloads, timestamps);
+        boolean changed = false;
+        for (int i = 0; i < CHUNKS; ++i) {
+            if (payloads[i] == null || random.nextDouble() >= rate)
+                continue;
+            byte[] nbt = decompress(payloads[i]);
+            for (int j = 0; j < CHANGED_BLOCKS; ++j)
+                nbt[blocksOffset + random.nextInt(BLOCKS)] = (byte) random.nextInt(20);
+            payloads[i] = compress(nbt);
+            timestamps[i] = timestamp;
+            changed = true;
+        }
+        if (changed)
+            writeFile(regionFile, writeRegion(payloads, timestamps));
+    }
+
+    /**
+     * Reads the compressed chunks and the timestamps of a region file
+     */
+    private static void readRegion (File regionFile, byte[][] payloads, int[] timestamps) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(regionFile, "r");
+        try {
+            int[] locations = new int[CHUNKS];
+            for (int i = 0; i < CHUNKS; ++i)
+                locations[i] = file.readInt();
+            for (int i = 0; i < CHUNKS; ++i)
+                timestamps[i] = file.readInt();
+            for (int i = 0; i < CHUNKS; ++i) {
+                if (locations[i] == 0)
+                    continue;
+                file.seek((long) (locations[i] >>> 8) * SECTOR);
+                int length = file.readInt();
+                // the compression type, always zlib
+                file.readByte();
+                payloads[i] = new byte[length - 1];
+                file.readFully(payloads[i]);
+            }
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    private static byte[] writeRegion (byte[][] payloads, int[] timestamps) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream dBody = new DataOutputStream(body);
+        int[] locations = new int[CHUNKS];
+        int sector = HEADER / SECTOR;
+        for (int i = 0; i < CHUNKS; ++i) {
+            if (payloads[i] == null)
+                continue;
+            int length = payloads[i].length + 5;
+            int sectors = (length + SECTOR - 1) / SECTOR;
+            dBody.writeInt(payloads[i].length + 1);
+            dBody.writeByte(2);
+            dBody.write(payloads[i]);
+            dBody.write(new byte[sectors * SECTOR - length]);
+            locations[i] = sector << 8 | sectors;
+            sector += sectors;
+        }
+        ByteArrayOutputStream region = new ByteArrayOutputStream(HEADER + body.size());
+        DataOutputStream dRegion = new DataOutputStream(region);
+        for (int location : locations)
+            dRegion.writeInt(location);
+        for (int timestamp : timestamps)
+            dRegion.writeInt(timestamp);
+        body.writeTo(dRegion);
+        dRegion.close();
+        return region.toByteArray();
+    }
+
+    private byte[] compress (byte[] data) {
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(data.length / 4);
+        byte[] buffer = new byte[SECTOR];
+        while (!deflater.finished())
+            bOut.write(buffer, 0, deflater.deflate(buffer));
+        return bOut.toByteArray();
+    }
+
+    private byte[] decompress (byte[] data) throws IOException {
+        inflater.reset();
+        inflater.setInput(data);
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(BLOCKS * 2 + 1024);
+        byte[] buffer = new byte[SECTOR];
+        try {
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("A chunk is truncated");
+                bOut.write(buffer, 0, length);
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IOException("A chunk is damaged", e);
+        }
+        return bOut.toByteArray();
+    }
+
+    /**
+     * @return A gzipped file of about PLAYER_SIZE bytes
+     */
+    private static byte[] createPlayer (Random random) throws IOException {
+        byte[] content = new byte[PLAYER_SIZE];
+        random.nextBytes(content);
+        // about the half of a player file are names and empty slots
+        for (int i = 0; i < content.length; i += 2)
+            content[i] = 0;
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(PLAYER_SIZE);
+        GZIPOutputStream gOut = new GZIPOutputStream(bOut);
+        gOut.write(content);
+        gOut.close();
+        return bOut.toByteArray();
+    }
+
+    private static byte[] createText (Random random, int size) {
+        byte[] text = new byte[size];
+        for (int i = 0; i < size; ++i)
+            text[i] = (byte) (i % 40 == 39 ? '\n' : 'a' + random.nextInt(26));
+        return text;
+    }
+
+    /**
+     * Writes a file of the generated folder and counts it
+     */
+    private void write (File file, byte[] content) throws IOException {
+        writeFile(file, content);
+        bytes += content.length;
+        ++files;
+    }
+
+    private static void writeFile (File file, byte[] content) throws IOException {
+        FileOutputStream fOut = new FileOutputStream(file);
+        try {
+            fOut.write(content);
+        }
+        finally {
+            fOut.close();
+        }
+    }
+}
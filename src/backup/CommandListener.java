@@ -18,6 +18,8 @@
 package backup;
 
 import threading.PrepareBackupTask;
+import threading.RestoreTask;
+import threading.VerifyTask;
 
 import org.bukkit.entity.Player;
 import org.bukkit.event.player.PlayerCommandPreprocessEvent;
@@ -56,7 +58,13 @@ public class CommandListener extends PlayerListener implements PropertyConstants
                 player.sendMessage("You dont have the rights to backup the server!");
                 return;
             }
-            if (split.length == 1) {
+            if (split.length == 3 && split[1].equalsIgnoreCase("verify"))
+                player.getServer().getScheduler().scheduleAsyncDelayedTask(plugin, new VerifyTask(player.getServer(), pSystem, split[2], player));
+            else if ((split.length == 3 || split.length == 4) && split[1].equalsIgnoreCase("restore"))
+                player.getServer().getScheduler().scheduleAsyncDelayedTask(plugin, new RestoreTask(player.getServer(), pSystem, split[2], split.length == 4 ? split[3] : null, player));
+            else if (split.length == 2 && split[1].equalsIgnoreCase("stats"))
+                Main.sendStats(player);
+            else if (split.length == 1) {
                 backupTask.setAsManuelBackup();
                 player.getServer().getScheduler().scheduleSyncDelayedTask(plugin, backupTask);
             }
@@ -65,7 +73,7 @@ public class CommandListener extends PlayerListener implements PropertyConstants
                 player.getServer().getScheduler().scheduleSyncDelayedTask(plugin, backupTask);
             }
             else
-                player.sendMessage("/backup OPTIONALNAME");
+                player.sendMessage("/backup OPTIONALNAME, /backup verify NAME, /backup restore NAME [PATH] or /backup stats");
         }
     }
 }
@@ -17,11 +17,17 @@
 
 package backup;
 
+import io.BackupEvent;
+import io.BackupMetrics;
 import threading.PrepareBackupTask;
+import threading.RestoreTask;
+import threading.ScrubTask;
+import threading.VerifyTask;
 import java.io.File;
 import org.bukkit.Server;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
 import org.bukkit.event.Event.Priority;
 import org.bukkit.event.Event.Type;
 import org.bukkit.plugin.PluginManager;
@@ -41,6 +47,7 @@ public class Main extends JavaPlugin implements PropertyConstants {
 
     public static PermissionHandler Permissions;
     private PrepareBackupTask run;
+    private PropertiesSystem pSystem;
 
     @Override
     public void onDisable () {
@@ -62,7 +69,8 @@ public class Main extends JavaPlugin implements PropertyConstants {
         if (!backupDir.exists())
             backupDir.mkdirs();
         // load the properties
-        PropertiesSystem pSystem = new PropertiesSystem(this);
+        pSystem = new PropertiesSystem(this);
+        BackupEvent.setEnabled(pSystem.getBooleanProperty(BOOL_FLIGHT_RECORDER));
 
         Server server = getServer();
         PluginManager pm = server.getPluginManager();
@@ -84,11 +92,34 @@ public class Main extends JavaPlugin implements PropertyConstants {
             server.getScheduler().scheduleSyncRepeatingTask(this, run, intervall, intervall);
         else
             System.out.println("[BACKUP] You have disabled the automatic backup function!");
+        // read the stored backups again from time to time, to find broken ones
+        int scrubIntervall = pSystem.getIntProperty(INT_SCRUB_INTERVALL);
+        if (scrubIntervall > 0)
+            server.getScheduler().scheduleAsyncRepeatingTask(this, new ScrubTask(pSystem), scrubIntervall, scrubIntervall);
         System.out.println(this.getDescription().getFullName() + " was sucessfully loaded!");
     }
 
     @Override
     public boolean onCommand (CommandSender sender, Command command, String label, String[] args) {
+        if (args != null && args.length > 0 && args[0].equalsIgnoreCase("verify")) {
+            if (args.length != 2)
+                return false;
+            // the console gets the outcome by the log
+            CommandSender receiver = sender instanceof Player ? sender : null;
+            this.getServer().getScheduler().scheduleAsyncDelayedTask(this, new VerifyTask(getServer(), pSystem, args[1], receiver));
+            return true;
+        }
+        if (args != null && args.length > 0 && args[0].equalsIgnoreCase("restore")) {
+            if (args.length < 2 || args.length > 3)
+                return false;
+            CommandSender receiver = sender instanceof Player ? sender : null;
+            this.getServer().getScheduler().scheduleAsyncDelayedTask(this, new RestoreTask(getServer(), pSystem, args[1], args.length == 3 ? args[2] : null, receiver));
+            return true;
+        }
+        if (args != null && args.length == 1 && args[0].equalsIgnoreCase("stats")) {
+            sendStats(sender);
+            return true;
+        }
         run.setAsManuelBackup();
         if (args != null && args.length == 1)
             run.setBackupName(args[0]);
@@ -97,6 +128,19 @@ public class Main extends JavaPlugin implements PropertyConstants {
         return true;
     }
 
+    /**
+     * Sends the metrics of the last backup
+     */
+    static void sendStats (CommandSender sender) {
+        BackupMetrics metrics = BackupMetrics.getLast();
+        if (metrics == null) {
+            sender.sendMessage("[BACKUP] No backup has run since the start of the server");
+            return;
+        }
+        for (String line : metrics.format())
+            sender.sendMessage(line);
+    }
+
     private void setupPermissions () {
         Plugin test = this.getServer().getPluginManager().getPlugin("Permissions");
 
@@ -34,9 +34,9 @@ import static io.FileUtils.FILE_SEPARATOR;
 public class PropertiesSystem implements PropertyConstants {
 
     /** How big is the int value array*/
-    private final int INT_VALUES_SIZE       = 2;
-    private final int BOOL_VALUES_SIZE      = 6;
-    private final int STRING_VALUES_SIZE    = 5;
+    private final int INT_VALUES_SIZE       = 20;
+    private final int BOOL_VALUES_SIZE      = 14;
+    private final int STRING_VALUES_SIZE    = 11;
     /** Stores every int property*/
     private int[] intValues = new int[INT_VALUES_SIZE];
     /** Stores every bool property*/
@@ -59,7 +59,15 @@ public class PropertiesSystem implements PropertyConstants {
             System.out.println("[Backup] couldn't find the config, create a default one!");
             createDefaultSettings(configFile);
         }
-        loadProperties(configFile, plugin);
+        // the defaults of the jar are read first, so a config of an older version
+        // gets the default values of the properties it doesn't know
+        try {
+            loadProperties(new BufferedReader(new InputStreamReader(getClass().getResourceAsStream("/res/config.ini"))), null);
+            loadProperties(new BufferedReader(new FileReader(configFile)), plugin);
+        }
+        catch (Exception e) {
+            e.printStackTrace(System.out);
+        }
     }
 
     /**
@@ -98,13 +106,13 @@ public class PropertiesSystem implements PropertyConstants {
     }
 
     /**
-     * Load the properties from the config.ini
-     * @param configFile The config.ini in the servers dir
+     * Load the properties from a config.ini
+     * @param bReader Reads the config.ini, it is closed afterwards
+     * @param plugin The plugin, whose version the config must have, null for
+     * the defaults of the jar
      */
-    private void loadProperties (File configFile, Plugin plugin) {
-        BufferedReader bReader = null;
+    private void loadProperties (BufferedReader bReader, Plugin plugin) {
         try {
-            bReader = new BufferedReader(new FileReader(configFile));
             String line = "";
             String version = null;
             while ((line = bReader.readLine()) != null) {
@@ -119,6 +127,45 @@ public class PropertiesSystem implements PropertyConstants {
                 }
                 else if (split[0].equals("MaximumBackups"))
                     intValues[INT_MAX_BACKUPS] = Integer.parseInt(split[1]);
+                else if (split[0].equals("BackupThreads"))
+                    intValues[INT_BACKUP_THREADS] = Integer.parseInt(split[1]);
+                else if (split[0].equals("CompressionThreads"))
+                    intValues[INT_COMPRESSION_THREADS] = Integer.parseInt(split[1]);
+                else if (split[0].equals("CompressionMemory"))
+                    intValues[INT_COMPRESSION_MEMORY] = Integer.parseInt(split[1]);
+                else if (split[0].equals("FullBackupEvery"))
+                    intValues[INT_FULL_BACKUP_EVERY] = Integer.parseInt(split[1]);
+                else if (split[0].equals("ReadLimit"))
+                    intValues[INT_READ_LIMIT] = Integer.parseInt(split[1]);
+                else if (split[0].equals("WriteLimit"))
+                    intValues[INT_WRITE_LIMIT] = Integer.parseInt(split[1]);
+                else if (split[0].equals("MinimumTPS"))
+                    intValues[INT_MIN_TPS] = Integer.parseInt(split[1]);
+                else if (split[0].equals("CompressionBlockSize"))
+                    intValues[INT_BLOCK_SIZE] = Integer.parseInt(split[1]);
+                else if (split[0].equals("CopyThreads"))
+                    intValues[INT_COPY_THREADS] = Integer.parseInt(split[1]);
+                else if (split[0].equals("KeepHourly"))
+                    intValues[INT_KEEP_HOURLY] = Integer.parseInt(split[1]);
+                else if (split[0].equals("KeepDaily"))
+                    intValues[INT_KEEP_DAILY] = Integer.parseInt(split[1]);
+                else if (split[0].equals("KeepWeekly"))
+                    intValues[INT_KEEP_WEEKLY] = Integer.parseInt(split[1]);
+                else if (split[0].equals("PruneThreads"))
+                    intValues[INT_PRUNE_THREADS] = Integer.parseInt(split[1]);
+                else if (split[0].equals("PruneLimit"))
+                    intValues[INT_PRUNE_LIMIT] = Integer.parseInt(split[1]);
+                else if (split[0].equals("ScrubIntervall")) {
+                    intValues[INT_SCRUB_INTERVALL] = Integer.parseInt(split[1]);
+                    if (intValues[INT_SCRUB_INTERVALL] > 0)
+                        intValues[INT_SCRUB_INTERVALL] *= 1200;
+                }
+                else if (split[0].equals("ScrubLimit"))
+                    intValues[INT_SCRUB_LIMIT] = Integer.parseInt(split[1]);
+                else if (split[0].equals("ScrubAge"))
+                    intValues[INT_SCRUB_AGE] = Integer.parseInt(split[1]);
+                else if (split[0].equals("MaximumBackupIntervall"))
+                    intValues[INT_MAX_BACKUP_INTERVALL] = Integer.parseInt(split[1]);
                 //------------------------------------------------------------//
                 else if (split[0].equals("OnlyOps"))
                     boolValues[BOOL_ONLY_OPS] = Boolean.parseBoolean(split[1]);
@@ -132,6 +179,22 @@ public class PropertiesSystem implements PropertyConstants {
                     boolValues[BOOL_BACKUP_PLUGINS] = Boolean.parseBoolean(split[1]);
                 else if (split[0].equals("SummarizeBackupContent"))
                     boolValues[BOOL_SUMMARIZE_CONTENT] = Boolean.parseBoolean(split[1]);
+                else if (split[0].equals("StreamZIPBackup"))
+                    boolValues[BOOL_ZIP_STREAMING] = Boolean.parseBoolean(split[1]);
+                else if (split[0].equals("IncrementalBackup"))
+                    boolValues[BOOL_INCREMENTAL] = Boolean.parseBoolean(split[1]);
+                else if (split[0].equals("RepositoryBackup"))
+                    boolValues[BOOL_REPOSITORY] = Boolean.parseBoolean(split[1]);
+                else if (split[0].equals("RegionDeltaBackup"))
+                    boolValues[BOOL_REGION_DELTA] = Boolean.parseBoolean(split[1]);
+                else if (split[0].equals("HardLinkBackup"))
+                    boolValues[BOOL_HARD_LINKS] = Boolean.parseBoolean(split[1]);
+                else if (split[0].equals("FlightRecorderEvents"))
+                    boolValues[BOOL_FLIGHT_RECORDER] = Boolean.parseBoolean(split[1]);
+                else if (split[0].equals("SeekableArchives"))
+                    boolValues[BOOL_SEEKABLE_ARCHIVE] = Boolean.parseBoolean(split[1]);
+                else if (split[0].equals("SkipUnchangedBackups"))
+                    boolValues[BOOL_SKIP_UNCHANGED] = Boolean.parseBoolean(split[1]);
                 //------------------------------------------------------------//
                 else if (split[0].equals("MessageStartBackup")) {
                     if (split.length == 2)
@@ -154,20 +217,37 @@ public class PropertiesSystem implements PropertyConstants {
                     stringValues[STRING_CUSTOM_DATE_FORMAT] = split[1];
                 else if (split[0].equals("BackupDir"))
                     stringValues[STRING_BACKUP_FOLDER] = split[1];
+                else if (split[0].equals("RestoreDir"))
+                    stringValues[STRING_RESTORE_FOLDER] = split[1];
+                else if (split[0].equals("Compression"))
+                    stringValues[STRING_COMPRESSION] = split[1];
+                else if (split[0].equals("CompressionRules")) {
+                    if (split.length == 2)
+                        stringValues[STRING_COMPRESSION_RULES] = split[1];
+                }
+                else if (split[0].equals("ArchiveFormat"))
+                    stringValues[STRING_ARCHIVE_FORMAT] = split[1];
+                else if (split[0].equals("MetricsFile")) {
+                    if (split.length == 2)
+                        stringValues[STRING_METRICS_FILE] = split[1];
+                }
+                else if (split[0].equals("ChangeCheckIgnore")) {
+                    if (split.length == 2)
+                        stringValues[STRING_CHANGE_CHECK_IGNORE] = split[1];
+                }
 //----------------------------------------------------------------------------//
                 else if (split[0].equals("Version"))
                     version = split[1];
             }
-            if (version == null || !version.equals(plugin.getDescription().getVersion()))
-                System.out.println("[BACKUP] Your config file is outdated! Please delete your config.ini and the newest will be created!");
+            if (plugin != null && (version == null || !version.equals(plugin.getDescription().getVersion())))
+                System.out.println("[BACKUP] Your config file is outdated! The new properties use their default values. Please delete your config.ini and the newest will be created!");
         }
         catch (Exception e) {
             e.printStackTrace(System.out);
         } // so we can be sure, that the strea is closed
         finally {
             try {
-                if (bReader != null)
-                    bReader.close();
+                bReader.close();
             }
             catch (Exception e) {
                 e.printStackTrace(System.out);
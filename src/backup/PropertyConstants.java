@@ -27,6 +27,42 @@ public interface PropertyConstants {
     public final int INT_BACKUP_INTERVALL       = 0;
     /** the index for the maximum count of backups */
     public final int INT_MAX_BACKUPS            = 1;
+    /** the index for the count of worlds which are backuped at the same time */
+    public final int INT_BACKUP_THREADS         = 2;
+    /** the index for the count of threads which compress the archives */
+    public final int INT_COMPRESSION_THREADS    = 3;
+    /** the index for the memory in MB an archive may use while compressing */
+    public final int INT_COMPRESSION_MEMORY     = 4;
+    /** the index for the count of incremental backups between two full ones */
+    public final int INT_FULL_BACKUP_EVERY      = 5;
+    /** the index for the MB per second a scheduled backup may read */
+    public final int INT_READ_LIMIT             = 6;
+    /** the index for the MB per second a scheduled backup may write */
+    public final int INT_WRITE_LIMIT            = 7;
+    /** the index for the TPS a scheduled backup shall keep at least */
+    public final int INT_MIN_TPS                = 8;
+    /** the index for the KB in which the files are read and compressed */
+    public final int INT_BLOCK_SIZE             = 9;
+    /** the index for the count of files which are copied at the same time */
+    public final int INT_COPY_THREADS           = 10;
+    /** the index for how many hours the newest backup of the hour is kept */
+    public final int INT_KEEP_HOURLY            = 11;
+    /** the index for how many days the newest backup of the day is kept */
+    public final int INT_KEEP_DAILY             = 12;
+    /** the index for how many weeks the newest backup of the week is kept */
+    public final int INT_KEEP_WEEKLY            = 13;
+    /** the index for the count of threads which remove the old backups */
+    public final int INT_PRUNE_THREADS          = 14;
+    /** the index for the files per second the removal of old backups may delete */
+    public final int INT_PRUNE_LIMIT            = 15;
+    /** the index for the intervall in which the stored backups are scrubbed */
+    public final int INT_SCRUB_INTERVALL        = 16;
+    /** the index for the MB per second the scrub of the backups may read */
+    public final int INT_SCRUB_LIMIT            = 17;
+    /** the index for how many days a scrubbed backup isn't scrubbed again */
+    public final int INT_SCRUB_AGE              = 18;
+    /** the index for the minutes after which an unchanged server is backuped anyway */
+    public final int INT_MAX_BACKUP_INTERVALL   = 19;
 //----------------------------------------------------------------------------//
     /** the index for the only ops can run manuell backups property*/
     public final int BOOL_ONLY_OPS              = 0;
@@ -40,6 +76,22 @@ public interface PropertyConstants {
     public final int BOOL_BACKUP_PLUGINS        = 4;
     /** Summarice all worlds in one archive/folder or in seperate one */
     public final int BOOL_SUMMARIZE_CONTENT     = 5;
+    /** Zip the worlds directly without a temporary copy */
+    public final int BOOL_ZIP_STREAMING         = 6;
+    /** Store only the files which changed since the last backup */
+    public final int BOOL_INCREMENTAL           = 7;
+    /** Store the backups in a deduplicating chunk repository */
+    public final int BOOL_REPOSITORY            = 8;
+    /** Store changed region files as delta of their chunks */
+    public final int BOOL_REGION_DELTA          = 9;
+    /** Hard link unchanged files to the last uncompressed snapshot */
+    public final int BOOL_HARD_LINKS            = 10;
+    /** Emit events for the Java Flight Recorder */
+    public final int BOOL_FLIGHT_RECORDER       = 11;
+    /** Write the zip archives with independent blocks and an index */
+    public final int BOOL_SEEKABLE_ARCHIVE      = 12;
+    /** Skip a scheduled backup, when nothing changed since the last one */
+    public final int BOOL_SKIP_UNCHANGED        = 13;
 //----------------------------------------------------------------------------//
     /** the index for the starting backup message */
     public final int STRING_START_BACKUP_MESSAGE    = 0;
@@ -54,4 +106,17 @@ public interface PropertyConstants {
     public final int STRING_CUSTOM_DATE_FORMAT      = 3;
     /** the folder where the backups are stored */
     public final int STRING_BACKUP_FOLDER           = 4;
+    /** the compression of the archive entries without a matching rule */
+    public final int STRING_COMPRESSION             = 5;
+    /** the rules, which directories are compressed how.
+     *  This is one line and each rule is seperated by a ; */
+    public final int STRING_COMPRESSION_RULES       = 6;
+    /** the format of the archives, zip or tar */
+    public final int STRING_ARCHIVE_FORMAT          = 7;
+    /** the Prometheus text file of the metrics, empty for none */
+    public final int STRING_METRICS_FILE            = 8;
+    /** the folder, where the backups are restored to */
+    public final int STRING_RESTORE_FOLDER          = 9;
+    /** the index for the file names, which don't count as change of a world */
+    public final int STRING_CHANGE_CHECK_IGNORE     = 10;
 }
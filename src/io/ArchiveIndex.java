@@ -0,0 +1,336 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The index of a seekable zip archive. The ParallelZipWriter writes it as
+ * last entry, a stored one, and points to it by the comment of the archive.
+ * It knows for every entry where its data starts and where every compressed
+ * block starts. Because the blocks of a seekable archive are compressed
+ * without the previous block as dictionary, a file or a part of it is read
+ * with one seek, without the headers of the archive.
+ * <p>
+ * Only the index is mapped into the memory, not the archive. The channel is
+ * read with positional reads, so several threads can read at the same time.
+ * For a standard zip tool the index is just another file.
+ * @author Kilian Gaertner
+ */
+public class ArchiveIndex {
+
+    /** The name of the index entry */
+    public static final String ENTRY_NAME = ".backup-index";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String COMMENT_PREFIX = "BACKUP-INDEX ";
+    /** "BKIX" */
+    private static final int MAGIC = 0x58494B42;
+    private static final int VERSION = 1;
+    /** The end of central directory record without the comment */
+    private static final int END_SIZE = 22;
+    private static final int MAX_COMMENT = 0xFFFF;
+
+    private final FileChannel channel;
+    private final Map<String, Entry> entries;
+
+    private ArchiveIndex (FileChannel channel, Map<String, Entry> entries) {
+        this.channel = channel;
+        this.entries = entries;
+    }
+
+    /**
+     * Opens the index of an archive
+     * @param zipFile The zip archive
+     * @return The index, null when the archive has none
+     * @throws IOException when the archive can't be read or the index is
+     * damaged
+     */
+    public static ArchiveIndex open (File zipFile) throws IOException {
+        FileChannel channel = FileChannel.open(zipFile.toPath(), StandardOpenOption.READ);
+        try {
+            long[] location = findIndex(channel);
+            if (location == null) {
+                channel.close();
+                return null;
+            }
+            if (location[0] < 0 || location[1] < 10 || location[0] + location[1] > channel.size())
+                throw new IOException("The index of " + zipFile + " points outside of the archive");
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, location[0], location[1]).order(ByteOrder.LITTLE_ENDIAN);
+            if (index.getInt() != MAGIC || index.getShort() != VERSION)
+                throw new IOException("The index of " + zipFile + " has an unknown format");
+            int count = index.getInt();
+            Map<String, Entry> entries = new LinkedHashMap<String, Entry>(count * 2);
+            for (int i = 0; i < count; ++i) {
+                Entry entry = new Entry(index);
+                entries.put(entry.getName(), entry);
+            }
+            return new ArchiveIndex(channel, entries);
+        }
+        catch (RuntimeException e) {
+            // a damaged index runs out of the buffer or has negative lengths
+            FileUtils.closeQuietly(channel);
+            throw new IOException("The index of " + zipFile + " is damaged", e);
+        }
+        catch (IOException e) {
+            FileUtils.closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * Searches the end record of the archive and reads the position and the
+     * length of the index from its comment
+     * @return The position and the length, null when there is no index
+     */
+    private static long[] findIndex (FileChannel channel) throws IOException {
+        long size = channel.size();
+        int length = (int) Math.min(size, END_SIZE + MAX_COMMENT);
+        ByteBuffer tail = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (tail.hasRemaining())
+            if (channel.read(tail, size - length + tail.position()) == -1)
+                throw new IOException("The archive is truncated");
+        // the record is followed by its comment and nothing else
+        for (int i = length - END_SIZE; i >= 0; --i) {
+            if (tail.getInt(i) != 0x06054b50 || (tail.getShort(i + 20) & 0xFFFF) != length - END_SIZE - i)
+                continue;
+            byte[] comment = new byte[length - END_SIZE - i];
+            tail.position(i + END_SIZE);
+            tail.get(comment);
+            String text = new String(comment, UTF8);
+            if (!text.startsWith(COMMENT_PREFIX))
+                return null;
+            String[] split = text.substring(COMMENT_PREFIX.length()).trim().split(" ");
+            try {
+                return new long[] { Long.parseLong(split[0]), Long.parseLong(split[1]) };
+            }
+            catch (RuntimeException e) {
+                throw new IOException("The comment of the archive doesn't point to an index: " + text);
+            }
+        }
+        throw new IOException("The archive has no end of central directory record");
+    }
+
+    /**
+     * @return The paths of all files in the archive, without the index
+     */
+    public Collection<String> list () {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /**
+     * @param path The path of a file
+     * @return The entry of the file, null when it isn't in the archive
+     */
+    public Entry getEntry (String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * @param path The path of a file
+     * @return The content of the file, null when it isn't in the archive
+     * @throws IOException when the archive can't be read
+     */
+    public InputStream open (String path) throws IOException {
+        return open(path, 0);
+    }
+
+    /**
+     * Reads a file from a position on. Only the block, which contains the
+     * position, is inflated before it.
+     * @param path The path of a file
+     * @param position The first byte, which is read
+     * @return The content of the file from the position on, null when it
+     * isn't in the archive
+     * @throws IOException when the archive can't be read
+     */
+    public InputStream open (String path, long position) throws IOException {
+        Entry entry = entries.get(path);
+        if (entry == null)
+            return null;
+        position = Math.max(0, Math.min(position, entry.size));
+        if (entry.method == Codec.METHOD_STORED)
+            return new BackupVerifier.ChannelRangeStream(channel, entry.dataOffset + position, entry.size - position);
+        if (entry.method != Codec.METHOD_DEFLATED)
+            throw new IOException("The file " + path + " has the unknown compression method " + entry.method);
+        // the last block, which starts before the position, without blocks the entry is one deflate stream
+        long raw = 0;
+        long start = 0;
+        for (int i = 0; i < entry.blocks.length && entry.blocks[i] <= position; i += 2) {
+            raw = entry.blocks[i];
+            start = entry.blocks[i + 1];
+        }
+        final Inflater inflater = new Inflater(true);
+        InputStream in = new InflaterInputStream(new BackupVerifier.ChannelRangeStream(channel, entry.dataOffset + start, entry.compressedSize - start), inflater) {
+
+            @Override
+            public void close () throws IOException {
+                super.close();
+                inflater.end();
+            }
+        };
+        long skip = position - raw;
+        while (skip > 0) {
+            long skipped = in.skip(skip);
+            if (skipped <= 0) {
+                in.close();
+                throw new IOException("The file " + path + " ends before " + position);
+            }
+            skip -= skipped;
+        }
+        return in;
+    }
+
+    /**
+     * Closes the archive
+     */
+    public void close () throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Starts a new index
+     * @param count The count of entries
+     * @return The buffer of the index
+     */
+    static ByteBuffer build (int count) {
+        ByteBuffer index = ByteBuffer.allocate(64 + count * 64).order(ByteOrder.LITTLE_ENDIAN);
+        index.putInt(MAGIC);
+        index.putShort((short) VERSION);
+        index.putInt(count);
+        return index;
+    }
+
+    /**
+     * Adds an entry to the index
+     * @param blocks The raw and the compressed position of every block after
+     * the first one, relative to the data, may be null
+     * @param blockCount The count of blocks in the array
+     * @return The buffer of the index, a larger one when it was full
+     */
+    static ByteBuffer put (ByteBuffer index, byte[] name, int method, int dosTime, long crc, long size, long compressedSize, long dataOffset, long[] blocks, int blockCount) {
+        int length = 2 + name.length + 2 + 4 + 4 + 8 + 8 + 8 + 4 + blockCount * 16;
+        if (index.remaining() < length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(index.capacity() * 2, index.position() + length)).order(ByteOrder.LITTLE_ENDIAN);
+            index.flip();
+            larger.put(index);
+            index = larger;
+        }
+        index.putShort((short) name.length);
+        index.put(name);
+        index.putShort((short) method);
+        index.putInt(dosTime);
+        index.putInt((int) crc);
+        index.putLong(size);
+        index.putLong(compressedSize);
+        index.putLong(dataOffset);
+        index.putInt(blockCount);
+        for (int i = 0; i < blockCount * 2; ++i)
+            index.putLong(blocks[i]);
+        return index;
+    }
+
+    /**
+     * @param position The position of the index data in the archive
+     * @param length The length of the index
+     * @return The comment of the archive, which points to the index
+     */
+    static String getComment (long position, int length) {
+        return COMMENT_PREFIX + position + " " + length;
+    }
+
+    /**
+     * A file in the archive
+     */
+    public static class Entry {
+
+        private final String name;
+        private final int method;
+        private final int dosTime;
+        private final long crc;
+        private final long size;
+        private final long compressedSize;
+        /** The position of the compressed data in the archive */
+        private final long dataOffset;
+        /** The raw and the compressed position of every block after the
+         * first one, relative to the data */
+        private final long[] blocks;
+
+        private Entry (ByteBuffer index) {
+            byte[] nameBytes = new byte[index.getShort() & 0xFFFF];
+            index.get(nameBytes);
+            this.name = new String(nameBytes, UTF8);
+            this.method = index.getShort() & 0xFFFF;
+            this.dosTime = index.getInt();
+            this.crc = index.getInt() & 0xFFFFFFFFL;
+            this.size = index.getLong();
+            this.compressedSize = index.getLong();
+            this.dataOffset = index.getLong();
+            this.blocks = new long[index.getInt() * 2];
+            for (int i = 0; i < blocks.length; ++i)
+                blocks[i] = index.getLong();
+        }
+
+        /**
+         * @return The path of the file, directories are seperated by a /
+         */
+        public String getName () {
+            return name;
+        }
+
+        /**
+         * @return The size of the file
+         */
+        public long getSize () {
+            return size;
+        }
+
+        /**
+         * @return The CRC32 of the content
+         */
+        public long getCrc () {
+            return crc;
+        }
+
+        /**
+         * @return The modification date, in the two seconds precision of the
+         * ZIP headers
+         */
+        public long getLastModified () {
+            Calendar calendar = Calendar.getInstance();
+            calendar.clear();
+            calendar.set(((dosTime >> 25) & 0x7F) + 1980, ((dosTime >> 21) & 0x0F) - 1, (dosTime >> 16) & 0x1F,
+                    (dosTime >> 11) & 0x1F, (dosTime >> 5) & 0x3F, (dosTime << 1) & 0x3E);
+            return calendar.getTimeInMillis();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * An archive the backups are written to. The entries are added by a single
+ * thread.
+ * @author Kilian Gaertner
+ */
+public interface ArchiveWriter extends Closeable {
+
+    /**
+     * Adds a file to the archive
+     * @param file The file to add
+     * @param name The name of the entry, directories are seperated by a /
+     * @return The XXHash64 of the content of the file,
+     * BackupManifest.UNKNOWN_HASH when the archive doesn't hash its entries
+     * @throws IOException when the file can't be read or the archive can't be
+     * written
+     */
+    public long putFile (File file, String name) throws IOException;
+
+    /**
+     * Adds an entry with the given content to the archive
+     * @param content The content of the entry
+     * @param name The name of the entry, directories are seperated by a /
+     * @param lastModified The modification date of the entry
+     * @return The XXHash64 of the content
+     * @throws IOException when the archive can't be written
+     */
+    public long putBytes (byte[] content, String name, long lastModified) throws IOException;
+
+    /**
+     * @return The context the archive is written with
+     */
+    public IOContext getContext ();
+
+    /**
+     * Stops the archive and closes the file. The archive is unusable
+     * afterwards.
+     */
+    public void abort ();
+}
@@ -0,0 +1,492 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipFile;
+
+/**
+ * The catalog lists every backup in the backup folder with its date, its
+ * kind, its size, the count of its files, its worlds, its fingerprint and
+ * the names of the older backups it is based on. It is updated after every run, so the
+ * old backups can be selected for removal without a look at the folder.
+ * <p>
+ * The catalog is stored in the meta directory as
+ * <code>backups.catalog</code> and is replaced atomically. When it is
+ * missing, for example after an update of the plugin, it is created once
+ * from the backups in the folder.
+ * <p>
+ * The backups of every series (a world or the summarized backups) are kept
+ * by grandfather-father-son rules: the newest backups, the newest backup of
+ * each of the last hours, days and weeks which have a backup, and every
+ * backup a kept backup is based on.
+ * @author Kilian Gaertner
+ */
+public class BackupCatalog {
+
+    /** The file name of the catalog in the meta directory */
+    public static final String FILE_NAME = "backups.catalog";
+    /** The kind of a backup, which failed and is kept for a look at it */
+    public static final String KIND_FAILED = "failed";
+
+    private static final long UNKNOWN_HASH = 0;
+    /** The folders of the custom backups, the meta data and the repository */
+    private static final Set<String> RESERVED_NAMES = new HashSet<String>(Arrays.asList("custom", "meta", "repository"));
+
+    /** The backups mapped by their file name */
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    /**
+     * Adds a backup or replaces the one with the same id
+     * @param entry The backup
+     */
+    public void add (Entry entry) {
+        entries.put(entry.id, entry);
+    }
+
+    /**
+     * @param id The file name of the backup
+     * @return The removed backup, null when it isn't in the catalog
+     */
+    public Entry remove (String id) {
+        return entries.remove(id);
+    }
+
+    /**
+     * @return Every backup in the catalog
+     */
+    public List<Entry> getEntries () {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    /**
+     * Selects the backups of a series, which are no longer kept by the
+     * rules. A failed backup is removed as soon as there is a newer backup,
+     * which didn't fail. The newest backup is always kept.
+     * @param series The world name or the name of the summarized backups
+     * @param newest How many of the newest backups are kept
+     * @param hourly For how many hours the newest backup is kept
+     * @param daily For how many days the newest backup is kept
+     * @param weekly For how many weeks the newest backup is kept
+     * @return The backups to remove, the oldest first
+     */
+    public List<Entry> selectExpired (String series, int newest, int hourly, int daily, int weekly) {
+        List<Entry> backups = new ArrayList<Entry>();
+        for (Entry entry : entries.values())
+            if (entry.series.equals(series))
+                backups.add(entry);
+        // the newest first
+        Collections.sort(backups, new Comparator<Entry>() {
+
+            @Override
+            public int compare (Entry a, Entry b) {
+                return a.created < b.created ? 1 : (a.created > b.created ? -1 : 0);
+            }
+        });
+        List<Entry> complete = new ArrayList<Entry>(backups.size());
+        long newestComplete = Long.MIN_VALUE;
+        for (Entry entry : backups)
+            if (!entry.isFailed()) {
+                complete.add(entry);
+                newestComplete = Math.max(newestComplete, entry.created);
+            }
+
+        // the backups are kept by their names, which the manifests use as well
+        Set<String> kept = new HashSet<String>();
+        for (int i = 0; i < complete.size() && i < Math.max(newest, 1); ++i)
+            kept.add(complete.get(i).getName());
+        keepPerPeriod(complete, kept, hourly, Calendar.HOUR_OF_DAY);
+        keepPerPeriod(complete, kept, daily, Calendar.DAY_OF_YEAR);
+        keepPerPeriod(complete, kept, weekly, Calendar.WEEK_OF_YEAR);
+
+        // an incremental backup needs the older backups it is based on
+        Map<String, Entry> byName = new HashMap<String, Entry>();
+        for (Entry entry : backups)
+            byName.put(entry.getName(), entry);
+        LinkedList<String> toCheck = new LinkedList<String>(kept);
+        while (!toCheck.isEmpty()) {
+            Entry entry = byName.get(toCheck.removeFirst());
+            if (entry == null)
+                continue;
+            for (String source : entry.sources)
+                if (byName.containsKey(source) && kept.add(source)) {
+                    System.out.println("[BACKUP] Keeping the old backup ".concat(source).concat(", because a newer backup is based on it."));
+                    toCheck.add(source);
+                }
+        }
+
+        List<Entry> expired = new ArrayList<Entry>();
+        for (Entry entry : backups) {
+            if (entry.isFailed() ? entry.created >= newestComplete : kept.contains(entry.getName()))
+                continue;
+            expired.add(0, entry);
+        }
+        return expired;
+    }
+
+    /**
+     * Keeps the newest backup of each of the last periods which have a
+     * backup
+     * @param backups The backups, the newest first
+     * @param kept Gets the kept backups
+     * @param count How many periods are kept
+     * @param field The Calendar field, which is the smallest unit of the
+     * period
+     */
+    private static void keepPerPeriod (List<Entry> backups, Set<String> kept, int count, int field) {
+        if (count <= 0)
+            return;
+        Calendar cal = Calendar.getInstance();
+        String lastPeriod = null;
+        int periods = 0;
+        for (Entry entry : backups) {
+            cal.setTimeInMillis(entry.created);
+            String period;
+            if (field == Calendar.HOUR_OF_DAY)
+                period = cal.get(Calendar.YEAR) + "-" + cal.get(Calendar.DAY_OF_YEAR) + "-" + cal.get(Calendar.HOUR_OF_DAY);
+            else if (field == Calendar.DAY_OF_YEAR)
+                period = cal.get(Calendar.YEAR) + "-" + cal.get(Calendar.DAY_OF_YEAR);
+            else
+                period = cal.getWeekYear() + "-W" + cal.get(Calendar.WEEK_OF_YEAR);
+            if (period.equals(lastPeriod))
+                continue;
+            lastPeriod = period;
+            kept.add(entry.getName());
+            if (++periods >= count)
+                return;
+        }
+    }
+
+    /**
+     * Writes the catalog. The file is replaced atomically, so there is never
+     * a half written catalog.
+     * @param metaDir The meta directory of the backup folder
+     * @throws IOException
+     */
+    public void write (File metaDir) throws IOException {
+        metaDir.mkdirs();
+        File tempFile = new File(metaDir, FILE_NAME.concat(".tmp"));
+        BufferedWriter bWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+        try {
+            bWriter.write("# id\tseries\tcreated\tkind\tsize\tfiles\tworlds\thash\tsources");
+            bWriter.newLine();
+            for (Entry entry : entries.values()) {
+                bWriter.write(entry.id + "\t" + entry.series + "\t" + entry.created + "\t" + entry.kind + "\t" + entry.size + "\t" + entry.files
+                        + "\t" + join(entry.worlds) + "\t" + (entry.hash == UNKNOWN_HASH ? "-" : XXHash64.toHex(entry.hash)) + "\t" + join(entry.sources));
+                bWriter.newLine();
+            }
+        }
+        finally {
+            bWriter.close();
+        }
+        FileUtils.moveAtomically(tempFile, new File(metaDir, FILE_NAME));
+    }
+
+    /**
+     * Reads the catalog of a backup folder
+     * @param metaDir The meta directory of the backup folder
+     * @return The catalog, null when there is no catalog yet
+     * @throws IOException when the catalog can't be read or is damaged
+     */
+    public static BackupCatalog read (File metaDir) throws IOException {
+        File file = new File(metaDir, FILE_NAME);
+        if (!file.exists())
+            return null;
+        BackupCatalog catalog = new BackupCatalog();
+        BufferedReader bReader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = bReader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] split = line.split("\t", -1);
+                if (split.length != 9)
+                    throw new IOException("The catalog " + file + " contains an invalid line: " + line);
+                catalog.add(new Entry(split[0], split[1], Long.parseLong(split[2]), split[3], Long.parseLong(split[4]), Long.parseLong(split[5]),
+                        split(split[6]), split[7].equals("-") ? UNKNOWN_HASH : XXHash64.fromHex(split[7]), split(split[8])));
+            }
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("The catalog " + file + " is damaged", e);
+        }
+        finally {
+            bReader.close();
+        }
+        return catalog;
+    }
+
+    /**
+     * Creates the catalog from the backups in the backup folder. The date of
+     * a backup is its modification date, the kind and the backups it is
+     * based on are taken from its manifest.
+     * @param backupDir The backup folder
+     * @param metaDir The meta directory with the manifests
+     * @param ignored The names in the backup folder, which are no backups
+     * @param series The known series, a backup named SERIES-DATE belongs to
+     * the series, the others are summarized backups
+     * @param summarySeries The name of the summarized backups
+     * @return The new catalog
+     */
+    public static BackupCatalog create (File backupDir, File metaDir, Set<String> ignored, List<String> series, String summarySeries) {
+        BackupCatalog catalog = new BackupCatalog();
+        File[] files = backupDir.listFiles();
+        if (files == null)
+            return catalog;
+        for (File file : files) {
+            if (ignored.contains(file.getName()))
+                continue;
+            String name = getBackupName(file.getName());
+            String backupSeries = summarySeries;
+            for (String candidate : series)
+                if (name.startsWith(candidate.concat("-")) && (backupSeries.equals(summarySeries) || candidate.length() > backupSeries.length()))
+                    backupSeries = candidate;
+            String kind = BackupManifest.KIND_FULL;
+            long hash = UNKNOWN_HASH;
+            List<String> sources = Collections.emptyList();
+            File manifestFile = BackupManifest.getFile(metaDir, name);
+            if (manifestFile.exists()) {
+                try {
+                    BackupManifest manifest = BackupManifest.read(manifestFile);
+                    kind = manifest.getKind();
+                    hash = manifest.getFingerprint();
+                    sources = new ArrayList<String>(manifest.getSources());
+                    sources.remove(name);
+                }
+                catch (IOException e) {
+                    System.out.println("[BACKUP] Can't read the manifest of ".concat(name).concat(", the backups it is based on may be removed!"));
+                    e.printStackTrace(System.out);
+                }
+            }
+            long[] measured = measure(file);
+            List<String> worlds = backupSeries.equals(summarySeries) ? Collections.<String>emptyList() : Collections.singletonList(backupSeries);
+            catalog.add(new Entry(file.getName(), backupSeries, file.lastModified(), kind, measured[0], measured[1], worlds, hash, sources));
+        }
+        return catalog;
+    }
+
+    /**
+     * Counts the files and the bytes of a backup
+     * @param backup A directory or an archive
+     * @return The size in bytes and the count of files, -1 when it can't be
+     * read
+     */
+    public static long[] measure (File backup) {
+        final long[] measured = new long[] { 0, 0 };
+        try {
+            if (backup.isDirectory()) {
+                Files.walkFileTree(backup.toPath(), new SimpleFileVisitor<Path>() {
+
+                    @Override
+                    public FileVisitResult visitFile (Path file, BasicFileAttributes attrs) {
+                        measured[0] += attrs.size();
+                        ++measured[1];
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+            else {
+                measured[0] = backup.length();
+                if (backup.getName().endsWith(".zip")) {
+                    ZipFile zip = new ZipFile(backup);
+                    try {
+                        // the index of a seekable archive isn't a file of the backup
+                        measured[1] = zip.size() - (zip.getEntry(ArchiveIndex.ENTRY_NAME) != null ? 1 : 0);
+                    }
+                    finally {
+                        zip.close();
+                    }
+                }
+                else if (backup.getName().endsWith(".tar"))
+                    measured[1] = TarReader.list(backup).size();
+                else
+                    measured[1] = 1;
+            }
+        }
+        catch (IOException e) {
+            System.out.println("[BACKUP] Can't measure the backup " + backup.getName());
+            return new long[] { -1, -1 };
+        }
+        return measured;
+    }
+
+    /**
+     * @return The name of the backup without the file extension
+     */
+    public static String getBackupName (String id) {
+        return id.endsWith(".zip") || id.endsWith(".tar") ? id.substring(0, id.length() - 4) : id;
+    }
+
+    /**
+     * @param name The name of a backup given by a command
+     * @return true, when the name can't lead out of the backup folder and
+     * isn't one of the folders beside the backups
+     */
+    public static boolean isValidName (String name) {
+        return name != null && !name.isEmpty() && name.indexOf('/') == -1 && name.indexOf('\\') == -1 && !name.contains("..")
+                && !RESERVED_NAMES.contains(name);
+    }
+
+    /**
+     * @param backupDir The folder of the backup
+     * @param name The name of the backup without the file extension
+     * @return The directory or the archive of the backup, null when there is
+     * none or the name is invalid
+     */
+    public static File findBackup (File backupDir, String name) {
+        if (!isValidName(name))
+            return null;
+        for (String extension : new String[] { ".zip", ".tar", "" }) {
+            File backup = new File(backupDir, name.concat(extension));
+            if (backup.exists() && (extension.length() > 0 || backup.isDirectory()))
+                return backup;
+        }
+        return null;
+    }
+
+    private static String join (List<String> values) {
+        StringBuilder sBuilder = new StringBuilder();
+        for (String value : values) {
+            if (sBuilder.length() > 0)
+                sBuilder.append(',');
+            sBuilder.append(value);
+        }
+        return sBuilder.toString();
+    }
+
+    private static List<String> split (String values) {
+        return values.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(values.split(","));
+    }
+
+    /**
+     * A backup in the catalog
+     */
+    public static class Entry {
+
+        private final String id;
+        private final String series;
+        private final long created;
+        private final String kind;
+        private final long size;
+        private final long files;
+        private final List<String> worlds;
+        private final long hash;
+        private final List<String> sources;
+
+        /**
+         * @param id The file name of the backup in the backup folder
+         * @param series The world name or the name of the summarized backups
+         * @param created When the backup was started
+         * @param kind full, incremental or failed
+         * @param size The size in bytes, -1 when it is unknown
+         * @param files The count of files, -1 when it is unknown
+         * @param worlds The worlds and directories in the backup
+         * @param hash The fingerprint of the content, 0 when it is unknown
+         * @param sources The names of the older backups this one is based on
+         */
+        public Entry (String id, String series, long created, String kind, long size, long files, List<String> worlds, long hash, List<String> sources) {
+            this.id = id;
+            this.series = series;
+            this.created = created;
+            this.kind = kind;
+            this.size = size;
+            this.files = files;
+            this.worlds = worlds;
+            this.hash = hash;
+            this.sources = sources;
+        }
+
+        public String getId () {
+            return id;
+        }
+
+        /**
+         * @return The name of the backup without the file extension
+         */
+        public String getName () {
+            return getBackupName(id);
+        }
+
+        public String getSeries () {
+            return series;
+        }
+
+        public long getCreated () {
+            return created;
+        }
+
+        public String getKind () {
+            return kind;
+        }
+
+        public long getSize () {
+            return size;
+        }
+
+        public long getFiles () {
+            return files;
+        }
+
+        public List<String> getWorlds () {
+            return worlds;
+        }
+
+        public long getHash () {
+            return hash;
+        }
+
+        public List<String> getSources () {
+            return sources;
+        }
+
+        /**
+         * @return true, when the backup failed and is only kept for a look at it
+         */
+        public boolean isFailed () {
+            return kind.equals(KIND_FAILED);
+        }
+
+        @Override
+        public String toString () {
+            return id;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An event of the Java Flight Recorder, so a recording shows the backup next
+ * to the garbage collections and the ticks of the server. There are three
+ * types, all with the fields name, world, path and bytes and the duration
+ * between begin and commit:
+ * <ul>
+ * <li><code>backup.Prepare</code> the save of the worlds in the main thread</li>
+ * <li><code>backup.Phase</code> a phase of the backup, like copy or archive</li>
+ * <li><code>backup.FileOperation</code> the copy of a large file, the write of
+ * an archive or the delete of a directory</li>
+ * </ul>
+ * The plugin is built for Java 7, so the types are created by the EventFactory
+ * of the JDK by reflection. When the events are disabled or the JVM has no
+ * flight recorder, begin returns one shared event, which does nothing. The
+ * events are recorded while a recording runs, for example started with
+ * <code>jcmd PID JFR.start</code>.
+ * @author Kilian Gaertner
+ */
+public class BackupEvent {
+
+    public static final int PREPARE = 0;
+    public static final int PHASE = 1;
+    public static final int FILE = 2;
+
+    private static final String[][] TYPES = {
+        { "backup.Prepare", "Backup Prepare", "The save of the worlds before a backup, it runs in the main thread" },
+        { "backup.Phase", "Backup Phase", "A phase of a backup" },
+        { "backup.FileOperation", "Backup File Operation", "The copy of a large file, the write of an archive or the delete of a directory" }
+    };
+
+    /** The event, which is returned while the events are disabled */
+    private static final BackupEvent NONE = new BackupEvent(null);
+
+    /** The EventFactory of every type, null while the events are disabled */
+    private static volatile Object[] factories = null;
+    private static Method newEvent;
+    private static Method begin;
+    private static Method set;
+    private static Method commit;
+
+    /** The jdk.jfr.Event, null for the disabled event */
+    private final Object event;
+
+    private BackupEvent (Object event) {
+        this.event = event;
+    }
+
+    /**
+     * Enables or disables the events. When the JVM has no flight recorder,
+     * they stay disabled.
+     * @param enabled Shall the events be recorded?
+     */
+    public static synchronized void setEnabled (boolean enabled) {
+        if (!enabled) {
+            factories = null;
+            return;
+        }
+        if (factories != null)
+            return;
+        try {
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            newEvent = Class.forName("jdk.jfr.EventFactory").getMethod("newEvent");
+            begin = eventClass.getMethod("begin");
+            set = eventClass.getMethod("set", int.class, Object.class);
+            commit = eventClass.getMethod("commit");
+            Object[] created = new Object[TYPES.length];
+            for (int i = 0; i < TYPES.length; ++i)
+                created[i] = createFactory(TYPES[i][0], TYPES[i][1], TYPES[i][2]);
+            factories = created;
+        }
+        catch (Exception e) {
+            System.out.println("[BACKUP] The Java Flight Recorder is not available, the backup events are disabled");
+        }
+    }
+
+    /**
+     * Creates the EventFactory of a type with the fields name, world, path
+     * and bytes
+     */
+    private static Object createFactory (String name, String label, String description) throws Exception {
+        Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+        Constructor<?> annotation = annotationClass.getConstructor(Class.class, Object.class);
+        Constructor<?> field = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+        Class<?> labelClass = Class.forName("jdk.jfr.Label");
+
+        List<Object> annotations = new ArrayList<Object>();
+        annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Name"), name));
+        annotations.add(annotation.newInstance(labelClass, label));
+        annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Description"), description));
+        annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[] { "Backup" }));
+
+        List<Object> fields = new ArrayList<Object>();
+        fields.add(field.newInstance(String.class, "name", Collections.singletonList(annotation.newInstance(labelClass, "Name"))));
+        fields.add(field.newInstance(String.class, "world", Collections.singletonList(annotation.newInstance(labelClass, "World"))));
+        fields.add(field.newInstance(String.class, "path", Collections.singletonList(annotation.newInstance(labelClass, "Path"))));
+        fields.add(field.newInstance(long.class, "bytes", Arrays.asList(annotation.newInstance(labelClass, "Bytes"), annotation.newInstance(Class.forName("jdk.jfr.DataAmount"), "BYTES"))));
+        return Class.forName("jdk.jfr.EventFactory").getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+    }
+
+    /**
+     * Starts an event
+     * @param type PREPARE, PHASE or FILE
+     * @return The started event, the shared disabled one while the events are
+     * disabled
+     */
+    public static BackupEvent begin (int type) {
+        Object[] current = factories;
+        if (current == null)
+            return NONE;
+        try {
+            Object event = newEvent.invoke(current[type]);
+            begin.invoke(event);
+            return new BackupEvent(event);
+        }
+        catch (Exception e) {
+            return NONE;
+        }
+    }
+
+    /**
+     * Ends the event and records it
+     * @param name The name of the phase or the operation
+     * @param world The world or the worlds, may be null
+     * @param path The file or the directory, may be null
+     * @param bytes The bytes read or written, 0 when they aren't known
+     */
+    public void commit (String name, String world, String path, long bytes) {
+        if (event == null)
+            return;
+        try {
+            set.invoke(event, 0, name);
+            set.invoke(event, 1, world);
+            set.invoke(event, 2, path);
+            set.invoke(event, 3, bytes);
+            commit.invoke(event);
+        }
+        catch (Exception e) {
+            // a lost event doesn't harm the backup
+        }
+    }
+}
@@ -0,0 +1,532 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The manifest of a backup lists every file of the backuped worlds with its
+ * size, its modification date, the hash of its content and the backup which
+ * contains the content. A full backup contains every file, an incremental
+ * backup only the files which are new or changed since the previous backup.
+ * Files which were deleted since the previous backup are marked as deleted.
+ * <p>
+ * While a backup is running, the manifest of it is the FileTracker of the
+ * copy or archive and decides which files have to be stored.
+ * <p>
+ * Every backup gets a manifest, the hashes are calculated while the files
+ * are copied or archived. So a backup can be verified against its manifest
+ * without a second read of the worlds. The files, which are streamed into
+ * a tar archive, are transferred without passing Java, so their hashes are
+ * unknown and only their sizes are verified.
+ * <p>
+ * The manifests are stored in the meta directory of the backup folder as
+ * <code>NAME.manifest</code>. The name of the last backup of a series
+ * (a world or the summarized backup) is stored in <code>SERIES.last</code>.
+ * <p>
+ * When region deltas are enabled, a changed region file is stored as a delta
+ * of its changed chunks (<code>PATH.rdelta</code>). The record of such a file
+ * names the backup with the full region file followed by every backup with a
+ * delta. The chunk state of every region file is kept in a state directory.
+ * @author Kilian Gaertner
+ */
+public class BackupManifest implements FileTracker {
+
+    public static final String KIND_FULL = "full";
+    public static final String KIND_INCREMENTAL = "incremental";
+    /** The hash of a file, whose content wasn't read while it was stored */
+    public static final long UNKNOWN_HASH = 0;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String name;
+    private final String kind;
+    /** The name of the previous backup of the series, null for a full backup */
+    private final String base;
+    /** How many incremental backups are between this one and the last full one */
+    private final int chainLength;
+    private final long created;
+    private final Map<String, Record> records = new TreeMap<String, Record>();
+    private final Set<String> deleted = new TreeSet<String>();
+    /** The manifest of the previous backup, only known while the backup runs */
+    private final BackupManifest previous;
+    /** Whether the backup is a complete snapshot, which links its unchanged files */
+    private final boolean snapshot;
+    /** The directory of the region states, null when no deltas are stored */
+    private File regionStateDir = null;
+    /** The source chains of the region files, which are stored as delta */
+    private final Map<String, String> deltaChains = new HashMap<String, String>();
+
+    /**
+     * Creates the manifest for a new backup
+     * @param name The name of the new backup
+     * @param previous The manifest of the previous backup of the series, when
+     * it is null a full backup is created
+     * @param fullBackupEvery After how many incremental backups a full backup
+     * is created
+     */
+    public BackupManifest (String name, BackupManifest previous, int fullBackupEvery) {
+        this.name = name;
+        this.created = System.currentTimeMillis();
+        if (previous == null || previous.chainLength >= fullBackupEvery) {
+            this.kind = KIND_FULL;
+            this.base = null;
+            this.chainLength = 0;
+            this.previous = null;
+        }
+        else {
+            this.kind = KIND_INCREMENTAL;
+            this.base = previous.name;
+            this.chainLength = previous.chainLength + 1;
+            this.previous = previous;
+        }
+        this.snapshot = false;
+    }
+
+    private BackupManifest (String name, String kind, String base, int chainLength, long created) {
+        this.name = name;
+        this.kind = kind;
+        this.base = base;
+        this.chainLength = chainLength;
+        this.created = created;
+        this.previous = null;
+        this.snapshot = false;
+    }
+
+    private BackupManifest (String name, BackupManifest previous) {
+        this.name = name;
+        this.kind = KIND_FULL;
+        this.base = null;
+        this.chainLength = 0;
+        this.created = System.currentTimeMillis();
+        this.previous = previous;
+        this.snapshot = true;
+    }
+
+    /**
+     * Creates the manifest for a hard linked snapshot. A snapshot contains
+     * every file, the unchanged ones are links to the previous snapshot. So
+     * the snapshot is a full backup, which takes the hashes of its unchanged
+     * files from the previous manifest.
+     * @param name The name of the new snapshot
+     * @param previous The manifest of the previous snapshot of the series,
+     * may be null
+     */
+    public static BackupManifest createSnapshot (String name, BackupManifest previous) {
+        return new BackupManifest(name, previous);
+    }
+
+    /**
+     * A file is stored when it is a full backup or the size or the
+     * modification date differs from the previous backup. Otherwise the
+     * record of the previous backup is taken over. For a snapshot an
+     * unchanged file is linked, its record names the snapshot.
+     */
+    @Override
+    public synchronized boolean accept (String path, File file) {
+        if (previous == null)
+            return true;
+        Record old = previous.records.get(path);
+        if (old != null && old.size == file.length() && old.lastModified == file.lastModified()) {
+            records.put(path, snapshot ? new Record(old.size, old.lastModified, old.hash, name) : old);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * A region file is stored as delta, when the state of its chunks in the
+     * previous backup is known and the delta is smaller than half of the file.
+     * Otherwise the region file is stored completely and its state is saved
+     * for the next backup.
+     */
+    @Override
+    public Replacement replace (String path, File file) throws IOException {
+        if (regionStateDir == null || !RegionFile.isRegionPath(path))
+            return null;
+        byte[] data = readFile(file);
+        XXHash64 hash = new XXHash64();
+        hash.update(data, 0, data.length);
+        File stateFile = new File(regionStateDir, path.concat(".state"));
+        RegionFile region = RegionFile.parse(data);
+        if (region == null) {
+            stateFile.delete();
+            return new Replacement("", data, hash.getValue());
+        }
+        Record old;
+        synchronized (this) {
+            old = previous == null ? null : previous.records.get(path);
+        }
+        RegionFile.State state = old == null ? null : RegionFile.State.read(stateFile);
+        // the state must belong to the content in the previous backup
+        if (state != null && state.getChain().equals(old.source)) {
+            byte[] delta = region.createDelta(state);
+            if (delta.length < data.length / 2) {
+                String chain = old.source.concat(",").concat(name);
+                region.getState(chain).write(stateFile);
+                synchronized (this) {
+                    deltaChains.put(path, chain);
+                }
+                return new Replacement(RegionFile.DELTA_SUFFIX, delta, hash.getValue());
+            }
+        }
+        region.getState(name).write(stateFile);
+        return new Replacement("", data, hash.getValue());
+    }
+
+    @Override
+    public synchronized void stored (String path, File file, long hash) {
+        String chain = deltaChains.remove(path);
+        records.put(path, new Record(file.length(), file.lastModified(), hash, chain != null ? chain : name));
+    }
+
+    /**
+     * Stores changed region files as delta of their chunks
+     * @param stateDir The directory of the chunk states of the series
+     */
+    public void setRegionStateDir (File stateDir) {
+        this.regionStateDir = stateDir;
+    }
+
+    private static byte[] readFile (File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int length = 0;
+            while (true) {
+                if (length == data.length)
+                    data = Arrays.copyOf(data, Math.max(4096, data.length * 2));
+                int read = fis.read(data, length, data.length - length);
+                if (read == -1)
+                    break;
+                length += read;
+            }
+            return length == data.length ? data : Arrays.copyOf(data, length);
+        }
+        finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Marks every file of the previous backup as deleted, which wasn't seen
+     * by this backup. Must be called after all files are stored.
+     */
+    public synchronized void finish () {
+        if (previous == null)
+            return;
+        for (String path : previous.records.keySet())
+            if (!records.containsKey(path))
+                deleted.add(path);
+    }
+
+    /**
+     * @return The names of all backups which contain a file of this backup,
+     * including this backup itself
+     */
+    public Set<String> getSources () {
+        Set<String> sources = new HashSet<String>();
+        sources.add(name);
+        for (Record record : records.values())
+            sources.addAll(record.getChain());
+        return sources;
+    }
+
+    /**
+     * @return The XXHash64 over the paths and the hashes of all files, equal
+     * for two backups with the same content. UNKNOWN_HASH, when a file has
+     * no hash.
+     */
+    public long getFingerprint () {
+        XXHash64 fingerprint = new XXHash64();
+        byte[] hash = new byte[8];
+        for (Map.Entry<String, Record> entry : records.entrySet()) {
+            if (!entry.getValue().isHashed())
+                return UNKNOWN_HASH;
+            byte[] path = entry.getKey().getBytes(UTF8);
+            fingerprint.update(path, 0, path.length);
+            long value = entry.getValue().getHash();
+            for (int i = 0; i < 8; ++i)
+                hash[i] = (byte) (value >>> (i * 8));
+            fingerprint.update(hash, 0, 8);
+        }
+        return fingerprint.getValue();
+    }
+
+    public String getName () {
+        return name;
+    }
+
+    public String getKind () {
+        return kind;
+    }
+
+    public boolean isFull () {
+        return KIND_FULL.equals(kind);
+    }
+
+    /**
+     * @return The name of the previous backup of the series, null for a full
+     * backup
+     */
+    public String getBase () {
+        return base;
+    }
+
+    public long getCreated () {
+        return created;
+    }
+
+    /**
+     * @return Every file of the backuped worlds, mapped by its path
+     */
+    public Map<String, Record> getRecords () {
+        return Collections.unmodifiableMap(records);
+    }
+
+    /**
+     * @return The paths of the files which were deleted since the previous
+     * backup
+     */
+    public Set<String> getDeleted () {
+        return Collections.unmodifiableSet(deleted);
+    }
+
+    /**
+     * Writes the manifest. The file is replaced atomically, so there is
+     * never a half written manifest.
+     * @param file The file to write to
+     * @throws IOException
+     */
+    public synchronized void write (File file) throws IOException {
+        File tempFile = new File(file.getPath().concat(".tmp"));
+        BufferedWriter bWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+        try {
+            bWriter.write("name=" + name);
+            bWriter.newLine();
+            bWriter.write("kind=" + kind);
+            bWriter.newLine();
+            bWriter.write("base=" + (base == null ? "" : base));
+            bWriter.newLine();
+            bWriter.write("chain=" + chainLength);
+            bWriter.newLine();
+            bWriter.write("created=" + created);
+            bWriter.newLine();
+            for (Map.Entry<String, Record> entry : records.entrySet()) {
+                Record record = entry.getValue();
+                bWriter.write("F\t" + entry.getKey() + "\t" + record.size + "\t" + record.lastModified + "\t" + XXHash64.toHex(record.hash) + "\t" + record.source);
+                bWriter.newLine();
+            }
+            for (String path : deleted) {
+                bWriter.write("D\t" + path);
+                bWriter.newLine();
+            }
+        }
+        finally {
+            bWriter.close();
+        }
+        FileUtils.moveAtomically(tempFile, file);
+    }
+
+    /**
+     * Reads a manifest
+     * @param file The file of the manifest
+     * @return The manifest
+     * @throws IOException when the file can't be read or is damaged
+     */
+    public static BackupManifest read (File file) throws IOException {
+        BufferedReader bReader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String name = null, kind = null, base = null;
+            int chainLength = 0;
+            long created = 0;
+            BackupManifest manifest = null;
+            String line;
+            while ((line = bReader.readLine()) != null) {
+                if (manifest == null) {
+                    if (line.startsWith("name="))
+                        name = line.substring(5);
+                    else if (line.startsWith("kind="))
+                        kind = line.substring(5);
+                    else if (line.startsWith("base="))
+                        base = line.length() > 5 ? line.substring(5) : null;
+                    else if (line.startsWith("chain="))
+                        chainLength = Integer.parseInt(line.substring(6));
+                    else if (line.startsWith("created=")) {
+                        created = Long.parseLong(line.substring(8));
+                        if (name == null || kind == null)
+                            throw new IOException("The manifest " + file + " has no name or kind");
+                        manifest = new BackupManifest(name, kind, base, chainLength, created);
+                    }
+                    continue;
+                }
+                String[] split = line.split("\t");
+                if (split[0].equals("F") && split.length == 6)
+                    manifest.records.put(split[1], new Record(Long.parseLong(split[2]), Long.parseLong(split[3]), XXHash64.fromHex(split[4]), split[5]));
+                else if (split[0].equals("D") && split.length == 2)
+                    manifest.deleted.add(split[1]);
+                else
+                    throw new IOException("The manifest " + file + " contains an invalid line: " + line);
+            }
+            if (manifest == null)
+                throw new IOException("The manifest " + file + " is incomplete");
+            return manifest;
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("The manifest " + file + " is damaged", e);
+        }
+        finally {
+            bReader.close();
+        }
+    }
+
+    /**
+     * @param metaDir The meta directory of the backup folder
+     * @param name The name of the backup
+     * @return The file of the manifest of the backup
+     */
+    public static File getFile (File metaDir, String name) {
+        return new File(metaDir, name.concat(".manifest"));
+    }
+
+    /**
+     * Reads the manifest of the last backup of a series
+     * @param metaDir The meta directory of the backup folder
+     * @param series The world name or the name of the summarized backups
+     * @return The manifest or null, when there is no (readable) one
+     */
+    public static BackupManifest readLast (File metaDir, String series) {
+        File lastFile = new File(metaDir, series.concat(".last"));
+        if (!lastFile.exists())
+            return null;
+        try {
+            BufferedReader bReader = new BufferedReader(new InputStreamReader(new FileInputStream(lastFile), "UTF-8"));
+            String name;
+            try {
+                name = bReader.readLine();
+            }
+            finally {
+                bReader.close();
+            }
+            if (name == null)
+                return null;
+            File manifestFile = getFile(metaDir, name);
+            return manifestFile.exists() ? read(manifestFile) : null;
+        }
+        catch (IOException e) {
+            System.out.println("[BACKUP] Can't read the last manifest of " + series + ", a full backup is created.");
+            e.printStackTrace(System.out);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the manifest and marks it as the last backup of the series
+     * @param metaDir The meta directory of the backup folder
+     * @param series The world name or the name of the summarized backups
+     * @throws IOException
+     */
+    public void writeAsLast (File metaDir, String series) throws IOException {
+        write(getFile(metaDir, name));
+        File tempFile = new File(metaDir, series.concat(".last.tmp"));
+        BufferedWriter bWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+        try {
+            bWriter.write(name);
+            bWriter.newLine();
+        }
+        finally {
+            bWriter.close();
+        }
+        FileUtils.moveAtomically(tempFile, new File(metaDir, series.concat(".last")));
+    }
+
+    /**
+     * The state of a single file
+     */
+    public static class Record {
+
+        private final long size;
+        private final long lastModified;
+        private final long hash;
+        /** The name of the backup which contains the content, for a region
+         * delta the names of all backups needed to rebuild it seperated by , */
+        private final String source;
+
+        public Record (long size, long lastModified, long hash, String source) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.source = source;
+        }
+
+        public long getSize () {
+            return size;
+        }
+
+        public long getLastModified () {
+            return lastModified;
+        }
+
+        public long getHash () {
+            return hash;
+        }
+
+        /**
+         * @return false, when the file was stored without reading it
+         */
+        public boolean isHashed () {
+            return hash != UNKNOWN_HASH;
+        }
+
+        public String getSource () {
+            return source;
+        }
+
+        /**
+         * @return The backup with the full file, followed by the backups with
+         * the deltas of it
+         */
+        public List<String> getChain () {
+            return Arrays.asList(source.split(","));
+        }
+
+        /**
+         * @return true, when the file is a region file stored as delta
+         */
+        public boolean isDelta () {
+            return source.indexOf(',') != -1;
+        }
+    }
+}
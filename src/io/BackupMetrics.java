@@ -0,0 +1,248 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * The measurements of one backup run: the duration of every phase, the bytes
+ * read and written, the files and the size of the new backups and the depth
+ * of the queues of the worker pools. The phases are save-all, world-save,
+ * copy, archive, finish and prune. A phase, which didn't run, isn't listed.
+ * <p>
+ * The metrics of the last run are kept for <code>/backup stats</code> and
+ * are written in the text format of Prometheus, so the textfile collector
+ * of the node_exporter picks them up. The file is replaced atomically, the
+ * collector never reads a half written file.
+ * @author Kilian Gaertner
+ */
+public class BackupMetrics {
+
+    /** The metrics of the last published run, null before the first one */
+    private static volatile BackupMetrics last = null;
+
+    private final long started = System.currentTimeMillis();
+    /** The nanoseconds of every phase in the order they were recorded */
+    private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+    /** The samples of every queue: count, sum and maximum of the depth */
+    private final Map<String, long[]> queues = new LinkedHashMap<String, long[]>();
+    private long bytesRead = 0;
+    private long bytesWritten = 0;
+    private long files = 0;
+    private long size = 0;
+    private int backups = 0;
+    private int errors = 0;
+    private long saveOffMillis = 0;
+
+    /**
+     * @return The metrics of the last run, null when there was no run since
+     * the start of the server
+     */
+    public static BackupMetrics getLast () {
+        return last;
+    }
+
+    /**
+     * Adds the duration of a phase. A phase, which runs several times, is
+     * summed up.
+     * @param phase The name of the phase
+     * @param startNanos When the phase started, by System.nanoTime()
+     */
+    public synchronized void addPhase (String phase, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        Long previous = phases.get(phase);
+        phases.put(phase, previous == null ? nanos : previous + nanos);
+    }
+
+    /**
+     * Takes a sample of the tasks, which wait in the queue of a pool
+     * @param queue The name of the queue
+     * @param pool The pool, only a ThreadPoolExecutor has a visible queue
+     */
+    public void sampleQueue (String queue, ExecutorService pool) {
+        if (!(pool instanceof ThreadPoolExecutor))
+            return;
+        int depth = ((ThreadPoolExecutor) pool).getQueue().size();
+        synchronized (this) {
+            long[] samples = queues.get(queue);
+            if (samples == null) {
+                samples = new long[3];
+                queues.put(queue, samples);
+            }
+            ++samples[0];
+            samples[1] += depth;
+            samples[2] = Math.max(samples[2], depth);
+        }
+    }
+
+    /**
+     * @param read The bytes read by the run
+     * @param written The bytes written by the run
+     */
+    public synchronized void addTransfer (long read, long written) {
+        bytesRead += read;
+        bytesWritten += written;
+    }
+
+    /**
+     * Adds a new backup of the run
+     * @param files The count of its files, -1 when it is unknown
+     * @param size Its size in bytes, -1 when it is unknown
+     */
+    public synchronized void addBackup (long files, long size) {
+        ++backups;
+        this.files += Math.max(files, 0);
+        this.size += Math.max(size, 0);
+    }
+
+    /**
+     * @param errors How many worlds or directories failed
+     */
+    public synchronized void addErrors (int errors) {
+        this.errors += errors;
+    }
+
+    /**
+     * @param millis How long the worlds weren't saved
+     */
+    public synchronized void setSaveOffMillis (long millis) {
+        this.saveOffMillis = millis;
+    }
+
+    /**
+     * Makes the metrics the ones of the last run and writes them
+     * @param metricsFile The Prometheus text file, null or empty when no
+     * file is written
+     */
+    public void publish (String metricsFile) {
+        last = this;
+        if (metricsFile == null || metricsFile.trim().isEmpty())
+            return;
+        try {
+            write(new File(metricsFile.trim()));
+        }
+        catch (IOException e) {
+            System.out.println("[BACKUP] Can't write the metrics to " + metricsFile);
+            e.printStackTrace(System.out);
+        }
+    }
+
+    /**
+     * @return The metrics as lines for a player or the console
+     */
+    public synchronized List<String> format () {
+        List<String> lines = new ArrayList<String>();
+        double seconds = getTransferSeconds();
+        lines.add(String.format(Locale.ENGLISH, "[BACKUP] Last backup %tF %<tT: %d backups, %d files, %.1f MB, %d errors", started, backups, files, size / (double) FileUtils.ONE_MB, errors));
+        lines.add(String.format(Locale.ENGLISH, "Read %.1f MB, written %.1f MB, %.1f MB/s, worlds not saved for %.1f s", bytesRead / (double) FileUtils.ONE_MB, bytesWritten / (double) FileUtils.ONE_MB, seconds > 0 ? bytesRead / seconds / FileUtils.ONE_MB : 0, saveOffMillis / 1000.0));
+        StringBuilder sBuilder = new StringBuilder("Phases:");
+        for (Map.Entry<String, Long> phase : phases.entrySet())
+            sBuilder.append(String.format(Locale.ENGLISH, " %s %.1f s", phase.getKey(), phase.getValue() / 1e9));
+        lines.add(sBuilder.toString());
+        if (!queues.isEmpty()) {
+            sBuilder = new StringBuilder("Queues (average/maximum):");
+            for (Map.Entry<String, long[]> queue : queues.entrySet())
+                sBuilder.append(String.format(Locale.ENGLISH, " %s %.1f/%d", queue.getKey(), queue.getValue()[1] / (double) queue.getValue()[0], queue.getValue()[2]));
+            lines.add(sBuilder.toString());
+        }
+        return lines;
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text format. The file is replaced
+     * atomically.
+     * @param file The file for the textfile collector, ending with .prom
+     * @throws IOException
+     */
+    public synchronized void write (File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+        // the collector ignores files without the extension .prom
+        File tempFile = new File(parent, "." + file.getName() + ".tmp");
+        BufferedWriter bWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+        try {
+            writeMetric(bWriter, "backup_last_start_timestamp_seconds", "When the last backup started", started / 1000.0);
+            writeMetric(bWriter, "backup_last_success", "1 when the last backup had no errors", errors == 0 ? 1 : 0);
+            writeMetric(bWriter, "backup_errors", "The worlds and directories the last backup failed to store", errors);
+            writeMetric(bWriter, "backup_backups", "The backups created by the last run", backups);
+            writeMetric(bWriter, "backup_files", "The files in the backups of the last run", files);
+            writeMetric(bWriter, "backup_size_bytes", "The size of the backups of the last run", size);
+            writeMetric(bWriter, "backup_read_bytes", "The bytes read by the last backup", bytesRead);
+            writeMetric(bWriter, "backup_written_bytes", "The bytes written by the last backup", bytesWritten);
+            double seconds = getTransferSeconds();
+            writeMetric(bWriter, "backup_read_throughput_bytes_per_second", "The bytes read per second of the copy and archive phases", seconds > 0 ? bytesRead / seconds : 0);
+            writeMetric(bWriter, "backup_save_off_seconds", "How long the worlds weren't saved", saveOffMillis / 1000.0);
+
+            writeHeader(bWriter, "backup_phase_duration_seconds", "The duration of every phase of the last backup");
+            for (Map.Entry<String, Long> phase : phases.entrySet())
+                writeSample(bWriter, "backup_phase_duration_seconds{phase=\"" + phase.getKey() + "\"}", phase.getValue() / 1e9);
+            if (!queues.isEmpty()) {
+                writeHeader(bWriter, "backup_queue_depth_average", "The average count of tasks waiting in a queue of the last backup");
+                for (Map.Entry<String, long[]> queue : queues.entrySet())
+                    writeSample(bWriter, "backup_queue_depth_average{queue=\"" + queue.getKey() + "\"}", queue.getValue()[1] / (double) queue.getValue()[0]);
+                writeHeader(bWriter, "backup_queue_depth_max", "The maximum count of tasks waiting in a queue of the last backup");
+                for (Map.Entry<String, long[]> queue : queues.entrySet())
+                    writeSample(bWriter, "backup_queue_depth_max{queue=\"" + queue.getKey() + "\"}", queue.getValue()[2]);
+            }
+        }
+        finally {
+            bWriter.close();
+        }
+        FileUtils.moveAtomically(tempFile, file);
+    }
+
+    /**
+     * @return The seconds, in which the worlds were read and archived
+     */
+    private double getTransferSeconds () {
+        long nanos = 0;
+        for (String phase : new String[] { "copy", "archive" })
+            if (phases.containsKey(phase))
+                nanos += phases.get(phase);
+        return nanos / 1e9;
+    }
+
+    private static void writeMetric (BufferedWriter bWriter, String name, String help, double value) throws IOException {
+        writeHeader(bWriter, name, help);
+        writeSample(bWriter, name, value);
+    }
+
+    private static void writeHeader (BufferedWriter bWriter, String name, String help) throws IOException {
+        bWriter.write("# HELP " + name + " " + help);
+        bWriter.write('\n');
+        bWriter.write("# TYPE " + name + " gauge");
+        bWriter.write('\n');
+    }
+
+    private static void writeSample (BufferedWriter bWriter, String sample, double value) throws IOException {
+        // the format needs a dot and no grouping, whatever the locale of the server is
+        bWriter.write(sample + " " + (value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value)));
+        bWriter.write('\n');
+    }
+}
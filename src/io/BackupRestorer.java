@@ -0,0 +1,592 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Restores the files of a backup into a staging folder, while the server
+ * keeps running. Every format of the backups can be read: directories, zip
+ * and tar archives, incremental backups, whose files are spread over the
+ * older backups of the series, region files stored as delta and the
+ * snapshots of the chunk repository.
+ * <p>
+ * The files are extracted by several threads at the same time. Every file is
+ * written to a temporary file first and checked against the XXHash64 and the
+ * size in the manifest (the CRC32 for a zip archive without a manifest).
+ * Only a fine file is moved to its place, so the staging folder never holds
+ * a damaged file.
+ * <p>
+ * A region file rebuilt from deltas has its chunks packed, so it differs
+ * from the hash in the manifest when the original file had gaps. Then its
+ * chunks are compared with the stored chunk state of the series, which is
+ * only known for the last backup. For an older backup only the structure of
+ * the full copy and the deltas is checked.
+ * <p>
+ * Only a part of the backup can be restored, selected by a path: a world, a
+ * directory like <code>world/region</code>, a single file like
+ * <code>world/region/r.0.-1.mcr</code> or the name of a player, which
+ * selects the data of the player in every world. Only the selected files are
+ * read from the backup.
+ * @author Kilian Gaertner
+ */
+public class BackupRestorer {
+
+    private static final int BUFFER_SIZE = 256 * (int) FileUtils.ONE_KB;
+    /** The extension of a file, while it is written */
+    private static final String TEMP_EXTENSION = ".restoring";
+
+    private final ExecutorService workers;
+
+    /**
+     * @param workers The threads, which extract the files
+     */
+    public BackupRestorer (ExecutorService workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * Restores a backup. The files of an incremental backup are read from
+     * the backups in the same folder, which contain them. A backup without
+     * a manifest is restored as it is.
+     * @param backup The directory or the archive of the backup
+     * @param manifest The manifest of the backup, may be null
+     * @param selection Which files are restored, null or empty for all
+     * @param target The staging folder, existing files are replaced
+     * @param regionStateDir The chunk states of the region files of the
+     * series, may be null
+     * @return What was restored and which files are missing or broken
+     * @throws IOException when a backup can't be opened
+     * @throws InterruptedException when the thread is interrupted while it
+     * waits for the workers
+     */
+    public BackupVerifier.Result restore (File backup, BackupManifest manifest, String selection, File target, File regionStateDir) throws IOException, InterruptedException {
+        BackupVerifier.Result result = new BackupVerifier.Result();
+        Map<String, Source> sources = new HashMap<String, Source>();
+        try {
+            Source own = Source.open(backup);
+            sources.put(manifest != null ? manifest.getName() : BackupCatalog.getBackupName(backup.getName()), own);
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            if (manifest == null) {
+                for (String path : select(own.list(), selection))
+                    tasks.add(createTask(own, path, null, target, result));
+            }
+            else {
+                Map<String, BackupManifest.Record> records = manifest.getRecords();
+                for (String path : select(records.keySet(), selection)) {
+                    BackupManifest.Record record = records.get(path);
+                    // the sources are opened once, the older backups of the series are in the same folder
+                    List<Source> chain = new ArrayList<Source>();
+                    for (String name : record.getChain()) {
+                        if (!sources.containsKey(name)) {
+                            File older = BackupCatalog.findBackup(backup.getParentFile(), name);
+                            sources.put(name, older == null ? null : Source.open(older));
+                        }
+                        chain.add(sources.get(name));
+                    }
+                    if (chain.contains(null))
+                        result.missing(path);
+                    else if (record.isDelta())
+                        tasks.add(createDeltaTask(chain, path, record, target, regionStateDir, result));
+                    else
+                        tasks.add(createTask(chain.get(0), path, record, target, result));
+                }
+            }
+            runAll(tasks);
+        }
+        finally {
+            for (Source source : sources.values())
+                if (source != null)
+                    source.close();
+        }
+        return result;
+    }
+
+    /**
+     * Restores a snapshot of the chunk repository. Every chunk is checked
+     * against its SHA-1 while it is read.
+     * @param repository The repository of the snapshot
+     * @param snapshot The snapshot
+     * @param selection Which files are restored, null or empty for all
+     * @param target The staging folder, existing files are replaced
+     * @return What was restored and which files are missing or broken
+     * @throws InterruptedException when the thread is interrupted while it
+     * waits for the workers
+     */
+    public BackupVerifier.Result restore (final ChunkRepository repository, ChunkRepository.Snapshot snapshot, String selection, final File target) throws IOException, InterruptedException {
+        final BackupVerifier.Result result = new BackupVerifier.Result();
+        final Map<String, ChunkRepository.Record> records = snapshot.getRecords();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final String path : select(records.keySet(), selection))
+            tasks.add(new Callable<Void>() {
+
+                @Override
+                public Void call () throws Exception {
+                    ChunkRepository.Record record = records.get(path);
+                    File file = getTargetFile(target, path);
+                    File tempFile = new File(file.getPath().concat(TEMP_EXTENSION));
+                    XXHash64 hash = new XXHash64();
+                    long size = 0;
+                    OutputStream out = new FileOutputStream(tempFile);
+                    try {
+                        for (String chunk : record.getChunks()) {
+                            byte[] data = repository.readChunk(chunk);
+                            hash.update(data, 0, data.length);
+                            out.write(data);
+                            size += data.length;
+                        }
+                    }
+                    catch (IOException e) {
+                        if (e instanceof InterruptedIOException)
+                            throw e;
+                        FileUtils.closeQuietly(out);
+                        tempFile.delete();
+                        result.corrupt(path, e.getMessage());
+                        return null;
+                    }
+                    finally {
+                        out.close();
+                    }
+                    finish(path, tempFile, file, size, hash.getValue(), -1, -1, record.getSize(), record.getHash(), record.getLastModified(), result);
+                    return null;
+                }
+            });
+        runAll(tasks);
+        return result;
+    }
+
+    /**
+     * @param paths The paths of all files in the backup
+     * @param selection A path of a directory or file or the name of a
+     * player, null or empty for all files
+     * @return The selected paths
+     */
+    static Collection<String> select (Collection<String> paths, String selection) {
+        if (selection == null || selection.trim().isEmpty())
+            return paths;
+        String prefix = selection.trim().replace('\\', '/');
+        while (prefix.endsWith("/"))
+            prefix = prefix.substring(0, prefix.length() - 1);
+        Collection<String> selected = new TreeSet<String>();
+        for (String path : paths)
+            if (path.equals(prefix) || path.startsWith(prefix.concat("/")))
+                selected.add(path);
+        if (!selected.isEmpty() || prefix.indexOf('/') != -1)
+            return selected;
+        // the players are stored by their name in every world
+        String playerFile = prefix.concat(".dat");
+        for (String path : paths)
+            if (path.equals("players/".concat(playerFile)) || path.endsWith("/players/".concat(playerFile)))
+                selected.add(path);
+        return selected;
+    }
+
+    /**
+     * Creates a task, which extracts a file
+     * @param record The record of the file, null when there is no manifest
+     */
+    private Callable<Void> createTask (final Source source, final String path, final BackupManifest.Record record, final File target, final BackupVerifier.Result result) {
+        return new Callable<Void>() {
+
+            @Override
+            public Void call () throws Exception {
+                InputStream in = source.open(path);
+                if (in == null) {
+                    result.missing(path);
+                    return null;
+                }
+                File file = getTargetFile(target, path);
+                File tempFile = new File(file.getPath().concat(TEMP_EXTENSION));
+                XXHash64 hash = new XXHash64();
+                CRC32 crc = new CRC32();
+                long size = 0;
+                OutputStream out = new FileOutputStream(tempFile);
+                try {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        hash.update(buffer, 0, read);
+                        crc.update(buffer, 0, read);
+                        out.write(buffer, 0, read);
+                        size += read;
+                    }
+                }
+                catch (IOException e) {
+                    if (e instanceof InterruptedIOException)
+                        throw e;
+                    FileUtils.closeQuietly(out);
+                    tempFile.delete();
+                    result.corrupt(path, e.getMessage());
+                    return null;
+                }
+                finally {
+                    out.close();
+                    in.close();
+                }
+                if (record != null)
+                    finish(path, tempFile, file, size, hash.getValue(), crc.getValue(), source.getCrc(path), record.getSize(), record.getHash(), record.getLastModified(), result);
+                else
+                    finish(path, tempFile, file, size, hash.getValue(), crc.getValue(), source.getCrc(path), size, hash.getValue(), source.getLastModified(path), result);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Creates a task, which rebuilds a region file from the full copy in the
+     * first source and the deltas in the following sources
+     */
+    private Callable<Void> createDeltaTask (final List<Source> chain, final String path, final BackupManifest.Record record, final File target, final File regionStateDir, final BackupVerifier.Result result) {
+        return new Callable<Void>() {
+
+            @Override
+            public Void call () throws Exception {
+                List<InputStream> streams = new ArrayList<InputStream>();
+                try {
+                    for (int i = 0; i < chain.size(); ++i) {
+                        String storedPath = i == 0 ? path : path.concat(RegionFile.DELTA_SUFFIX);
+                        InputStream in = chain.get(i).open(storedPath);
+                        if (in == null) {
+                            result.missing(storedPath);
+                            return null;
+                        }
+                        streams.add(in);
+                    }
+                    File file = getTargetFile(target, path);
+                    File tempFile = new File(file.getPath().concat(TEMP_EXTENSION));
+                    RegionFile region;
+                    try {
+                        region = RegionFile.rebuild(streams.get(0), streams.subList(1, streams.size()), tempFile);
+                    }
+                    catch (IOException e) {
+                        if (e instanceof InterruptedIOException)
+                            throw e;
+                        tempFile.delete();
+                        result.corrupt(path, e.getMessage());
+                        return null;
+                    }
+                    // the manifest has the hash of the rebuilt file
+                    XXHash64 hash = new XXHash64();
+                    InputStream in = new FileInputStream(tempFile);
+                    try {
+                        byte[] buffer = new byte[BUFFER_SIZE];
+                        int read;
+                        while ((read = in.read(buffer)) != -1)
+                            hash.update(buffer, 0, read);
+                    }
+                    finally {
+                        in.close();
+                    }
+                    long size = tempFile.length();
+                    if (size != record.getSize() || hash.getValue() != record.getHash()) {
+                        // the packed file differs from an original with gaps, so its chunks are compared
+                        RegionFile.State state = regionStateDir == null ? null : RegionFile.State.read(new File(regionStateDir, path.concat(".state")));
+                        if (state != null && state.getChain().equals(record.getSource()) && !region.getState(state.getChain()).hasSameChunks(state)) {
+                            tempFile.delete();
+                            result.corrupt(path, "the chunks differ from the backup");
+                            return null;
+                        }
+                    }
+                    finish(path, tempFile, file, size, hash.getValue(), -1, -1, size, hash.getValue(), record.getLastModified(), result);
+                    return null;
+                }
+                finally {
+                    for (InputStream in : streams)
+                        in.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Compares a written file with what was expected and moves it to its
+     * place, when it is fine. A broken file is deleted.
+     * @param crc The CRC32 of the written content
+     * @param expectedCrc The CRC32 of the zip entry, -1 when it is unknown
+     * @param lastModified The modification date of the file, -1 when it is
+     * unknown
+     */
+    private static void finish (String path, File tempFile, File file, long size, long hash, long crc, long expectedCrc,
+                                long expectedSize, long expectedHash, long lastModified, BackupVerifier.Result result) throws IOException {
+        String reason = null;
+        if (expectedCrc != -1 && crc != expectedCrc)
+            reason = "the CRC32 differs from the archive";
+        else if (size != expectedSize)
+            reason = "the size is " + size + " instead of " + expectedSize;
+        else if (expectedHash != BackupManifest.UNKNOWN_HASH && hash != expectedHash)
+            reason = "the hash differs from the manifest";
+        if (reason != null) {
+            tempFile.delete();
+            result.corrupt(path, reason);
+            return;
+        }
+        if (lastModified != -1)
+            tempFile.setLastModified(lastModified);
+        FileUtils.moveAtomically(tempFile, file);
+        result.checked(size);
+    }
+
+    /**
+     * @return The file of a path in the staging folder, its directory is
+     * created
+     * @throws IOException when the path leads out of the staging folder
+     */
+    private static File getTargetFile (File target, String path) throws IOException {
+        File file = new File(target, path);
+        if (!file.getCanonicalPath().startsWith(target.getCanonicalPath().concat(File.separator)))
+            throw new IOException("The path " + path + " leads out of " + target);
+        file.getParentFile().mkdirs();
+        return file;
+    }
+
+    /**
+     * Runs the tasks on the workers and waits for all of them
+     */
+    private void runAll (List<Callable<Void>> tasks) throws IOException, InterruptedException {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks.size());
+        try {
+            for (Callable<Void> task : tasks)
+                futures.add(workers.submit(task));
+            for (Future<Void> future : futures)
+                future.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Failed to restore the backup", e.getCause());
+        }
+        finally {
+            for (Future<Void> future : futures)
+                future.cancel(true);
+        }
+    }
+
+    /**
+     * A backup, whose files can be read by several threads at the same time
+     */
+    private static abstract class Source {
+
+        /**
+         * @param backup A directory, a zip or a tar archive
+         */
+        static Source open (File backup) throws IOException {
+            if (backup.isDirectory())
+                return new DirectorySource(backup);
+            if (backup.getName().endsWith(".zip")) {
+                // the index of a seekable archive spares the central directory and the local headers
+                try {
+                    ArchiveIndex index = ArchiveIndex.open(backup);
+                    if (index != null)
+                        return new IndexedZipSource(index);
+                }
+                catch (IOException e) {
+                    System.out.println("[BACKUP] " + e.getMessage() + ", the archive is read without it");
+                }
+                return new ZipSource(backup);
+            }
+            if (backup.getName().endsWith(".tar"))
+                return new TarSource(backup);
+            throw new IOException("Unknown backup " + backup);
+        }
+
+        /**
+         * @return The paths of all files
+         */
+        abstract Collection<String> list () throws IOException;
+
+        /**
+         * @return The content of a file, null when it isn't in the backup
+         */
+        abstract InputStream open (String path) throws IOException;
+
+        /**
+         * @return The CRC32 of a file, -1 when it is unknown
+         */
+        long getCrc (String path) {
+            return -1;
+        }
+
+        /**
+         * @return The modification date of a file, -1 when it is unknown
+         */
+        long getLastModified (String path) {
+            return -1;
+        }
+
+        void close () throws IOException {
+        }
+    }
+
+    private static class DirectorySource extends Source {
+
+        private final File dir;
+
+        private DirectorySource (File dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        Collection<String> list () throws IOException {
+            return BackupVerifier.listContent(dir);
+        }
+
+        @Override
+        InputStream open (String path) throws IOException {
+            File file = new File(dir, path);
+            return file.isFile() ? new FileInputStream(file) : null;
+        }
+
+        @Override
+        long getLastModified (String path) {
+            return new File(dir, path).lastModified();
+        }
+    }
+
+    private static class ZipSource extends Source {
+
+        private final ZipFile zip;
+
+        private ZipSource (File zipFile) throws IOException {
+            this.zip = new ZipFile(zipFile);
+        }
+
+        @Override
+        Collection<String> list () {
+            List<String> paths = new ArrayList<String>();
+            for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements();) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory() && !entry.getName().equals(ArchiveIndex.ENTRY_NAME))
+                    paths.add(entry.getName());
+            }
+            return paths;
+        }
+
+        @Override
+        InputStream open (String path) throws IOException {
+            // the ZipFile inflates the entries of several threads at the same time
+            ZipEntry entry = zip.getEntry(path);
+            return entry == null ? null : zip.getInputStream(entry);
+        }
+
+        @Override
+        long getCrc (String path) {
+            ZipEntry entry = zip.getEntry(path);
+            return entry == null ? -1 : entry.getCrc();
+        }
+
+        @Override
+        long getLastModified (String path) {
+            ZipEntry entry = zip.getEntry(path);
+            return entry == null ? -1 : entry.getTime();
+        }
+
+        @Override
+        void close () throws IOException {
+            zip.close();
+        }
+    }
+
+    private static class IndexedZipSource extends Source {
+
+        private final ArchiveIndex index;
+
+        private IndexedZipSource (ArchiveIndex index) {
+            this.index = index;
+        }
+
+        @Override
+        Collection<String> list () {
+            return index.list();
+        }
+
+        @Override
+        InputStream open (String path) throws IOException {
+            // every file is read with positional reads from its data on
+            return index.open(path);
+        }
+
+        @Override
+        long getCrc (String path) {
+            ArchiveIndex.Entry entry = index.getEntry(path);
+            return entry == null ? -1 : entry.getCrc();
+        }
+
+        @Override
+        long getLastModified (String path) {
+            ArchiveIndex.Entry entry = index.getEntry(path);
+            return entry == null ? -1 : entry.getLastModified();
+        }
+
+        @Override
+        void close () throws IOException {
+            index.close();
+        }
+    }
+
+    private static class TarSource extends Source {
+
+        private final Map<String, TarReader.Entry> entries = new LinkedHashMap<String, TarReader.Entry>();
+        private final FileChannel channel;
+
+        private TarSource (File tarFile) throws IOException {
+            for (TarReader.Entry entry : TarReader.list(tarFile))
+                entries.put(entry.getName(), entry);
+            this.channel = FileChannel.open(tarFile.toPath(), StandardOpenOption.READ);
+        }
+
+        @Override
+        Collection<String> list () {
+            return entries.keySet();
+        }
+
+        @Override
+        InputStream open (String path) {
+            // the positional reads of the threads don't disturb each other
+            TarReader.Entry entry = entries.get(path);
+            return entry == null ? null : new BackupVerifier.ChannelRangeStream(channel, entry.getOffset(), entry.getSize());
+        }
+
+        @Override
+        void close () throws IOException {
+            channel.close();
+        }
+    }
+}
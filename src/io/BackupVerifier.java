@@ -0,0 +1,454 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Checks a backup against its manifest. Every file, which is stored in the
+ * backup, is read and its XXHash64 and size are compared with the manifest.
+ * The entries of a zip archive are checked against their CRC32 as well.
+ * The files are read by several threads at the same time.
+ * <p>
+ * A region file, which is stored as delta, is only checked for its presence
+ * (and its CRC32 in a zip archive), because the manifest has the hash of the
+ * rebuilt file.
+ * @author Kilian Gaertner
+ */
+public class BackupVerifier {
+
+    private static final int BUFFER_SIZE = 64 * (int) FileUtils.ONE_KB;
+
+    private final ExecutorService readers;
+    private final Throttle throttle;
+
+    /**
+     * @param readers The threads, which read the files
+     * @param throttle Limits the bytes per second of the reads
+     */
+    public BackupVerifier (ExecutorService readers, Throttle throttle) {
+        this.readers = readers;
+        this.throttle = throttle;
+    }
+
+    /**
+     * Checks a backup. A backup without a manifest is read completely, so
+     * the CRC32 of a zip archive and the readability of every file are
+     * checked.
+     * @param backup The directory or the archive of the backup
+     * @param manifest The manifest of the backup, may be null
+     * @return What was checked and found
+     * @throws IOException when the backup can't be opened
+     * @throws InterruptedException when the thread is interrupted while it
+     * waits for the readers
+     */
+    public Result verify (File backup, BackupManifest manifest) throws IOException, InterruptedException {
+        // only the files of this backup, the others are in older backups
+        Map<String, BackupManifest.Record> stored = new TreeMap<String, BackupManifest.Record>();
+        List<String> deltas = new ArrayList<String>();
+        if (manifest == null) {
+            for (String path : listContent(backup))
+                stored.put(path, null);
+        }
+        else {
+            for (Map.Entry<String, BackupManifest.Record> entry : manifest.getRecords().entrySet()) {
+                List<String> chain = entry.getValue().getChain();
+                if (!chain.get(chain.size() - 1).equals(manifest.getName()))
+                    continue;
+                if (entry.getValue().isDelta())
+                    deltas.add(entry.getKey().concat(RegionFile.DELTA_SUFFIX));
+                else
+                    stored.put(entry.getKey(), entry.getValue());
+            }
+        }
+        Result result = new Result();
+        if (backup.isDirectory())
+            verifyDirectory(backup, stored, deltas, result);
+        else if (backup.getName().endsWith(".zip"))
+            verifyZip(backup, stored, deltas, result);
+        else if (backup.getName().endsWith(".tar"))
+            verifyTar(backup, stored, deltas, result);
+        else
+            throw new IOException("Unknown backup " + backup);
+        return result;
+    }
+
+    /**
+     * Checks a snapshot of the chunk repository. Every chunk of every file
+     * is read and checked against its SHA-1, the rebuilt file is compared
+     * with the size and the XXHash64 of the snapshot.
+     * @param repository The repository of the snapshot
+     * @param snapshot The snapshot
+     * @return What was checked and found
+     * @throws IOException when the check is interrupted
+     * @throws InterruptedException when the thread is interrupted while it
+     * waits for the readers
+     */
+    public Result verify (final ChunkRepository repository, ChunkRepository.Snapshot snapshot) throws IOException, InterruptedException {
+        final Result result = new Result();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final Map.Entry<String, ChunkRepository.Record> entry : snapshot.getRecords().entrySet())
+            tasks.add(new Callable<Void>() {
+
+                @Override
+                public Void call () throws Exception {
+                    ChunkRepository.Record record = entry.getValue();
+                    XXHash64 hash = new XXHash64();
+                    long size = 0;
+                    try {
+                        for (String chunk : record.getChunks()) {
+                            byte[] data = repository.readChunk(chunk);
+                            throttle.acquire(data.length);
+                            hash.update(data, 0, data.length);
+                            size += data.length;
+                        }
+                    }
+                    catch (IOException e) {
+                        if (e instanceof InterruptedIOException)
+                            throw e;
+                        result.corrupt(entry.getKey(), e.getMessage());
+                        return null;
+                    }
+                    if (size != record.getSize())
+                        result.corrupt(entry.getKey(), "the size is " + size + " instead of " + record.getSize());
+                    else if (hash.getValue() != record.getHash())
+                        result.corrupt(entry.getKey(), "the hash differs from the snapshot");
+                    else
+                        result.checked(size);
+                    return null;
+                }
+            });
+        runAll(tasks);
+        return result;
+    }
+
+    /**
+     * @return The paths of all files in a backup
+     */
+    static List<String> listContent (File backup) throws IOException {
+        final List<String> paths = new ArrayList<String>();
+        if (backup.isDirectory()) {
+            final Path root = backup.toPath();
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+                @Override
+                public FileVisitResult visitFile (Path file, BasicFileAttributes attrs) {
+                    paths.add(root.relativize(file).toString().replace(File.separatorChar, '/'));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        else if (backup.getName().endsWith(".zip")) {
+            ZipFile zip = new ZipFile(backup);
+            try {
+                for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements();) {
+                    ZipEntry entry = entries.nextElement();
+                    if (!entry.isDirectory() && !entry.getName().equals(ArchiveIndex.ENTRY_NAME))
+                        paths.add(entry.getName());
+                }
+            }
+            finally {
+                zip.close();
+            }
+        }
+        else if (backup.getName().endsWith(".tar"))
+            for (TarReader.Entry entry : TarReader.list(backup))
+                paths.add(entry.getName());
+        return paths;
+    }
+
+    private void verifyDirectory (final File dir, Map<String, BackupManifest.Record> stored, List<String> deltas, final Result result) throws IOException, InterruptedException {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(stored.size());
+        for (final Map.Entry<String, BackupManifest.Record> entry : stored.entrySet())
+            tasks.add(new Callable<Void>() {
+
+                @Override
+                public Void call () throws Exception {
+                    File file = new File(dir, entry.getKey());
+                    if (!file.isFile()) {
+                        result.missing(entry.getKey());
+                        return null;
+                    }
+                    InputStream in = new FileInputStream(file);
+                    try {
+                        check(entry.getKey(), in, entry.getValue(), null, result);
+                    }
+                    finally {
+                        in.close();
+                    }
+                    return null;
+                }
+            });
+        runAll(tasks);
+        for (String delta : deltas)
+            if (new File(dir, delta).isFile())
+                result.checked(0);
+            else
+                result.missing(delta);
+    }
+
+    private void verifyZip (File zipFile, Map<String, BackupManifest.Record> stored, List<String> deltas, final Result result) throws IOException, InterruptedException {
+        final ZipFile zip = new ZipFile(zipFile);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(stored.size() + deltas.size());
+            Map<String, BackupManifest.Record> toCheck = new HashMap<String, BackupManifest.Record>(stored);
+            for (String delta : deltas)
+                toCheck.put(delta, null);
+            for (final Map.Entry<String, BackupManifest.Record> entry : toCheck.entrySet())
+                tasks.add(new Callable<Void>() {
+
+                    @Override
+                    public Void call () throws Exception {
+                        ZipEntry zipEntry = zip.getEntry(entry.getKey());
+                        if (zipEntry == null) {
+                            result.missing(entry.getKey());
+                            return null;
+                        }
+                        InputStream in = zip.getInputStream(zipEntry);
+                        try {
+                            check(entry.getKey(), in, entry.getValue(), zipEntry, result);
+                        }
+                        finally {
+                            in.close();
+                        }
+                        return null;
+                    }
+                });
+            runAll(tasks);
+        }
+        finally {
+            zip.close();
+        }
+    }
+
+    private void verifyTar (File tarFile, Map<String, BackupManifest.Record> stored, List<String> deltas, final Result result) throws IOException, InterruptedException {
+        Map<String, TarReader.Entry> entries = new HashMap<String, TarReader.Entry>();
+        for (TarReader.Entry entry : TarReader.list(tarFile))
+            entries.put(entry.getName(), entry);
+        final FileChannel channel = FileChannel.open(tarFile.toPath(), StandardOpenOption.READ);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(stored.size());
+            for (final Map.Entry<String, BackupManifest.Record> entry : stored.entrySet()) {
+                final TarReader.Entry tarEntry = entries.get(entry.getKey());
+                if (tarEntry == null) {
+                    result.missing(entry.getKey());
+                    continue;
+                }
+                tasks.add(new Callable<Void>() {
+
+                    @Override
+                    public Void call () throws Exception {
+                        // the positional reads of the threads don't disturb each other
+                        check(entry.getKey(), new ChannelRangeStream(channel, tarEntry.getOffset(), tarEntry.getSize()), entry.getValue(), null, result);
+                        return null;
+                    }
+                });
+            }
+            runAll(tasks);
+        }
+        finally {
+            channel.close();
+        }
+        for (String delta : deltas)
+            if (entries.containsKey(delta))
+                result.checked(0);
+            else
+                result.missing(delta);
+    }
+
+    /**
+     * Reads a stored file and compares it with its record
+     * @param record The record of the file, null for a delta
+     * @param zipEntry The entry of a zip archive, whose CRC32 is checked,
+     * may be null
+     */
+    private void check (String path, InputStream in, BackupManifest.Record record, ZipEntry zipEntry, Result result) throws IOException {
+        XXHash64 hash = new XXHash64();
+        CRC32 crc = zipEntry != null ? new CRC32() : null;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long size = 0;
+        int read;
+        try {
+            while (true) {
+                throttle.acquire(buffer.length);
+                if ((read = in.read(buffer)) == -1)
+                    break;
+                hash.update(buffer, 0, read);
+                if (crc != null)
+                    crc.update(buffer, 0, read);
+                size += read;
+            }
+        }
+        catch (IOException e) {
+            if (e instanceof InterruptedIOException)
+                throw e;
+            result.corrupt(path, e.getMessage());
+            return;
+        }
+        if (crc != null && zipEntry.getCrc() != -1 && crc.getValue() != zipEntry.getCrc())
+            result.corrupt(path, "the CRC32 differs from the archive");
+        else if (record != null && size != record.getSize())
+            result.corrupt(path, "the size is " + size + " instead of " + record.getSize());
+        else if (record != null && record.isHashed() && hash.getValue() != record.getHash())
+            result.corrupt(path, "the hash differs from the manifest");
+        else
+            result.checked(size);
+    }
+
+    /**
+     * Runs the tasks on the readers and waits for all of them
+     */
+    private void runAll (List<Callable<Void>> tasks) throws IOException, InterruptedException {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks.size());
+        try {
+            for (Callable<Void> task : tasks)
+                futures.add(readers.submit(task));
+            for (Future<Void> future : futures)
+                future.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Failed to verify the backup", e.getCause());
+        }
+        finally {
+            for (Future<Void> future : futures)
+                future.cancel(true);
+        }
+    }
+
+    /**
+     * Reads a range of a channel with positional reads
+     */
+    static class ChannelRangeStream extends InputStream {
+
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        ChannelRangeStream (FileChannel channel, long offset, long size) {
+            this.channel = channel;
+            this.position = offset;
+            this.end = offset + size;
+        }
+
+        @Override
+        public int read () throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read (byte[] b, int off, int len) throws IOException {
+            if (position >= end)
+                return -1;
+            int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (read == -1)
+                throw new IOException("The archive is truncated");
+            position += read;
+            return read;
+        }
+    }
+
+    /**
+     * The outcome of a check
+     */
+    public static class Result {
+
+        private int files = 0;
+        private long bytes = 0;
+        private final List<String> missing = new ArrayList<String>();
+        private final List<String> corrupt = new ArrayList<String>();
+
+        synchronized void checked (long size) {
+            ++files;
+            bytes += size;
+        }
+
+        synchronized void missing (String path) {
+            missing.add(path);
+        }
+
+        synchronized void corrupt (String path, String reason) {
+            corrupt.add(path + " (" + reason + ")");
+        }
+
+        /**
+         * @return How many files are fine
+         */
+        public synchronized int getFiles () {
+            return files;
+        }
+
+        /**
+         * @return How many bytes of the fine files were read
+         */
+        public synchronized long getBytes () {
+            return bytes;
+        }
+
+        /**
+         * @return The paths of the files, which are in the manifest but not
+         * in the backup
+         */
+        public synchronized List<String> getMissing () {
+            return Collections.unmodifiableList(new ArrayList<String>(missing));
+        }
+
+        /**
+         * @return The paths of the files, which differ from the manifest,
+         * with the reason
+         */
+        public synchronized List<String> getCorrupt () {
+            return Collections.unmodifiableList(new ArrayList<String>(corrupt));
+        }
+
+        /**
+         * @return true, when every file is fine
+         */
+        public synchronized boolean isValid () {
+            return missing.isEmpty() && corrupt.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.util.ArrayDeque;
+
+/**
+ * Keeps arrays for reuse, so a backup run doesn't create garbage for every
+ * block it reads or compresses. The arrays have a few fixed sizes, each four
+ * times larger than the previous one, so a small file doesn't hold an array
+ * for a large block. The pool can be used by several threads at the same
+ * time.
+ * @author Kilian Gaertner
+ */
+public class BufferPool {
+
+    private static final int SMALLEST_SIZE = 4096;
+
+    /** The size of the arrays of every class, ascending */
+    private final int[] sizes;
+    private final ArrayDeque<byte[]>[] buffers;
+    /** How many bytes the free arrays may have together */
+    private final long maxBytes;
+    private long pooledBytes = 0;
+
+    /**
+     * @param maxSize The size of the largest arrays
+     * @param maxBytes How many bytes the free arrays may have together
+     */
+    public BufferPool (int maxSize, long maxBytes) {
+        int count = 1;
+        for (long size = SMALLEST_SIZE; size < maxSize; size *= 4)
+            ++count;
+        this.sizes = new int[count];
+        for (int i = 0; i < count - 1; ++i)
+            sizes[i] = SMALLEST_SIZE << (2 * i);
+        sizes[count - 1] = maxSize;
+        // a generic array can't be created, the raw one only gets ArrayDeque<byte[]>
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        ArrayDeque<byte[]>[] deques = new ArrayDeque[count];
+        this.buffers = deques;
+        for (int i = 0; i < count; ++i)
+            buffers[i] = new ArrayDeque<byte[]>();
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param size How many bytes the array must hold at least, at most the
+     * size of the largest arrays
+     * @return A free array, it can be larger than the size and its content
+     * is undefined
+     */
+    public byte[] take (int size) {
+        int index = 0;
+        while (index < sizes.length - 1 && sizes[index] < size)
+            ++index;
+        synchronized (this) {
+            byte[] buffer = buffers[index].pollLast();
+            if (buffer != null) {
+                pooledBytes -= buffer.length;
+                return buffer;
+            }
+        }
+        return new byte[sizes[index]];
+    }
+
+    /**
+     * Gives an array back to the pool. It must not be used afterwards.
+     * @param buffer The array, arrays which weren't taken from the pool are
+     * ignored
+     */
+    public void release (byte[] buffer) {
+        if (buffer == null)
+            return;
+        for (int i = 0; i < sizes.length; ++i) {
+            if (sizes[i] != buffer.length)
+                continue;
+            synchronized (this) {
+                if (pooledBytes + buffer.length <= maxBytes) {
+                    buffers[i].addLast(buffer);
+                    pooledBytes += buffer.length;
+                }
+            }
+            return;
+        }
+    }
+
+    /**
+     * @return The size of the largest arrays
+     */
+    public int getMaxSize () {
+        return sizes[sizes.length - 1];
+    }
+}
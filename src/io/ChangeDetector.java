@@ -0,0 +1,199 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Finds out cheaply, whether the worlds changed since the last backup. The
+ * fingerprint of the worlds covers the path of every file and its size and,
+ * for a large file, its modification date. A small file is compared by its
+ * content, because the server writes the files of the players and the like
+ * with every save, even when nothing in them changed. Files like level.dat,
+ * which change with every save, can be ignored.
+ * <p>
+ * The fingerprint of the last backup and its date are stored in the meta
+ * directory of the backup folder as <code>changes.state</code>.
+ * @author Kilian Gaertner
+ */
+public class ChangeDetector {
+
+    /** The file name of the state in the meta directory */
+    public static final String FILE_NAME = "changes.state";
+    /** Files up to this size are compared by their content */
+    private static final long SMALL_FILE = 64 * FileUtils.ONE_KB;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The names of the files, which don't count as change */
+    private final Set<String> ignored = new HashSet<String>();
+
+    /**
+     * @param ignoredNames The names of the files, which don't count as change,
+     * seperated by a ; , may be null
+     */
+    public ChangeDetector (String ignoredNames) {
+        if (ignoredNames != null)
+            for (String name : ignoredNames.split(";"))
+                if (!name.trim().isEmpty())
+                    ignored.add(name.trim());
+    }
+
+    /**
+     * Creates the fingerprint of directories. It doesn't depend on the order
+     * in which the files are listed.
+     * @param dirs The worlds and the other directories of a backup
+     * @return The fingerprint, equal for unchanged directories
+     * @throws IOException when a directory can't be read
+     */
+    public long fingerprint (Collection<File> dirs) throws IOException {
+        final long[] fingerprint = new long[] { 0 };
+        final XXHash64 hash = new XXHash64();
+        final byte[] buffer = new byte[(int) SMALL_FILE];
+        for (File dir : dirs) {
+            // a missing directory is a change, when it existed before
+            final String prefix = dir.getName().concat("/");
+            fingerprint[0] += hashOf(hash, prefix, dir.isDirectory() ? 1 : 0);
+            if (!dir.isDirectory())
+                continue;
+            final Path root = dir.toPath();
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+                @Override
+                public FileVisitResult visitFile (Path file, BasicFileAttributes attrs) throws IOException {
+                    if (ignored.contains(file.getFileName().toString()))
+                        return FileVisitResult.CONTINUE;
+                    String path = prefix.concat(root.relativize(file).toString().replace(File.separatorChar, '/'));
+                    long state = attrs.lastModifiedTime().toMillis();
+                    if (attrs.size() <= SMALL_FILE) {
+                        int length = readFile(file.toFile(), buffer);
+                        hash.reset();
+                        hash.update(buffer, 0, length);
+                        state = hash.getValue();
+                    }
+                    // the sum of the hashes of the files is the same in every order
+                    fingerprint[0] += hashOf(hash, path, attrs.size()) * 31 + state;
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed (Path file, IOException exc) {
+                    // a file, which is deleted while the directory is walked, is a change anyway
+                    fingerprint[0] += hashOf(hash, file.toString(), -1);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        return fingerprint[0];
+    }
+
+    /**
+     * @return The XXHash64 of a path and a number
+     */
+    private static long hashOf (XXHash64 hash, String path, long value) {
+        byte[] bytes = path.concat("\0").concat(Long.toString(value)).getBytes(UTF8);
+        hash.reset();
+        hash.update(bytes, 0, bytes.length);
+        return hash.getValue();
+    }
+
+    /**
+     * Reads a small file into the buffer
+     * @return The count of read bytes
+     */
+    private static int readFile (File file, byte[] buffer) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int length = 0;
+            int read;
+            while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) != -1)
+                length += read;
+            return length;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the state of the last backup
+     * @param metaDir The meta directory of the backup folder
+     * @return The fingerprint and the date of the last backup, null when
+     * there is no (readable) state
+     */
+    public static long[] readState (File metaDir) {
+        File stateFile = new File(metaDir, FILE_NAME);
+        if (!stateFile.exists())
+            return null;
+        try {
+            BufferedReader bReader = new BufferedReader(new InputStreamReader(new FileInputStream(stateFile), "UTF-8"));
+            try {
+                String fingerprint = bReader.readLine();
+                String created = bReader.readLine();
+                if (fingerprint == null || created == null)
+                    return null;
+                return new long[] { XXHash64.fromHex(fingerprint.trim()), Long.parseLong(created.trim()) };
+            }
+            finally {
+                bReader.close();
+            }
+        }
+        catch (Exception e) {
+            System.out.println("[BACKUP] Can't read the state of the last backup, the next backup is created anyway.");
+            return null;
+        }
+    }
+
+    /**
+     * Stores the state of a backup, which is replaced atomically
+     * @param metaDir The meta directory of the backup folder
+     * @param fingerprint The fingerprint of the backuped directories
+     * @param created The date of the backup
+     * @throws IOException
+     */
+    public static void writeState (File metaDir, long fingerprint, long created) throws IOException {
+        metaDir.mkdirs();
+        File tempFile = new File(metaDir, FILE_NAME.concat(".tmp"));
+        BufferedWriter bWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+        try {
+            bWriter.write(XXHash64.toHex(fingerprint));
+            bWriter.newLine();
+            bWriter.write(Long.toString(created));
+            bWriter.newLine();
+        }
+        finally {
+            bWriter.close();
+        }
+        FileUtils.moveAtomically(tempFile, new File(metaDir, FILE_NAME));
+    }
+}
@@ -0,0 +1,915 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A backup repository, which stores every chunk of content only once.
+ * <p>
+ * The files are split by the FastCdcChunker. Every chunk is stored under its
+ * SHA-1 hash in <code>chunks/XX/HASH</code>, a chunk which is already stored
+ * isn't written again. A backup is a snapshot in <code>snapshots/NAME.index</code>,
+ * which lists every file with the hashes of its chunks. A file with the same
+ * size and modification date as in the previous snapshot of the series isn't
+ * read again, its chunks are taken over.
+ * <p>
+ * Chunks are stored deflated, when this makes them noticeable smaller.
+ * Chunks which aren't used by any snapshot are removed by
+ * {@link #prune(int, ExecutorService, Throttle)}. A chunk is only known as
+ * used, when the index of its snapshot is written. So a backup stores between
+ * {@link #beginStore()} and {@link #endStore()} and no chunk is removed
+ * while a backup stores.
+ * @author Kilian Gaertner
+ */
+public class ChunkRepository {
+
+    private static final int TYPE_RAW = 0;
+    private static final int TYPE_DEFLATED = 1;
+    private static final String INDEX_EXTENSION = ".index";
+    /** Keeps the backups and the sweeps of the prune apart */
+    private static final StoreLock LOCK = new StoreLock();
+
+    private final File chunkDir;
+    private final File snapshotDir;
+    /** Statistics of the current run */
+    private final AtomicLong chunksSeen = new AtomicLong();
+    private final AtomicLong chunksStored = new AtomicLong();
+    private final AtomicLong bytesSeen = new AtomicLong();
+    private final AtomicLong bytesStored = new AtomicLong();
+    /** Every worker splits and hashes its files with its own chunker and digest */
+    private final ThreadLocal<FastCdcChunker> chunkers = new ThreadLocal<FastCdcChunker>() {
+
+        @Override
+        protected FastCdcChunker initialValue () {
+            return new FastCdcChunker();
+        }
+    };
+    private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+
+        @Override
+        protected MessageDigest initialValue () {
+            return createDigest();
+        }
+    };
+
+    /**
+     * Opens a repository, the directories are created when necessary
+     * @param directory The root directory of the repository
+     */
+    public ChunkRepository (File directory) {
+        this.chunkDir = new File(directory, "chunks");
+        this.snapshotDir = new File(directory, "snapshots");
+        chunkDir.mkdirs();
+        snapshotDir.mkdirs();
+    }
+
+    /**
+     * Creates a new, empty snapshot. The last snapshot of the series is
+     * loaded, so unchanged files can take over its chunks.
+     * @param name The name of the snapshot
+     * @param series The world name or the name of the summarized backups
+     * @param custom A custom snapshot is never removed by pruning
+     * @return The snapshot
+     */
+    public Snapshot createSnapshot (String name, String series, boolean custom) {
+        Snapshot previous = null;
+        for (Snapshot snapshot : readSnapshots())
+            if (snapshot.series.equals(series) && (previous == null || snapshot.created > previous.created))
+                previous = snapshot;
+        return new Snapshot(name, series, custom, System.currentTimeMillis(), previous);
+    }
+
+    /**
+     * Has to be called before the first snapshot of a backup is created.
+     * Several backups may store at the same time. A running sweep of the
+     * prune is stopped after its current chunk directory.
+     * @throws InterruptedException when the thread is interrupted while it
+     * waits for the sweep
+     */
+    public void beginStore () throws InterruptedException {
+        LOCK.beginStore();
+    }
+
+    /**
+     * Has to be called after the indexes of the snapshots of a backup are
+     * written or the backup has failed
+     */
+    public void endStore () {
+        LOCK.endStore();
+    }
+
+    /**
+     * Stores every file of a directory in the repository and adds them to
+     * the snapshot. The calling thread walks the tree, every file becomes a
+     * task for the copy workers of the context. The reads and the writes of
+     * the chunks are limited by the throttles and the governor of the
+     * context. Can be called by several threads for the same snapshot.
+     * @param directory The directory to store
+     * @param path The path of the directory in the snapshot, empty or ending with /
+     * @param snapshot The snapshot the files are added to
+     * @param context The workers, the throttles and the governor
+     * @throws IOException
+     */
+    public void storeDirectory (File directory, String path, Snapshot snapshot, IOContext context) throws IOException {
+        new TreeStorer(directory, path, snapshot, context).store();
+    }
+
+    private void storeFile (File file, final String path, Snapshot snapshot, final IOContext context) throws IOException {
+        long size = file.length();
+        long lastModified = file.lastModified();
+        Record old = snapshot.previous != null ? snapshot.previous.records.get(path) : null;
+        if (old != null && old.size == size && old.lastModified == lastModified) {
+            snapshot.add(path, old);
+            return;
+        }
+        final List<String> chunks = new ArrayList<String>();
+        final XXHash64 hash = new XXHash64();
+        final MessageDigest digest = digests.get();
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            chunkers.get().split(fis, new FastCdcChunker.ChunkListener() {
+                @Override
+                public void chunk (byte[] data, int offset, int length) throws IOException {
+                    context.getGovernor().checkpoint();
+                    context.getReadThrottle().acquire(length);
+                    hash.update(data, offset, length);
+                    chunks.add(storeChunk(data, offset, length, digest, context));
+                }
+            });
+        }
+        finally {
+            FileUtils.closeQuietly(fis);
+        }
+        snapshot.add(path, new Record(size, lastModified, hash.getValue(), chunks.toArray(new String[chunks.size()])));
+    }
+
+    /**
+     * Stores a chunk, when it isn't already stored
+     * @return The hash of the chunk
+     */
+    private String storeChunk (byte[] data, int offset, int length, MessageDigest digest, IOContext context) throws IOException {
+        digest.update(data, offset, length);
+        String id = toHex(digest.digest());
+        chunksSeen.incrementAndGet();
+        bytesSeen.addAndGet(length);
+        File chunkFile = getChunkFile(id);
+        if (chunkFile.exists())
+            return id;
+
+        byte[] stored = data;
+        int storedOffset = offset;
+        int storedLength = length;
+        int type = TYPE_RAW;
+        byte[] deflated = deflate(data, offset, length);
+        // already compressed data like region chunks isn't worth the inflating later
+        if (deflated.length < length * 9L / 10) {
+            stored = deflated;
+            storedOffset = 0;
+            storedLength = deflated.length;
+            type = TYPE_DEFLATED;
+        }
+        context.getWriteThrottle().acquire(storedLength + 1);
+        chunkFile.getParentFile().mkdirs();
+        // write to a temporary file first, a chunk file is always complete
+        File tempFile = new File(chunkFile.getPath().concat(".").concat(Thread.currentThread().getName()).concat(".tmp"));
+        FileOutputStream fos = new FileOutputStream(tempFile);
+        try {
+            fos.write(type);
+            fos.write(stored, storedOffset, storedLength);
+        }
+        finally {
+            fos.close();
+        }
+        FileUtils.moveAtomically(tempFile, chunkFile);
+        chunksStored.incrementAndGet();
+        bytesStored.addAndGet(storedLength + 1);
+        return id;
+    }
+
+    /**
+     * Reads a stored chunk and checks its hash
+     * @param id The hash of the chunk
+     * @return The content of the chunk
+     * @throws IOException when the chunk is missing or damaged
+     */
+    public byte[] readChunk (String id) throws IOException {
+        File chunkFile = getChunkFile(id);
+        byte[] stored = new byte[(int) chunkFile.length()];
+        FileInputStream fis = new FileInputStream(chunkFile);
+        try {
+            int length = 0;
+            while (length < stored.length) {
+                int read = fis.read(stored, length, stored.length - length);
+                if (read == -1)
+                    throw new IOException("The chunk " + id + " is truncated");
+                length += read;
+            }
+        }
+        finally {
+            fis.close();
+        }
+        if (stored.length == 0)
+            throw new IOException("The chunk " + id + " is empty");
+        byte[] data;
+        if (stored[0] == TYPE_RAW)
+            data = Arrays.copyOfRange(stored, 1, stored.length);
+        else if (stored[0] == TYPE_DEFLATED)
+            data = inflate(stored, 1, stored.length - 1, id);
+        else
+            throw new IOException("The chunk " + id + " has an unknown type");
+        MessageDigest digest = createDigest();
+        if (!toHex(digest.digest(data)).equals(id))
+            throw new IOException("The chunk " + id + " is damaged");
+        return data;
+    }
+
+    /**
+     * Writes the index of a snapshot, after this the snapshot is part of the
+     * repository
+     * @param snapshot The snapshot with all its files
+     * @throws IOException
+     */
+    public void writeSnapshot (Snapshot snapshot) throws IOException {
+        File file = new File(snapshotDir, snapshot.name.concat(INDEX_EXTENSION));
+        File tempFile = new File(file.getPath().concat(".tmp"));
+        BufferedWriter bWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+        try {
+            bWriter.write("name=" + snapshot.name);
+            bWriter.newLine();
+            bWriter.write("series=" + snapshot.series);
+            bWriter.newLine();
+            bWriter.write("custom=" + snapshot.custom);
+            bWriter.newLine();
+            bWriter.write("created=" + snapshot.created);
+            bWriter.newLine();
+            synchronized (snapshot) {
+                for (Map.Entry<String, Record> entry : snapshot.records.entrySet()) {
+                    Record record = entry.getValue();
+                    StringBuilder line = new StringBuilder("F\t");
+                    line.append(entry.getKey()).append('\t').append(record.size).append('\t');
+                    line.append(record.lastModified).append('\t').append(XXHash64.toHex(record.hash)).append('\t');
+                    for (int i = 0; i < record.chunks.length; ++i) {
+                        if (i > 0)
+                            line.append(',');
+                        line.append(record.chunks[i]);
+                    }
+                    bWriter.write(line.toString());
+                    bWriter.newLine();
+                }
+            }
+        }
+        finally {
+            bWriter.close();
+        }
+        FileUtils.moveAtomically(tempFile, file);
+    }
+
+    /**
+     * Removes the oldest snapshots, which are not custom ones, and every chunk
+     * which isn't used any longer. Every chunk directory is swept by one task
+     * of the workers. The snapshots are read, when no backup stores. When a
+     * backup starts while the chunks are swept, the sweep stops, the rest of
+     * the unused chunks is removed by the next prune.
+     * @param maxSnapshots How many normal snapshots are kept
+     * @param workers The threads, which delete the chunks
+     * @param throttle Limits the deletes, every chunk takes one unit of it
+     * @throws IOException when the sweep fails or is interrupted
+     */
+    public void prune (int maxSnapshots, ExecutorService workers, final Throttle throttle) throws IOException {
+        final long generation;
+        final long[] sorted;
+        try {
+            generation = LOCK.beginMark();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the backups");
+        }
+        try {
+            List<Snapshot> snapshots = readSnapshots();
+            List<Snapshot> normal = new ArrayList<Snapshot>();
+            for (Snapshot snapshot : snapshots)
+                if (!snapshot.custom)
+                    normal.add(snapshot);
+            if (normal.size() <= maxSnapshots)
+                return;
+            Collections.sort(normal, new Comparator<Snapshot>() {
+                @Override
+                public int compare (Snapshot s1, Snapshot s2) {
+                    return s1.created < s2.created ? -1 : (s1.created == s2.created ? 0 : 1);
+                }
+            });
+            List<Snapshot> toDelete = normal.subList(0, normal.size() - maxSnapshots);
+            List<String> names = new ArrayList<String>();
+            for (Snapshot snapshot : toDelete) {
+                new File(snapshotDir, snapshot.name.concat(INDEX_EXTENSION)).delete();
+                names.add(snapshot.name);
+            }
+            System.out.println("[BACKUP] Removing the following snapshots due to age:");
+            System.out.println(names);
+            snapshots.removeAll(toDelete);
+
+            // mark every used chunk by the first 60 bits of its hash, a collision only keeps an unused chunk
+            LongList used = new LongList();
+            for (Snapshot snapshot : snapshots)
+                for (Record record : snapshot.records.values())
+                    for (String chunk : record.chunks)
+                        used.add(Long.parseLong(chunk.substring(0, 15), 16));
+            sorted = used.toSortedArray();
+        }
+        finally {
+            LOCK.endSweep();
+        }
+
+        // sweep every chunk which isn't marked
+        File[] dirs = chunkDir.listFiles();
+        if (dirs == null)
+            return;
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        List<Future<Integer>> sweeps = new ArrayList<Future<Integer>>(dirs.length);
+        for (final File dir : dirs)
+            sweeps.add(workers.submit(new Callable<Integer>() {
+
+                @Override
+                public Integer call () throws IOException {
+                    int removed = 0;
+                    // a backup may use chunks, which aren't marked
+                    if (!LOCK.beginSweep(generation)) {
+                        stopped.set(true);
+                        return removed;
+                    }
+                    try {
+                        File[] chunkFiles = dir.listFiles();
+                        if (chunkFiles == null)
+                            return removed;
+                        for (File chunkFile : chunkFiles) {
+                            String id = chunkFile.getName();
+                            if (id.length() != 40 || Arrays.binarySearch(sorted, Long.parseLong(id.substring(0, 15), 16)) >= 0)
+                                continue;
+                            throttle.pace(1);
+                            if (chunkFile.delete())
+                                ++removed;
+                        }
+                        return removed;
+                    }
+                    finally {
+                        LOCK.endSweep();
+                    }
+                }
+            }));
+        int removed = 0;
+        try {
+            for (Future<Integer> sweep : sweeps)
+                removed += sweep.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the sweep of the chunks");
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Failed to remove the unused chunks", e.getCause());
+        }
+        finally {
+            for (Future<Integer> sweep : sweeps)
+                sweep.cancel(true);
+        }
+        System.out.println("[BACKUP] Removed " + removed + " unused chunks from the repository.");
+        if (stopped.get())
+            System.out.println("[BACKUP] A backup has started, the other unused chunks are removed by the next prune.");
+    }
+
+    /**
+     * Reads every stored chunk again and compares its SHA-1 hash with its
+     * file name. A damaged chunk breaks every snapshot, which uses it. Every
+     * chunk directory is read by one task of the readers.
+     * @param readers The threads, which read the chunks
+     * @param throttle Limits the bytes per second of the reads
+     * @return Every fine chunk counts as a file, the damaged ones are corrupt
+     * @throws IOException when the scrub is interrupted
+     */
+    public BackupVerifier.Result scrub (ExecutorService readers, final Throttle throttle) throws IOException {
+        final BackupVerifier.Result result = new BackupVerifier.Result();
+        File[] dirs = chunkDir.listFiles();
+        if (dirs == null)
+            return result;
+        List<Future<Void>> scrubs = new ArrayList<Future<Void>>(dirs.length);
+        for (final File dir : dirs)
+            scrubs.add(readers.submit(new Callable<Void>() {
+
+                @Override
+                public Void call () throws IOException {
+                    File[] chunkFiles = dir.listFiles();
+                    if (chunkFiles == null)
+                        return null;
+                    for (File chunkFile : chunkFiles) {
+                        String id = chunkFile.getName();
+                        // the temporary files of a running backup
+                        if (id.length() != 40)
+                            continue;
+                        long length = chunkFile.length();
+                        throttle.acquire(length);
+                        try {
+                            readChunk(id);
+                            result.checked(length);
+                        }
+                        catch (IOException e) {
+                            if (e instanceof InterruptedIOException)
+                                throw e;
+                            // removed by a prune in the meantime
+                            if (chunkFile.exists())
+                                result.corrupt(id, e.getMessage());
+                        }
+                    }
+                    return null;
+                }
+            }));
+        try {
+            for (Future<Void> scrub : scrubs)
+                scrub.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the scrub of the chunks");
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Failed to scrub the chunks", e.getCause());
+        }
+        finally {
+            for (Future<Void> scrub : scrubs)
+                scrub.cancel(true);
+        }
+        return result;
+    }
+
+    /**
+     * Prints how many chunks of the current run were new
+     */
+    public void printStatistics () {
+        System.out.println("[BACKUP] Stored " + chunksStored.get() + " new chunks of " + chunksSeen.get()
+                + " read chunks (" + (bytesStored.get() / FileUtils.ONE_KB) + " KB written for "
+                + (bytesSeen.get() / FileUtils.ONE_KB) + " KB read).");
+    }
+
+    /**
+     * @return Every snapshot of the repository, damaged ones are skipped
+     */
+    public List<Snapshot> readSnapshots () {
+        List<Snapshot> snapshots = new ArrayList<Snapshot>();
+        File[] files = snapshotDir.listFiles();
+        if (files == null)
+            return snapshots;
+        for (File file : files) {
+            if (!file.getName().endsWith(INDEX_EXTENSION))
+                continue;
+            try {
+                snapshots.add(readSnapshot(file));
+            }
+            catch (IOException e) {
+                System.out.println("[BACKUP] Can't read the snapshot " + file);
+                e.printStackTrace(System.out);
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * @param name The name of the snapshot
+     * @return The snapshot, null when there is none
+     * @throws IOException when the index of the snapshot is damaged
+     */
+    public Snapshot findSnapshot (String name) throws IOException {
+        File file = new File(snapshotDir, name.concat(INDEX_EXTENSION));
+        return file.isFile() ? readSnapshot(file) : null;
+    }
+
+    private Snapshot readSnapshot (File file) throws IOException {
+        BufferedReader bReader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String name = null, series = null;
+            boolean custom = false;
+            Snapshot snapshot = null;
+            String line;
+            while ((line = bReader.readLine()) != null) {
+                if (snapshot == null) {
+                    if (line.startsWith("name="))
+                        name = line.substring(5);
+                    else if (line.startsWith("series="))
+                        series = line.substring(7);
+                    else if (line.startsWith("custom="))
+                        custom = Boolean.parseBoolean(line.substring(7));
+                    else if (line.startsWith("created=")) {
+                        if (name == null || series == null)
+                            throw new IOException("The snapshot " + file + " has no name or series");
+                        snapshot = new Snapshot(name, series, custom, Long.parseLong(line.substring(8)), null);
+                    }
+                    continue;
+                }
+                String[] split = line.split("\t");
+                if (!split[0].equals("F") || split.length < 5)
+                    throw new IOException("The snapshot " + file + " contains an invalid line: " + line);
+                String[] chunks = split.length == 6 ? split[5].split(",") : new String[0];
+                snapshot.records.put(split[1], new Record(Long.parseLong(split[2]), Long.parseLong(split[3]), XXHash64.fromHex(split[4]), chunks));
+            }
+            if (snapshot == null)
+                throw new IOException("The snapshot " + file + " is incomplete");
+            return snapshot;
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("The snapshot " + file + " is damaged", e);
+        }
+        finally {
+            bReader.close();
+        }
+    }
+
+    private File getChunkFile (String id) {
+        return new File(new File(chunkDir, id.substring(0, 2)), id);
+    }
+
+    private static MessageDigest createDigest () {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // every java platform has to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] deflate (byte[] data, int offset, int length) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[16 * 1024];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate (byte[] data, int offset, int length, String id) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length * 2);
+            byte[] buffer = new byte[16 * 1024];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("The chunk " + id + " is truncated");
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        }
+        catch (DataFormatException e) {
+            throw new IOException("The chunk " + id + " is damaged", e);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    private static String toHex (byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            hex[i * 2] = digits[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = digits[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Keeps the backups and the sweeps of the prune apart. Several backups
+     * may store at the same time and several chunk directories may be swept
+     * at the same time, but never both. Every backup, which wants to store,
+     * counts up the generation, so the sweeps, which are based on an older
+     * mark of the used chunks, stop.
+     */
+    private static class StoreLock {
+
+        private int storing = 0;
+        private int sweeping = 0;
+        private long generation = 0;
+
+        private synchronized void beginStore () throws InterruptedException {
+            ++generation;
+            while (sweeping > 0)
+                wait();
+            ++storing;
+        }
+
+        private synchronized void endStore () {
+            --storing;
+            notifyAll();
+        }
+
+        /**
+         * Waits until no backup stores
+         * @return The generation of the mark
+         */
+        private synchronized long beginMark () throws InterruptedException {
+            while (storing > 0)
+                wait();
+            ++sweeping;
+            return generation;
+        }
+
+        /**
+         * @return false, when a backup wanted to store since the mark
+         */
+        private synchronized boolean beginSweep (long markGeneration) {
+            if (generation != markGeneration)
+                return false;
+            ++sweeping;
+            return true;
+        }
+
+        private synchronized void endSweep () {
+            --sweeping;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Walks a directory tree and stores every file on the copy workers of
+     * the context, like the TreeCopier does for a copy
+     */
+    private class TreeStorer extends SimpleFileVisitor<Path> {
+
+        /** How many store tasks may wait for a worker, the walk waits for them otherwise */
+        private static final int MAX_PENDING = 1024;
+
+        private final Path root;
+        private final String rootPath;
+        private final Snapshot snapshot;
+        private final IOContext context;
+        private final Semaphore pending = new Semaphore(MAX_PENDING);
+        /** The paths of the walked directories in the snapshot, the deepest first */
+        private final LinkedList<String> paths = new LinkedList<String>();
+        /** The first error of a store task */
+        private volatile Throwable error = null;
+
+        private TreeStorer (File directory, String path, Snapshot snapshot, IOContext context) {
+            this.root = directory.toPath();
+            this.rootPath = path;
+            this.snapshot = snapshot;
+            this.context = context;
+        }
+
+        /**
+         * Stores the tree and waits until every file is stored
+         * @throws IOException when a file or directory can't be read or a
+         * chunk can't be written
+         */
+        private void store () throws IOException {
+            try {
+                Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, this);
+            }
+            finally {
+                // the tasks must not add files to the snapshot after the method has returned
+                try {
+                    pending.acquire(MAX_PENDING);
+                    pending.release(MAX_PENDING);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the stores");
+                }
+            }
+            Throwable failure = error;
+            if (failure instanceof IOException)
+                throw (IOException) failure;
+            if (failure != null)
+                throw new IOException("Failed to store " + root, failure);
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory (Path dir, BasicFileAttributes attrs) {
+            if (error != null)
+                return FileVisitResult.TERMINATE;
+            paths.addFirst(dir.equals(root) ? rootPath : paths.getFirst().concat(dir.getFileName().toString()).concat("/"));
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory (Path dir, IOException exc) throws IOException {
+            if (exc != null)
+                throw exc;
+            paths.removeFirst();
+            return error != null ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile (Path file, BasicFileAttributes attrs) throws IOException {
+            if (error != null)
+                return FileVisitResult.TERMINATE;
+            final File srcFile = file.toFile();
+            final String filePath = paths.getFirst().concat(file.getFileName().toString());
+            try {
+                pending.acquire();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the stores");
+            }
+            context.getCopyPool().execute(new Runnable() {
+
+                @Override
+                public void run () {
+                    try {
+                        if (error == null)
+                            storeFile(srcFile, filePath, snapshot, context);
+                    }
+                    catch (Throwable t) {
+                        synchronized (TreeStorer.this) {
+                            if (error == null)
+                                error = t;
+                        }
+                    }
+                    finally {
+                        pending.release();
+                    }
+                }
+            });
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed (Path file, IOException exc) throws IOException {
+            if (exc instanceof FileSystemLoopException) {
+                // a link to a parent directory would be stored endlessly
+                System.out.println("[BACKUP] Skipping " + file + ", because it links to one of its parent directories");
+                return FileVisitResult.CONTINUE;
+            }
+            throw exc;
+        }
+    }
+
+    /**
+     * A backup in the repository
+     */
+    public static class Snapshot {
+
+        private final String name;
+        private final String series;
+        private final boolean custom;
+        private final long created;
+        private final Map<String, Record> records = new TreeMap<String, Record>();
+        /** The previous snapshot of the series, only known while the backup runs */
+        private final Snapshot previous;
+
+        private Snapshot (String name, String series, boolean custom, long created, Snapshot previous) {
+            this.name = name;
+            this.series = series;
+            this.custom = custom;
+            this.created = created;
+            this.previous = previous;
+        }
+
+        private synchronized void add (String path, Record record) {
+            records.put(path, record);
+        }
+
+        public String getName () {
+            return name;
+        }
+
+        public String getSeries () {
+            return series;
+        }
+
+        public long getCreated () {
+            return created;
+        }
+
+        /**
+         * @return Every file of the snapshot, mapped by its path
+         */
+        public synchronized Map<String, Record> getRecords () {
+            return Collections.unmodifiableMap(records);
+        }
+    }
+
+    /**
+     * A file in a snapshot
+     */
+    public static class Record {
+
+        private final long size;
+        private final long lastModified;
+        private final long hash;
+        /** The hashes of the chunks in the order of the content */
+        private final String[] chunks;
+
+        private Record (long size, long lastModified, long hash, String[] chunks) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.chunks = chunks;
+        }
+
+        public long getSize () {
+            return size;
+        }
+
+        public long getLastModified () {
+            return lastModified;
+        }
+
+        /**
+         * @return The XXHash64 of the whole file
+         */
+        public long getHash () {
+            return hash;
+        }
+
+        public List<String> getChunks () {
+            return Collections.unmodifiableList(Arrays.asList(chunks));
+        }
+    }
+
+    /**
+     * A growing list of primitive longs, which needs much less memory than a
+     * set of strings for the mark phase of the pruning
+     */
+    private static class LongList {
+
+        private long[] values = new long[1024];
+        private int size = 0;
+
+        private void add (long value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        private long[] toSortedArray () {
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
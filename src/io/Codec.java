@@ -0,0 +1,238 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * A compression method of the archive entries. A file is compressed in
+ * blocks, every block gets the previous block as history, so the blocks of
+ * a file form one stream of the method. The blocks are compressed into
+ * arrays given by the caller, so the codecs don't create garbage. Every
+ * codec counts the bytes it has compressed and the time it needed for it.
+ * @author Kilian Gaertner
+ */
+public abstract class Codec {
+
+    /** The ZIP method for stored entries */
+    public static final int METHOD_STORED = 0;
+    /** The ZIP method for deflated entries */
+    public static final int METHOD_DEFLATED = 8;
+
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+
+    /**
+     * Creates a codec from its configuration
+     * @param spec <code>store</code>, <code>deflate</code> or
+     * <code>deflate:LEVEL</code> with a level from 1 to 9
+     * @return The codec
+     * @throws IllegalArgumentException when the spec is unknown
+     */
+    public static Codec parse (String spec) {
+        spec = spec.trim().toLowerCase();
+        if (spec.equals("store"))
+            return new Store();
+        if (spec.equals("deflate"))
+            return new Deflate(Deflater.DEFAULT_COMPRESSION);
+        if (spec.startsWith("deflate:")) {
+            try {
+                int level = Integer.parseInt(spec.substring(8));
+                if (level >= 1 && level <= 9)
+                    return new Deflate(level);
+            }
+            catch (NumberFormatException e) {
+            }
+        }
+        throw new IllegalArgumentException("Unknown compression " + spec + ", use store, deflate or deflate:1 to deflate:9");
+    }
+
+    /**
+     * @param length The size of a raw block
+     * @return The size an array needs to hold the block compressed by any
+     * codec
+     */
+    public static int getBound (int length) {
+        // deflate adds a few bytes for every stored block and the sync flush
+        return length + length / 8 + 1024;
+    }
+
+    /**
+     * Compresses a block of a file and counts it
+     * @param data The raw data of the block
+     * @param length The count of bytes in the data
+     * @param dictionary The raw data of the previous block, null for the
+     * first block
+     * @param dictionaryEnd The count of bytes in the previous block
+     * @param last Is this the last block of the file
+     * @param output Gets the compressed block, it must have the size of
+     * getBound(length). It may be the data itself for a stored block.
+     * @return The count of compressed bytes in the output
+     */
+    public int compressBlock (byte[] data, int length, byte[] dictionary, int dictionaryEnd, boolean last, byte[] output) {
+        long start = System.nanoTime();
+        int compressed = compress(data, length, dictionary, dictionaryEnd, last, output);
+        nanos.addAndGet(System.nanoTime() - start);
+        rawBytes.addAndGet(length);
+        compressedBytes.addAndGet(compressed);
+        return compressed;
+    }
+
+    protected abstract int compress (byte[] data, int length, byte[] dictionary, int dictionaryEnd, boolean last, byte[] output);
+
+    /**
+     * Frees the native resources of the codec, it can't be used afterwards
+     */
+    public void close () {
+    }
+
+    /**
+     * @return The ZIP method of the entries
+     */
+    public abstract int getMethod ();
+
+    /**
+     * @return true, when the codec only copies the data
+     */
+    public boolean isStore () {
+        return getMethod() == METHOD_STORED;
+    }
+
+    /**
+     * @return The name like it is configured
+     */
+    public abstract String getName ();
+
+    /**
+     * @return The count of raw bytes and compressed bytes and the time the
+     * compression took, or null, when nothing was compressed
+     */
+    public String getStatistics () {
+        long raw = rawBytes.get();
+        if (raw == 0)
+            return null;
+        long compressed = compressedBytes.get();
+        String sizes = String.format("%s: %.1f MB to %.1f MB (%.1f %%)", getName(),
+                raw / (double) FileUtils.ONE_MB, compressed / (double) FileUtils.ONE_MB, compressed * 100.0 / raw);
+        // storing is only a copy, its speed says nothing
+        if (isStore())
+            return sizes;
+        double seconds = Math.max(nanos.get(), 1) / 1000000000.0;
+        return sizes.concat(String.format(", %.1f MB/s per thread", raw / (double) FileUtils.ONE_MB / seconds));
+    }
+
+    /**
+     * Stores the data without compression, for data which is already
+     * compressed like the chunks in the region files
+     */
+    public static class Store extends Codec {
+
+        @Override
+        protected int compress (byte[] data, int length, byte[] dictionary, int dictionaryEnd, boolean last, byte[] output) {
+            if (output != data)
+                System.arraycopy(data, 0, output, 0, length);
+            return length;
+        }
+
+        @Override
+        public int getMethod () {
+            return METHOD_STORED;
+        }
+
+        @Override
+        public String getName () {
+            return "store";
+        }
+    }
+
+    /**
+     * Deflates the data. A block is deflated with the end of the previous
+     * block as dictionary and ends with a sync flush, so the blocks form one
+     * normal deflate stream (like pigz does it).
+     */
+    public static class Deflate extends Codec {
+
+        /** The size of the history a deflate stream can refer to */
+        private static final int DICTIONARY_SIZE = 32 * 1024;
+
+        private final int level;
+        /** The free deflaters, a deflater is reused for the next block */
+        private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+
+        /**
+         * @param level The deflate level
+         */
+        public Deflate (int level) {
+            this.level = level;
+        }
+
+        @Override
+        protected int compress (byte[] data, int length, byte[] dictionary, int dictionaryEnd, boolean last, byte[] output) {
+            Deflater deflater = deflaters.poll();
+            if (deflater == null)
+                deflater = new Deflater(level, true);
+            try {
+                if (dictionary != null) {
+                    int dictionaryLength = Math.min(DICTIONARY_SIZE, dictionaryEnd);
+                    deflater.setDictionary(dictionary, dictionaryEnd - dictionaryLength, dictionaryLength);
+                }
+                deflater.setInput(data, 0, length);
+                int count = 0;
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished() && count < output.length)
+                        count += deflater.deflate(output, count, output.length - count);
+                    if (!deflater.finished())
+                        throw new IllegalStateException("The deflated block is larger than its bound");
+                }
+                else {
+                    // a sync flush ends the block on a byte boundary without ending the stream
+                    count = deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH);
+                    // a full output could mean, that there is still something to flush
+                    if (count == output.length)
+                        throw new IllegalStateException("The deflated block is larger than its bound");
+                }
+                return count;
+            }
+            finally {
+                deflater.reset();
+                deflaters.offer(deflater);
+            }
+        }
+
+        @Override
+        public void close () {
+            Deflater deflater;
+            while ((deflater = deflaters.poll()) != null)
+                deflater.end();
+        }
+
+        @Override
+        public int getMethod () {
+            return METHOD_DEFLATED;
+        }
+
+        @Override
+        public String getName () {
+            return level == Deflater.DEFAULT_COMPRESSION ? "deflate" : "deflate:" + level;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Selects the codec of an archive entry by its path. A rule is a directory
+ * name like <code>region/</code> and a codec, it matches every entry in a
+ * directory with this name at any depth. The first matching rule wins, the
+ * other entries get the default codec.
+ * @author Kilian Gaertner
+ */
+public class CodecRules {
+
+    private final Codec defaultCodec;
+    private final Map<String, Codec> rules = new LinkedHashMap<String, Codec>();
+    /** Every codec once, for the statistics */
+    private final List<Codec> codecs = new ArrayList<Codec>();
+
+    /**
+     * @param defaultCodec The codec of the entries without a matching rule,
+     * null is deflate
+     * @param rules The rules like <code>region/=store;players/=deflate:9</code>,
+     * invalid rules are reported and ignored
+     */
+    public CodecRules (String defaultCodec, String rules) {
+        Codec fallback;
+        try {
+            fallback = Codec.parse(defaultCodec == null ? "deflate" : defaultCodec);
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println("[BACKUP] " + e.getMessage() + ". Deflate is used.");
+            fallback = Codec.parse("deflate");
+        }
+        this.defaultCodec = register(fallback);
+        if (rules == null)
+            return;
+        for (String rule : rules.split(";")) {
+            if (rule.trim().isEmpty())
+                continue;
+            String[] split = rule.split("=");
+            try {
+                if (split.length != 2)
+                    throw new IllegalArgumentException("Invalid compression rule " + rule);
+                String dir = split[0].trim();
+                if (!dir.endsWith("/"))
+                    dir = dir.concat("/");
+                this.rules.put(dir, register(Codec.parse(split[1])));
+            }
+            catch (IllegalArgumentException e) {
+                System.out.println("[BACKUP] " + e.getMessage() + ". The rule is ignored.");
+            }
+        }
+    }
+
+    /**
+     * @return A codec with the same name, when there is already one
+     */
+    private Codec register (Codec codec) {
+        for (Codec known : codecs)
+            if (known.getName().equals(codec.getName()))
+                return known;
+        codecs.add(codec);
+        return codec;
+    }
+
+    /**
+     * @param path The path of the entry, directories are seperated by a /
+     * @return The codec for the entry
+     */
+    public Codec select (String path) {
+        for (Map.Entry<String, Codec> rule : rules.entrySet()) {
+            String dir = rule.getKey();
+            if (path.startsWith(dir) || path.contains("/".concat(dir)))
+                return rule.getValue();
+        }
+        return defaultCodec;
+    }
+
+    /**
+     * Prints the ratio and the throughput of every used codec
+     */
+    public void printStatistics () {
+        for (Codec codec : codecs) {
+            String statistics = codec.getStatistics();
+            if (statistics != null)
+                System.out.println("[BACKUP] Compression ".concat(statistics));
+        }
+    }
+
+    /**
+     * Frees the native resources of every codec
+     */
+    public void close () {
+        for (Codec codec : codecs)
+            codec.close();
+    }
+}
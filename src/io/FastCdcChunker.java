@@ -0,0 +1,123 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a stream into chunks at positions, which depend only on the content
+ * around them (content defined chunking, like FastCDC). When some bytes of a
+ * file change, only the chunks around the change are different, all other
+ * chunks stay the same and don't have to be stored again.
+ * <p>
+ * A rolling gear hash is computed over the bytes. A chunk ends where the hash
+ * matches a mask. Before the average size a harder mask is used, after it an
+ * easier one, so the chunk sizes gather around the average size.
+ * @author Kilian Gaertner
+ */
+public class FastCdcChunker {
+
+    public static final int MIN_SIZE = 16 * 1024;
+    public static final int AVERAGE_SIZE = 64 * 1024;
+    public static final int MAX_SIZE = 256 * 1024;
+    /** 18 bits, used before the average size is reached */
+    private static final long MASK_HARD = 0xFFFFC00000000000L;
+    /** 14 bits, used after the average size is reached */
+    private static final long MASK_EASY = 0xFFFC000000000000L;
+    /** The random values for every byte. They must never change, otherwise
+     * the chunks of the stored backups can't be found again. */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // SplitMix64 with a fixed seed
+        long seed = 0x4261636B75704344L;
+        for (int i = 0; i < GEAR.length; ++i) {
+            seed += 0x9E3779B97F4A7C15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final byte[] buffer = new byte[MAX_SIZE];
+
+    /**
+     * Splits the stream into chunks
+     * @param in The stream to split, it isn't closed
+     * @param listener Gets every chunk in order
+     * @throws IOException when the stream can't be read or the listener fails
+     */
+    public void split (InputStream in, ChunkListener listener) throws IOException {
+        int filled = 0;
+        boolean eof = false;
+        while (true) {
+            while (!eof && filled < buffer.length) {
+                int read = in.read(buffer, filled, buffer.length - filled);
+                if (read == -1)
+                    eof = true;
+                else
+                    filled += read;
+            }
+            if (filled == 0)
+                return;
+            int cut = cut(buffer, filled);
+            listener.chunk(buffer, 0, cut);
+            filled -= cut;
+            System.arraycopy(buffer, cut, buffer, 0, filled);
+        }
+    }
+
+    /**
+     * @return The length of the next chunk at the start of the buffer
+     */
+    private static int cut (byte[] data, int length) {
+        if (length <= MIN_SIZE)
+            return length;
+        int end = Math.min(length, MAX_SIZE);
+        int normal = Math.min(end, AVERAGE_SIZE);
+        long hash = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; ++i) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            if ((hash & MASK_HARD) == 0)
+                return i + 1;
+        }
+        for (; i < end; ++i) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            if ((hash & MASK_EASY) == 0)
+                return i + 1;
+        }
+        return end;
+    }
+
+    /**
+     * Gets the chunks of a stream
+     */
+    public interface ChunkListener {
+
+        /**
+         * @param data The buffer with the chunk, it is reused after the call
+         * @param offset The start of the chunk
+         * @param length The length of the chunk
+         * @throws IOException
+         */
+        public void chunk (byte[] data, int offset, int length) throws IOException;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decides which files of a directory are stored by a copy or an archive and
+ * gets informed about every stored file. The methods can be called by
+ * several threads at the same time.
+ * @author Kilian Gaertner
+ */
+public interface FileTracker {
+
+    /**
+     * @param path The path of the file in the backup, directories are
+     * seperated by a /
+     * @param file The file to store
+     * @return true, when the file has to be stored
+     */
+    public boolean accept (String path, File file);
+
+    /**
+     * Called for every accepted file before it is stored
+     * @param path The path of the file in the backup
+     * @param file The file to store
+     * @return The content which is stored instead of the file, null to store
+     * the file itself
+     * @throws IOException when the file can't be read
+     */
+    public Replacement replace (String path, File file) throws IOException;
+
+    /**
+     * Called after a file was stored
+     * @param path The path of the file in the backup
+     * @param file The stored file
+     * @param hash The XXHash64 of the stored content
+     */
+    public void stored (String path, File file, long hash);
+
+    /**
+     * A content which is stored instead of a file, for example a delta to
+     * the previous backup
+     */
+    public static class Replacement {
+
+        private final String suffix;
+        private final byte[] content;
+        private final long hash;
+
+        /**
+         * @param suffix Appended to the name of the file in the backup
+         * @param content The stored content
+         * @param hash The XXHash64 of the file, not of the stored content
+         */
+        public Replacement (String suffix, byte[] content, long hash) {
+            this.suffix = suffix;
+            this.content = content;
+            this.hash = hash;
+        }
+
+        public String getSuffix () {
+            return suffix;
+        }
+
+        public byte[] getContent () {
+            return content;
+        }
+
+        public long getHash () {
+            return hash;
+        }
+    }
+}
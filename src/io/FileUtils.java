@@ -19,16 +19,26 @@ package io;
 
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.ArrayList;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 /**
  * General file manipulation utilities.
@@ -86,16 +96,16 @@ public class FileUtils {
      */
     private static final long FIFTY_MB = ONE_MB * 50;
     /**
-     * The number of bytes in a gigabyte.
+     * The bytes of the write throttle a deleted file or directory takes.
      */
+    private static final long DELETE_COST = ONE_KB * 4;
     /**
-     * The system separator character.
+     * Files from this size on get an event of the flight recorder.
      */
-    private static final char SYSTEM_SEPARATOR = File.separatorChar;
+    private static final long LARGE_FILE = ONE_MB;
     /**
-     * The Windows separator character.
+     * The number of bytes in a gigabyte.
      */
-    private static final char WINDOWS_SEPARATOR = '\\';
 
     /**
      * Copies a whole directory to a new location preserving the file dates.
@@ -126,6 +136,51 @@ public class FileUtils {
         copyDirectory(new File(srcDir), new File(destDir), true);
     }
 
+    /**
+     * Copies a whole directory to a new location preserving the file dates.
+     * Only the files accepted by the tracker are copied, the tracker gets the
+     * hash of every copied file.
+     *
+     * @param srcDir  an existing directory to copy, must not be <code>null</code>
+     * @param destDir  the new directory, must not be <code>null</code>
+     * @param path  the path of the directory in the backup, empty or ending with a /
+     * @param tracker  decides which files are copied, null means copy all files
+     * @param context  throttles the reads and writes, may be null
+     *
+     * @throws NullPointerException if source or destination is <code>null</code>
+     * @throws IOException if source or destination is invalid
+     * @throws IOException if an IO error occurs during copying
+     */
+    public static void copyDirectory (String srcDir, String destDir, String path, FileTracker tracker, IOContext context) throws IOException {
+        copyDirectory(new File(srcDir), new File(destDir), true, path, tracker, null, context);
+    }
+
+    /**
+     * Copies a whole directory to a new location preserving the file dates.
+     * Files which are unchanged since the previous copy (same size and
+     * modification date) are hard linked to the file of the previous copy,
+     * like rsync --link-dest does it. Every copy is a complete directory, but
+     * an unchanged file uses its disc space only once.
+     * <p>
+     * The tracker of a snapshot decides which files are unchanged and gets
+     * the hash of every copied file. A file, which is linked without being
+     * accepted, isn't read at all.
+     *
+     * @param srcDir  an existing directory to copy, must not be <code>null</code>
+     * @param destDir  the new directory, must not be <code>null</code>
+     * @param path  the path of the directory in the backup, empty or ending with a /
+     * @param tracker  decides which files are unchanged, null to compare them with the previous copy
+     * @param linkDir  the previous copy of the directory, may be null
+     * @param context  throttles the reads and writes, may be null
+     *
+     * @throws NullPointerException if source or destination is <code>null</code>
+     * @throws IOException if source or destination is invalid
+     * @throws IOException if an IO error occurs during copying
+     */
+    public static void copyDirectory (String srcDir, String destDir, String path, FileTracker tracker, File linkDir, IOContext context) throws IOException {
+        copyDirectory(new File(srcDir), new File(destDir), true, path, tracker, linkDir, context);
+    }
+
     /**
      * Copies a whole directory to a new location.
      * <p>
@@ -154,14 +209,16 @@ public class FileUtils {
      */
     private static void copyDirectory (File srcDir, File destDir,
                                        boolean preserveFileDate) throws IOException {
-        copyDirectory(srcDir, destDir, null, preserveFileDate);
+        copyDirectory(srcDir, destDir, preserveFileDate, "", null, null, null);
     }
 
     /**
-     * Copies a filtered directory to a new location.
+     * Copies a directory to a new location.
      * <p>
      * This method copies the contents of the specified source directory
-     * to within the specified destination directory.
+     * to within the specified destination directory. The tree is walked by
+     * the calling thread, the files are copied by the copy workers of the
+     * context.
      * <p>
      * The destination directory is created if it does not exist.
      * If the destination directory did exist, then this method merges
@@ -173,30 +230,15 @@ public class FileUtils {
      * not guaranteed that those operations will succeed.
      * If the modification operation fails, no indication is provided.
      *
-     * <h4>Example: Copy directories only</h4>
-     *  <pre>
-     *  // only copy the directory structure
-     *  FileUtils.copyDirectory(srcDir, destDir, DirectoryFileFilter.DIRECTORY, false);
-     *  </pre>
-     *
-     * <h4>Example: Copy directories and txt files</h4>
-     *  <pre>
-     *  // Create a filter for ".txt" files
-     *  IOFileFilter txtSuffixFilter = FileFilterUtils.suffixFileFilter(".txt");
-     *  IOFileFilter txtFiles = FileFilterUtils.andFileFilter(FileFileFilter.FILE, txtSuffixFilter);
-     *
-     *  // Create a filter for either directories or ".txt" files
-     *  FileFilter filter = FileFilterUtils.orFileFilter(DirectoryFileFilter.DIRECTORY, txtFiles);
-     *
-     *  // Copy using the filter
-     *  FileUtils.copyDirectory(srcDir, destDir, filter, false);
-     *  </pre>
-     *
      * @param srcDir  an existing directory to copy, must not be <code>null</code>
      * @param destDir  the new directory, must not be <code>null</code>
-     * @param filter  the filter to apply, null means copy all directories and files
      * @param preserveFileDate  true if the file date of the copy
      *  should be the same as the original
+     * @param path  the path of the directory in the backup
+     * @param tracker  decides which files are copied, may be null
+     * @param linkDir  the previous copy, whose unchanged files are linked, may be null
+     * @param context  throttles the reads and writes and has the copy workers,
+     *  may be null to copy every file by the calling thread
      *
      * @throws NullPointerException if source or destination is <code>null</code>
      * @throws IOException if source or destination is invalid
@@ -204,7 +246,8 @@ public class FileUtils {
      * @since Commons IO 1.4
      */
     private static void copyDirectory (File srcDir, File destDir,
-                                       FileFilter filter, boolean preserveFileDate) throws IOException {
+                                       boolean preserveFileDate, String path, FileTracker tracker, File linkDir,
+                                       IOContext context) throws IOException {
         if (srcDir == null)
             throw new NullPointerException("Source must not be null");
         if (destDir == null)
@@ -213,61 +256,175 @@ public class FileUtils {
             throw new FileNotFoundException("Source '" + srcDir + "' does not exist");
         if (srcDir.isDirectory() == false)
             throw new IOException("Source '" + srcDir + "' exists but is not a directory");
-        if (srcDir.getCanonicalPath().equals(destDir.getCanonicalPath()))
+        String srcPath = srcDir.getCanonicalPath();
+        String destPath = destDir.getCanonicalPath();
+        if (srcPath.equals(destPath))
             throw new IOException("Source '" + srcDir + "' and destination '" + destDir + "' are the same");
 
         // Cater for destination being directory within the source directory (see IO-141)
-        List<String> exclusionList = null;
-        if (destDir.getCanonicalPath().startsWith(srcDir.getCanonicalPath())) {
-            File[] srcFiles = filter == null ? srcDir.listFiles() : srcDir.listFiles(filter);
-            if (srcFiles != null && srcFiles.length > 0) {
-                exclusionList = new ArrayList<String>(srcFiles.length);
-                for (File srcFile : srcFiles) {
-                    File copiedFile = new File(destDir, srcFile.getName());
-                    exclusionList.add(copiedFile.getCanonicalPath());
+        File excludedDir = null;
+        if (destPath.startsWith(srcPath.concat(File.separator)))
+            excludedDir = new File(srcDir, destPath.substring(srcPath.length() + 1));
+        new TreeCopier(srcDir, destDir, excludedDir, preserveFileDate, path, tracker, linkDir, context).copy();
+    }
+
+    /**
+     * Copies a single file of a directory
+     *
+     * @param file  the file to copy
+     * @param copiedFile  the copy of the file
+     * @param filePath  the path of the file in the backup
+     * @param preserveFileDate  whether to preserve the file date
+     * @param tracker  decides whether the file is copied, may be null
+     * @param linkFile  the file in the previous copy, which is linked when it is unchanged, may be null
+     * @param context  throttles the reads and writes, may be null
+     * @throws IOException if an error occurs
+     */
+    static void copyEntry (File file, File copiedFile, String filePath, boolean preserveFileDate,
+                           FileTracker tracker, File linkFile, IOContext context) throws IOException {
+        if (tracker == null) {
+            if (linkFile == null || !linkFile(file, linkFile, copiedFile))
+                doCopyFile(file, copiedFile, preserveFileDate, null, context);
+        }
+        else if (tracker.accept(filePath, file)) {
+            FileTracker.Replacement replacement = replace(tracker, filePath, file, context);
+            if (replacement != null) {
+                File replacedFile = new File(copiedFile.getParentFile(), copiedFile.getName().concat(replacement.getSuffix()));
+                writeFile(replacement.getContent(), replacedFile, preserveFileDate ? file.lastModified() : -1, context);
+                tracker.stored(filePath, file, replacement.getHash());
+            }
+            else if (linkFile != null && linkFile(file, linkFile, copiedFile))
+                // the tracker doesn't know the hash of the linked content
+                tracker.stored(filePath, file, hashFile(file, context));
+            else {
+                XXHash64 hash = new XXHash64();
+                doCopyFile(file, copiedFile, preserveFileDate, hash, context);
+                tracker.stored(filePath, file, hash.getValue());
+            }
+        }
+        else if (linkFile != null && !linkFile(file, linkFile, copiedFile)) {
+            // the previous copy differs from its manifest, so the file is copied after all
+            XXHash64 hash = new XXHash64();
+            doCopyFile(file, copiedFile, preserveFileDate, hash, context);
+            tracker.stored(filePath, file, hash.getValue());
+        }
+    }
+
+    /**
+     * Waits until the bytes may be read and written and slows the copy down,
+     * while the server lags
+     *
+     * @param context  the throttles, may be null
+     * @param bytes  the bytes of the next step
+     * @throws InterruptedIOException if the thread is interrupted while it waits
+     */
+    static void throttle (IOContext context, long bytes) throws InterruptedIOException {
+        if (context == null)
+            return;
+        context.getGovernor().checkpoint();
+        context.getReadThrottle().acquire(bytes);
+        context.getWriteThrottle().acquire(bytes);
+    }
+
+    /**
+     * Asks the tracker for a replacement of a file, the tracker reads the
+     * file completely
+     *
+     * @param context  throttles the read, may be null
+     */
+    private static FileTracker.Replacement replace (FileTracker tracker, String path, File file, IOContext context) throws IOException {
+        if (context != null)
+            context.getReadThrottle().acquire(file.length());
+        return tracker.replace(path, file);
+    }
+
+    /**
+     * Reads a file and hashes its content
+     *
+     * @param file  the file to hash
+     * @param context  throttles the read, may be null
+     * @return the XXHash64 of the content
+     * @throws IOException if the file can't be read
+     */
+    private static long hashFile (File file, IOContext context) throws IOException {
+        XXHash64 hash = new XXHash64();
+        FileInputStream fis = new FileInputStream(file);
+        FileChannel input = fis.getChannel();
+        int bufferSize = (int) Math.min(context != null ? context.getBlockSize() : ONE_MB, Math.max(input.size(), 1));
+        byte[] buffer = context != null ? context.getBlockPool().take(bufferSize) : new byte[bufferSize];
+        try {
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            int read;
+            while (true) {
+                wrapped.clear();
+                if (context != null) {
+                    context.getGovernor().checkpoint();
+                    context.getReadThrottle().acquire(Math.min(buffer.length, input.size() - input.position()));
                 }
+                if ((read = input.read(wrapped)) == -1)
+                    break;
+                hash.update(buffer, 0, read);
             }
         }
-        doCopyDirectory(srcDir, destDir, filter, preserveFileDate, exclusionList);
+        finally {
+            if (context != null)
+                context.getBlockPool().release(buffer);
+            closeQuietly(input);
+            closeQuietly(fis);
+        }
+        return hash.getValue();
     }
 
     /**
-     * Internal copy directory method.
+     * Hard links a file to its previous copy, when the file is unchanged
      *
-     * @param srcDir  the validated source directory, must not be <code>null</code>
-     * @param destDir  the validated destination directory, must not be <code>null</code>
-     * @param filter  the filter to apply, null means copy all directories and files
-     * @param preserveFileDate  whether to preserve the file date
-     * @param exclusionList  List of files and directories to exclude from the copy, may be null
-     * @throws IOException if an error occurs
-     * @since Commons IO 1.1
+     * @param srcFile  the file to copy
+     * @param linkFile  the previous copy of the file
+     * @param destFile  the new copy of the file
+     * @return true, when the link was created
      */
-    private static void doCopyDirectory (File srcDir, File destDir, FileFilter filter,
-                                         boolean preserveFileDate, List<String> exclusionList) throws IOException {
-        // recurse
-        File[] files = filter == null ? srcDir.listFiles() : srcDir.listFiles(filter);
-        if (files == null)  // null if security restricted
-            throw new IOException("Failed to list contents of " + srcDir);
-        if (destDir.exists()) {
-            if (destDir.isDirectory() == false)
-                throw new IOException("Destination '" + destDir + "' exists but is not a directory");
+    private static boolean linkFile (File srcFile, File linkFile, File destFile) {
+        if (!linkFile.isFile() || linkFile.length() != srcFile.length() || linkFile.lastModified() != srcFile.lastModified())
+            return false;
+        try {
+            Files.createLink(destFile.toPath(), linkFile.toPath());
+            return true;
         }
-        else if (destDir.mkdirs() == false)
-            throw new IOException("Destination '" + destDir + "' directory cannot be created");
-        if (destDir.canWrite() == false)
-            throw new IOException("Destination '" + destDir + "' cannot be written to");
-        for (File file : files) {
-            File copiedFile = new File(destDir, file.getName());
-            if (exclusionList == null || !exclusionList.contains(file.getCanonicalPath()))
-                if (file.isDirectory())
-                    doCopyDirectory(file, copiedFile, filter, preserveFileDate, exclusionList);
-                else
-                    doCopyFile(file, copiedFile, preserveFileDate);
+        catch (IOException e) {
+            // for example the file system doesn't support hard links, so copy it
+            return false;
         }
+        catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
 
-        // Do this last, as the above has probably affected directory metadata
-        if (preserveFileDate)
-            destDir.setLastModified(srcDir.lastModified());
+    /**
+     * Writes a content to a file
+     *
+     * @param content  the content to write
+     * @param destFile  the file to write, an existing file is overwritten
+     * @param lastModified  the modification date of the file, -1 to keep the current date
+     * @param context  throttles the write, may be null
+     * @throws IOException if an error occurs
+     */
+    private static void writeFile (byte[] content, File destFile, long lastModified, IOContext context) throws IOException {
+        if (destFile.exists() && destFile.isDirectory())
+            throw new IOException("Destination '" + destFile + "' exists but is a directory");
+        if (context != null)
+            context.getWriteThrottle().acquire(content.length);
+        BackupEvent event = content.length >= LARGE_FILE ? BackupEvent.begin(BackupEvent.FILE) : null;
+        FileOutputStream fos = new FileOutputStream(destFile);
+        try {
+            fos.write(content);
+        }
+        finally {
+            fos.close();
+        }
+        if (event != null)
+            event.commit("write", null, destFile.getPath(), content.length);
+        if (lastModified != -1)
+            destFile.setLastModified(lastModified);
     }
 
     /**
@@ -276,12 +433,15 @@ public class FileUtils {
      * @param srcFile  the validated source file, must not be <code>null</code>
      * @param destFile  the validated destination file, must not be <code>null</code>
      * @param preserveFileDate  whether to preserve the file date
+     * @param hash  the hash of the copied content, null to copy without hashing
+     * @param context  throttles the reads and writes, may be null
      * @throws IOException if an error occurs
      */
-    private static void doCopyFile (File srcFile, File destFile, boolean preserveFileDate) throws IOException {
+    private static void doCopyFile (File srcFile, File destFile, boolean preserveFileDate, XXHash64 hash, IOContext context) throws IOException {
         if (destFile.exists() && destFile.isDirectory())
             throw new IOException("Destination '" + destFile + "' exists but is a directory");
 
+        BackupEvent event = srcFile.length() >= LARGE_FILE ? BackupEvent.begin(BackupEvent.FILE) : null;
         FileInputStream fis = null;
         FileOutputStream fos = null;
         FileChannel input = null;
@@ -291,12 +451,40 @@ public class FileUtils {
             fos = new FileOutputStream(destFile);
             input = fis.getChannel();
             output = fos.getChannel();
-            long size = input.size();
-            long pos = 0;
-            long count = 0;
-            while (pos < size) {
-                count = (size - pos) > FIFTY_MB ? FIFTY_MB : (size - pos);
-                pos += output.transferFrom(input, pos, count);
+            if (hash == null) {
+                long size = input.size();
+                long pos = 0;
+                long count = 0;
+                // a throttled copy is done in small steps, so the waits are short
+                long step = context != null && (context.getReadThrottle().isLimited() || context.getWriteThrottle().isLimited()) ? ONE_MB : FIFTY_MB;
+                while (pos < size) {
+                    count = (size - pos) > step ? step : (size - pos);
+                    throttle(context, count);
+                    pos += output.transferFrom(input, pos, count);
+                }
+            }
+            else {
+                // the content has to pass the heap to get hashed
+                int bufferSize = (int) Math.min(context != null ? context.getBlockSize() : ONE_MB, Math.max(input.size(), 1));
+                byte[] buffer = context != null ? context.getBlockPool().take(bufferSize) : new byte[bufferSize];
+                try {
+                    ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+                    int read;
+                    while (true) {
+                        wrapped.clear();
+                        throttle(context, Math.min(buffer.length, input.size() - input.position()));
+                        if ((read = input.read(wrapped)) == -1)
+                            break;
+                        hash.update(buffer, 0, read);
+                        wrapped.flip();
+                        while (wrapped.hasRemaining())
+                            output.write(wrapped);
+                    }
+                }
+                finally {
+                    if (context != null)
+                        context.getBlockPool().release(buffer);
+                }
             }
         }
         finally {
@@ -309,6 +497,8 @@ public class FileUtils {
         if (srcFile.length() != destFile.length())
             throw new IOException("Failed to copy full contents from '"
                     + srcFile + "' to '" + destFile + "'");
+        if (event != null)
+            event.commit("copy", null, srcFile.getPath(), destFile.length());
         if (preserveFileDate)
             destFile.setLastModified(srcFile.lastModified());
     }
@@ -336,7 +526,7 @@ public class FileUtils {
      * @param closeable the object to close, may be null or already closed
      * @since Commons IO 2.0
      */
-    private static void closeQuietly (Closeable closeable) {
+    public static void closeQuietly (Closeable closeable) {
         try {
             if (closeable != null)
                 closeable.close();
@@ -346,6 +536,23 @@ public class FileUtils {
         }
     }
 
+    /**
+     * Moves a file to a new location. An existing file at the new location is
+     * replaced atomically, when the file system supports it.
+     *
+     * @param srcFile  the file to move
+     * @param destFile  the new location
+     * @throws IOException if the file can't be moved
+     */
+    public static void moveAtomically (File srcFile, File destFile) throws IOException {
+        try {
+            Files.move(srcFile.toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(srcFile.toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     /**
      * Deletes a directory recursively.
      *
@@ -353,11 +560,43 @@ public class FileUtils {
      * @throws IOException in case deletion is unsuccessful
      */
     public static void deleteDirectory (File directory) throws IOException {
+        deleteDirectory(directory, null);
+    }
+
+    /**
+     * Deletes a directory recursively. Every deleted file and directory takes
+     * DELETE_COST bytes of the write throttle, so a large delete doesn't
+     * flood the disc with metadata updates.
+     *
+     * @param directory  directory to delete
+     * @param context  throttles the deletes, may be null
+     * @throws IOException in case deletion is unsuccessful
+     */
+    public static void deleteDirectory (File directory, IOContext context) throws IOException {
+        BackupEvent event = BackupEvent.begin(BackupEvent.FILE);
+        doDeleteDirectory(directory, context);
+        event.commit("delete", null, directory.getPath(), 0);
+    }
+
+    /**
+     * Deletes a directory recursively.
+     *
+     * @param directory  directory to delete
+     * @param context  throttles the deletes, may be null
+     * @throws IOException in case deletion is unsuccessful
+     */
+    private static void doDeleteDirectory (File directory, IOContext context) throws IOException {
         if (!directory.exists())
             return;
 
-        if (!isSymlink(directory))
-            cleanDirectory(directory);
+        // the files of a linked directory aren't part of the backups
+        if (!Files.isSymbolicLink(directory.toPath()))
+            cleanDirectory(directory, context);
+
+        if (context != null) {
+            context.getGovernor().checkpoint();
+            context.getWriteThrottle().pace(DELETE_COST);
+        }
 
         if (!directory.delete()) {
             String message =
@@ -370,9 +609,10 @@ public class FileUtils {
      * Cleans a directory without deleting it.
      *
      * @param directory directory to clean
+     * @param context throttles the deletes, may be null
      * @throws IOException in case cleaning is unsuccessful
      */
-    private static void cleanDirectory (File directory) throws IOException {
+    private static void cleanDirectory (File directory, IOContext context) throws IOException {
         if (!directory.exists()) {
             String message = directory + " does not exist";
             throw new IllegalArgumentException(message);
@@ -390,7 +630,7 @@ public class FileUtils {
         IOException exception = null;
         for (File file : files)
             try {
-                forceDelete(file);
+                forceDelete(file, context);
             }
             catch (IOException ioe) {
                 exception = ioe;
@@ -411,14 +651,19 @@ public class FileUtils {
      * </ul>
      *
      * @param file  file or directory to delete, must not be <code>null</code>
+     * @param context  throttles the deletes, may be null
      * @throws NullPointerException if the directory is <code>null</code>
      * @throws FileNotFoundException if the file was not found
      * @throws IOException in case deletion is unsuccessful
      */
-    private static void forceDelete (File file) throws IOException {
+    private static void forceDelete (File file, IOContext context) throws IOException {
         if (file.isDirectory())
-            deleteDirectory(file);
+            doDeleteDirectory(file, context);
         else {
+            if (context != null) {
+                context.getGovernor().checkpoint();
+                context.getWriteThrottle().pace(DELETE_COST);
+            }
             boolean filePresent = file.exists();
             if (!file.delete()) {
                 if (!filePresent)
@@ -430,96 +675,200 @@ public class FileUtils {
         }
     }
 
+    public final static String LINE_SEPARATOR = System.getProperty("line.separator");
+    public final static String FILE_SEPARATOR = System.getProperty("file.separator");
+
     /**
-     * Determines whether the specified file is a Symbolic Link rather than an actual file.
-     * <p>
-     * Will not return true if there is a Symbolic Link anywhere in the path,
-     * only if the specific file is.
+     * Zip up a directory
      *
-     * @param file the file to check
-     * @return true if the file is a Symbolic Link
-     * @throws IOException if an IO error occurs while checking the file
-     * @since Commons IO 2.0
+     * @param directory
+     * @param zipName
+     * @param context the pool which compresses the entries
+     * @throws IOException
      */
-    private static boolean isSymlink (File file) throws IOException {
-        if (file == null)
-            throw new NullPointerException("File must not be null");
-        if (isSystemWindows())
-            return false;
-        File fileInCanonicalDir = null;
-        if (file.getParent() == null)
-            fileInCanonicalDir = file;
-        else {
-            File canonicalDir = file.getParentFile().getCanonicalFile();
-            fileInCanonicalDir = new File(canonicalDir, file.getName());
-        }
+    public static void zipDir(String directory, String zipName, IOContext context) throws IOException {
+        zipDirs(Collections.singletonList(directory), zipName, "", context, null);
+    }
 
-        if (fileInCanonicalDir.getCanonicalFile().equals(fileInCanonicalDir.getAbsoluteFile()))
-            return false;
-        else
-            return true;
+    /**
+     * Zip up a directory. Only the files accepted by the tracker are zipped,
+     * the tracker gets the hash of every zipped file.
+     *
+     * @param directory
+     * @param zipName
+     * @param context the pool which compresses the entries
+     * @param tracker decides which files are zipped, null means zip all files
+     * @throws IOException
+     */
+    public static void zipDir(String directory, String zipName, IOContext context, FileTracker tracker) throws IOException {
+        zipDirs(Collections.singletonList(directory), zipName, "", context, tracker);
     }
 
     /**
-     * Determines if Windows file system is in use.
+     * Zip up several directories into one archive. Every directory is stored
+     * in the archive under its own name, so the directories can be zipped
+     * directly without a temporary copy of them.
      *
-     * @return true if the system is Windows
+     * @param directories the directories to zip
+     * @param zipName the name of the archive
+     * @param context the pool which compresses the entries
+     * @throws IOException
      */
-    private static boolean isSystemWindows () {
-        return SYSTEM_SEPARATOR == WINDOWS_SEPARATOR;
+    public static void zipDirs(List<String> directories, String zipName, IOContext context) throws IOException {
+        zipDirs(directories, zipName, null, context, null);
     }
-    public final static String LINE_SEPARATOR = System.getProperty("line.separator");
-    public final static String FILE_SEPARATOR = System.getProperty("file.separator");
 
     /**
-     * Zip up a directory
+     * Zip up several directories into one archive. Every directory is stored
+     * in the archive under its own name. Only the files accepted by the
+     * tracker are zipped, the tracker gets the hash of every zipped file.
      *
-     * @param directory
-     * @param zipName
+     * @param directories the directories to zip
+     * @param zipName the name of the archive
+     * @param context the pool which compresses the entries
+     * @param tracker decides which files are zipped, null means zip all files
      * @throws IOException
      */
-    public static void zipDir(String directory, String zipName) throws IOException {
-        // create a ZipOutputStream to zip the data to
-        if (!zipName.endsWith(".zip"))
-            zipName += ".zip";
-        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipName));
-        zipDir(directory, zos, "");
-        // close the stream
-        closeQuietly(zos);
+    public static void zipDirs(List<String> directories, String zipName, IOContext context, FileTracker tracker) throws IOException {
+        zipDirs(directories, zipName, null, context, tracker);
     }
 
     /**
-     * Zip up a directory path
+     * Tar up a directory. Only the files accepted by the tracker are stored,
+     * the tracker gets the hash of every stored file.
+     *
      * @param directory
-     * @param zos
+     * @param tarName
+     * @param context the throttles of the reads and writes
+     * @param tracker decides which files are stored, null means store all files
+     * @throws IOException
+     */
+    public static void tarDir(String directory, String tarName, IOContext context, FileTracker tracker) throws IOException {
+        archiveDirs(Collections.singletonList(directory), tarName, "", context, tracker, true);
+    }
+
+    /**
+     * Tar up several directories into one archive. Every directory is stored
+     * in the archive under its own name. Only the files accepted by the
+     * tracker are stored, the tracker gets the hash of every stored file.
+     *
+     * @param directories the directories to tar
+     * @param tarName the name of the archive
+     * @param context the throttles of the reads and writes
+     * @param tracker decides which files are stored, null means store all files
+     * @throws IOException
+     */
+    public static void tarDirs(List<String> directories, String tarName, IOContext context, FileTracker tracker) throws IOException {
+        archiveDirs(directories, tarName, null, context, tracker, true);
+    }
+
+    /**
+     * Zip up directories into one archive
+     * @param directories the directories to zip
+     * @param zipName the name of the archive
+     * @param path the path of the directories in the archive, null to use
+     * their own names
+     * @param context the pool which compresses the entries
+     * @param tracker decides which files are zipped, may be null
+     * @throws IOException
+     */
+    private static void zipDirs(List<String> directories, String zipName, String path, IOContext context, FileTracker tracker) throws IOException {
+        archiveDirs(directories, zipName, path, context, tracker, false);
+    }
+
+    /**
+     * Writes directories into one archive
+     * @param directories the directories to store
+     * @param archiveName the name of the archive
+     * @param path the path of the directories in the archive, null to use
+     * their own names
+     * @param context the pool and the throttles of the archive
+     * @param tracker decides which files are stored, may be null
+     * @param tar write a tar archive instead of a zip archive
+     * @throws IOException
+     */
+    private static void archiveDirs(List<String> directories, String archiveName, String path, IOContext context, FileTracker tracker, boolean tar) throws IOException {
+        String extension = tar ? ".tar" : ".zip";
+        if (!archiveName.endsWith(extension))
+            archiveName += extension;
+        File archiveFile = new File(archiveName).getAbsoluteFile();
+        ArchiveWriter archive = tar ? new TarWriter(archiveFile, context) : new ParallelZipWriter(archiveFile, context);
+        BackupEvent event = BackupEvent.begin(BackupEvent.FILE);
+        try {
+            for (String directory : directories)
+                archiveDir(new File(directory), archive, path != null ? path : new File(directory).getName().concat("/"), archiveFile, tracker);
+            archive.close();
+            event.commit(tar ? "tar" : "zip", null, archiveFile.getPath(), archiveFile.length());
+        }
+        catch (IOException e) {
+            archive.abort();
+            archiveFile.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Archive a directory path. The tree is walked in the order of the
+     * directory listings, the attributes of every file are read with the
+     * listing.
+     * @param dir
+     * @param archive
      * @param path
+     * @param archiveFile the archive itself, it is skipped when it is inside the directory
+     * @param tracker decides which files are stored, may be null
      * @throws IOException
      */
-    private static void zipDir(String directory, ZipOutputStream zos, String path) throws IOException {
-        File zipDir = new File(directory);
-        // get a listing of the directory content
-        String[] dirList = zipDir.list();
-        byte[] readBuffer = new byte[2156];
-        int bytesIn = 0;
-        // loop through dirList, and zip the files
-        for (int i = 0; i < dirList.length; ++i) {
-            File f = new File(zipDir, dirList[i]);
-            if (f.isDirectory()) {
-                zipDir(f.getPath(), zos, path.concat(f.getName()).concat(FILE_SEPARATOR));
-                continue;
+    private static void archiveDir(File dir, final ArchiveWriter archive, final String path, final File archiveFile, final FileTracker tracker) throws IOException {
+        final Path root = dir.toPath();
+        Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+
+            /** The paths of the walked directories in the archive, the deepest first */
+            private final LinkedList<String> paths = new LinkedList<String>();
+
+            @Override
+            public FileVisitResult preVisitDirectory (Path directory, BasicFileAttributes attrs) {
+                paths.addFirst(directory == root ? path : paths.getFirst().concat(directory.getFileName().toString()).concat("/"));
+                return FileVisitResult.CONTINUE;
             }
-            FileInputStream fis = new FileInputStream(f);
-            try {
-                zos.putNextEntry(new ZipEntry(path.concat(f.getName())));
-                bytesIn = fis.read(readBuffer);
-                while (bytesIn != -1) {
-                    zos.write(readBuffer, 0, bytesIn);
-                    bytesIn = fis.read(readBuffer);
+
+            @Override
+            public FileVisitResult postVisitDirectory (Path directory, IOException exc) throws IOException {
+                if (exc != null)
+                    throw exc;
+                paths.removeFirst();
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile (Path file, BasicFileAttributes attrs) throws IOException {
+                String name = file.getFileName().toString();
+                File f = file.toFile();
+                if (name.equals(archiveFile.getName()) && f.getAbsoluteFile().equals(archiveFile))
+                    return FileVisitResult.CONTINUE;
+                String filePath = paths.getFirst().concat(name);
+                if (tracker == null)
+                    archive.putFile(f, filePath);
+                else if (tracker.accept(filePath, f)) {
+                    FileTracker.Replacement replacement = replace(tracker, filePath, f, archive.getContext());
+                    if (replacement != null) {
+                        archive.putBytes(replacement.getContent(), filePath.concat(replacement.getSuffix()), f.lastModified());
+                        tracker.stored(filePath, f, replacement.getHash());
+                    }
+                    else
+                        tracker.stored(filePath, f, archive.putFile(f, filePath));
                 }
-            } finally {
-                closeQuietly(fis);
+                return FileVisitResult.CONTINUE;
             }
-        }
-        
+
+            @Override
+            public FileVisitResult visitFileFailed (Path file, IOException exc) throws IOException {
+                if (exc instanceof FileSystemLoopException) {
+                    // a link to a parent directory would be archived endlessly
+                    System.out.println("[BACKUP] Skipping " + file + ", because it links to one of its parent directories");
+                    return FileVisitResult.CONTINUE;
+                }
+                throw exc;
+            }
+        });
     }
 }
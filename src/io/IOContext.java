@@ -0,0 +1,192 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Everything the file operations of one backup run share. The context owns
+ * the worker pool, which compresses the entries of every archive of the run,
+ * the limits for it, the workers which copy the files of the directories, the buffers of the blocks, the throttles of the disc
+ * bandwidth and the governor of the speed. It has to be shut down when the
+ * run is finished.
+ * @author Kilian Gaertner
+ */
+public class IOContext {
+
+    /** The size of the blocks in which large files are compressed */
+    public static final int DEFAULT_BLOCK_SIZE = (int) FileUtils.ONE_MB;
+    /** A block must hold more than the history of a deflate stream */
+    private static final int MIN_BLOCK_SIZE = 64 * (int) FileUtils.ONE_KB;
+    private static final int MAX_BLOCK_SIZE = 64 * (int) FileUtils.ONE_MB;
+
+    private final ExecutorService compressionPool;
+    private final ExecutorService copyPool;
+    private final int blockSize;
+    private final long memoryLimit;
+    private final BufferPool blockPool;
+    private final BufferPool outputPool;
+    private final CodecRules codecRules;
+    private final Throttle readThrottle;
+    private final Throttle writeThrottle;
+    private final SpeedGovernor governor;
+    /** Are the zip archives written with independent blocks and an index */
+    private boolean seekable = false;
+
+    /**
+     * @param compressionThreads How many threads compress at the same time,
+     * 0 will use one thread for every processor
+     * @param copyThreads How many files are copied at the same time, 0 will
+     * use one thread for every processor
+     * @param blockSize The size of the blocks in which files are read and
+     * compressed, 0 uses the default size
+     * @param memoryLimit How many bytes may be read, but not yet written, by
+     * one archive
+     * @param readLimit How many bytes per second may be read, 0 is unlimited
+     * @param writeLimit How many bytes per second may be written, 0 is
+     * unlimited
+     * @param governor Slows every operation down, when the server lags
+     * @param codecRules Selects the compression of every archive entry
+     */
+    public IOContext (int compressionThreads, int copyThreads, int blockSize, long memoryLimit, long readLimit, long writeLimit, SpeedGovernor governor, CodecRules codecRules) {
+        if (compressionThreads <= 0)
+            compressionThreads = Runtime.getRuntime().availableProcessors();
+        if (copyThreads <= 0)
+            copyThreads = Runtime.getRuntime().availableProcessors();
+        this.compressionPool = createPool(compressionThreads, "Backup-Compressor");
+        this.copyPool = createPool(copyThreads, "Backup-Copier");
+        this.blockSize = blockSize <= 0 ? DEFAULT_BLOCK_SIZE : Math.max(MIN_BLOCK_SIZE, Math.min(blockSize, MAX_BLOCK_SIZE));
+        // at least one block per thread, otherwise the threads would idle
+        this.memoryLimit = Math.max(memoryLimit, (long) (this.blockSize + Codec.getBound(this.blockSize)) * compressionThreads);
+        // the blocks in flight are limited by the memory limit, so the free ones are too
+        this.blockPool = new BufferPool(this.blockSize, this.memoryLimit);
+        this.outputPool = new BufferPool(Codec.getBound(this.blockSize), this.memoryLimit);
+        this.codecRules = codecRules;
+        this.readThrottle = new Throttle(readLimit);
+        this.writeThrottle = new Throttle(writeLimit);
+        this.governor = governor;
+    }
+
+    /**
+     * @param threads The count of threads
+     * @param name The name of the threads, a running number is appended
+     * @return A pool of daemon threads, they don't keep the server alive
+     */
+    private static ExecutorService createPool (int threads, String name) {
+        return Executors.newFixedThreadPool(threads, new NamedThreadFactory(name, Thread.NORM_PRIORITY, true));
+    }
+
+    /**
+     * @return The pool, which compresses the blocks of the archives
+     */
+    public ExecutorService getCompressionPool () {
+        return compressionPool;
+    }
+
+    /**
+     * @return The pool, which copies the files of the directories
+     */
+    public ExecutorService getCopyPool () {
+        return copyPool;
+    }
+
+    /**
+     * @return The size of the blocks in which files are compressed
+     */
+    public int getBlockSize () {
+        return blockSize;
+    }
+
+    /**
+     * @return The arrays for the raw blocks, the largest ones have the size
+     * of a block
+     */
+    public BufferPool getBlockPool () {
+        return blockPool;
+    }
+
+    /**
+     * @return The arrays for the compressed blocks, the largest ones can
+     * hold every compressed block
+     */
+    public BufferPool getOutputPool () {
+        return outputPool;
+    }
+
+    /**
+     * @return How many bytes the blocks, which are read but not yet written,
+     * of one archive may have
+     */
+    public long getMemoryLimit () {
+        return memoryLimit;
+    }
+
+    /**
+     * @return The rules, which select the compression of the archive entries
+     */
+    public CodecRules getCodecRules () {
+        return codecRules;
+    }
+
+    /**
+     * @return The throttle for every read of the worlds
+     */
+    public Throttle getReadThrottle () {
+        return readThrottle;
+    }
+
+    /**
+     * @return The throttle for every write or delete in the backup folder
+     */
+    public Throttle getWriteThrottle () {
+        return writeThrottle;
+    }
+
+    /**
+     * @return The speed of every read, write and compression
+     */
+    public SpeedGovernor getGovernor () {
+        return governor;
+    }
+
+    /**
+     * @param seekable Shall the zip archives be written with independent
+     * blocks and an index, see ArchiveIndex
+     */
+    public void setSeekable (boolean seekable) {
+        this.seekable = seekable;
+    }
+
+    /**
+     * @return true, when the zip archives get an index
+     */
+    public boolean isSeekable () {
+        return seekable;
+    }
+
+    /**
+     * Stops the threads of the context. Must be called when the backup run
+     * is done.
+     */
+    public void shutdown () {
+        compressionPool.shutdownNow();
+        copyPool.shutdownNow();
+        codecRules.close();
+    }
+}
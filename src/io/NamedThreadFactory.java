@@ -0,0 +1,68 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads for the worker pools of the backup, so they can be
+ * found by their name in a thread dump.
+ * @author Kilian Gaertner
+ */
+public class NamedThreadFactory implements ThreadFactory {
+
+    private final String prefix;
+    private final int priority;
+    private final boolean daemon;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    /**
+     * @param prefix The name of the threads, a running number is appended
+     */
+    public NamedThreadFactory (String prefix) {
+        this(prefix, Thread.NORM_PRIORITY);
+    }
+
+    /**
+     * @param prefix The name of the threads, a running number is appended
+     * @param priority The priority of the threads
+     */
+    public NamedThreadFactory (String prefix, int priority) {
+        this(prefix, priority, false);
+    }
+
+    /**
+     * @param prefix The name of the threads, a running number is appended
+     * @param priority The priority of the threads
+     * @param daemon When true, the threads don't keep the server alive
+     */
+    public NamedThreadFactory (String prefix, int priority, boolean daemon) {
+        this.prefix = prefix;
+        this.priority = priority;
+        this.daemon = daemon;
+    }
+
+    @Override
+    public Thread newThread (Runnable r) {
+        Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+        thread.setPriority(priority);
+        thread.setDaemon(daemon);
+        return thread;
+    }
+}
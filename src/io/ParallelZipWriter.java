@@ -0,0 +1,707 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a standard ZIP archive, whose entries are compressed on a worker pool.
+ * <p>
+ * Every file is read in blocks by the calling thread. The blocks are
+ * compressed by the pool with the codec the rules select for the entry and
+ * written in order through a single channel. Stored blocks skip the pool.
+ * The bytes which are read but not yet written are limited, when the limit
+ * is hit the writer waits for the oldest block.
+ * <p>
+ * The raw and the compressed blocks are taken from the pools of the context
+ * and given back as soon as they are written, the headers are built in one
+ * reused buffer. So an entry creates only a few small objects, a world with
+ * many files doesn't fill the heap with garbage.
+ * <p>
+ * The archive uses the ZIP64 extensions when it or an entry is too large for
+ * the normal format.
+ * <p>
+ * A seekable archive compresses every block without the previous one as
+ * dictionary, so a block can be inflated on its own. The positions of the
+ * blocks are written into an index entry at the end of the archive, see
+ * ArchiveIndex. The archive stays a normal ZIP archive.
+ * @author Kilian Gaertner
+ */
+public class ParallelZipWriter implements ArchiveWriter {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /** Files larger than this get a ZIP64 local header, because their sizes
+     * could be too large for the normal one */
+    private static final long ZIP64_FILE_LIMIT = 0xFF000000L;
+    private static final long MAX_32 = 0xFFFFFFFFL;
+    private static final int MAX_16 = 0xFFFF;
+    /** Entry names are UTF-8 encoded */
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int VERSION_DEFLATE = 20;
+    private static final int VERSION_ZIP64 = 45;
+
+    private final FileOutputStream fos;
+    private final FileChannel channel;
+    private final ByteBuffer outBuffer = ByteBuffer.allocate(256 * 1024);
+    private final ExecutorService pool;
+    private final int blockSize;
+    private final long memoryLimit;
+    private final BufferPool blockPool;
+    private final BufferPool outputPool;
+    private final CodecRules codecs;
+    private final IOContext context;
+    private final Throttle readThrottle;
+    private final Throttle writeThrottle;
+    private final SpeedGovernor governor;
+    /** Are the blocks independent and is an index written */
+    private final boolean seekable;
+    /** The blocks, which are read and waiting to be written */
+    private final LinkedList<Block> pending = new LinkedList<Block>();
+    /** Every written entry for the central directory */
+    private final List<Entry> entries = new ArrayList<Entry>();
+    /** The size of the arrays of the pending blocks */
+    private long inFlight = 0;
+    /** The headers are built in this buffer */
+    private final HeaderBuilder header = new HeaderBuilder();
+    /** Converts the modification dates, reused for every entry */
+    private final Calendar calendar = Calendar.getInstance();
+    private final CRC32 crc = new CRC32();
+    private final XXHash64 hash = new XXHash64();
+    /** The bytes written to the archive, the position of the next byte */
+    private long written = 0;
+    private boolean closed = false;
+
+    /**
+     * @param zipFile The archive to write, an existing file is overwritten
+     * @param context The pool and the limits for the compression
+     * @throws IOException when the archive can't be created
+     */
+    public ParallelZipWriter (File zipFile, IOContext context) throws IOException {
+        this.fos = new FileOutputStream(zipFile);
+        this.channel = fos.getChannel();
+        this.pool = context.getCompressionPool();
+        this.blockSize = context.getBlockSize();
+        this.memoryLimit = context.getMemoryLimit();
+        this.blockPool = context.getBlockPool();
+        this.outputPool = context.getOutputPool();
+        this.codecs = context.getCodecRules();
+        this.context = context;
+        this.readThrottle = context.getReadThrottle();
+        this.writeThrottle = context.getWriteThrottle();
+        this.governor = context.getGovernor();
+        this.seekable = context.isSeekable();
+    }
+
+    /**
+     * Adds a file to the archive. The method returns when the file is read,
+     * the file can still be compressed and written afterwards.
+     * @param file The file to add
+     * @param name The name of the entry, directories are seperated by a /
+     * @return The XXHash64 of the content of the file
+     * @throws IOException when the file can't be read or the archive can't be
+     * written
+     */
+    @Override
+    public long putFile (File file, String name) throws IOException {
+        // a channel reads into the block without a copy through a native buffer of the stream
+        FileChannel input = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return put(Channels.newInputStream(input), input.size(), name, file.lastModified(), true);
+        }
+        finally {
+            FileUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Adds an entry with the given content to the archive
+     * @param content The content of the entry
+     * @param name The name of the entry, directories are seperated by a /
+     * @param lastModified The modification date of the entry
+     * @return The XXHash64 of the content
+     * @throws IOException when the archive can't be written
+     */
+    @Override
+    public long putBytes (byte[] content, String name, long lastModified) throws IOException {
+        return put(new ByteArrayInputStream(content), content.length, name, lastModified, false);
+    }
+
+    /**
+     * Reads the stream in blocks and submits them to the pool
+     * @param expected The expected length, the stream is read until its end
+     * anyway
+     * @param fromDisc The stream reads from the disc, so the reads are
+     * throttled
+     */
+    private long put (InputStream in, long expected, String name, long lastModified, boolean fromDisc) throws IOException {
+        if (closed)
+            throw new IOException("The archive is already closed");
+        Codec codec = codecs.select(name);
+        Entry entry = new Entry(name, toDosTime(lastModified), expected >= ZIP64_FILE_LIMIT, codec.getMethod());
+        crc.reset();
+        hash.reset();
+        Block previous = null;
+        boolean eof = false;
+        while (!eof) {
+            // wait for the oldest blocks, when there is no memory left
+            while (!pending.isEmpty() && inFlight + blockSize + Codec.getBound(blockSize) > memoryLimit)
+                writeBlock(pending.removeFirst());
+            // small files get a small block, a growing file is read until its end
+            long remaining = expected - entry.size;
+            int size = remaining > 0 ? (int) Math.min(blockSize, remaining) : (isAtEnd(in) ? 0 : blockSize);
+            byte[] data = blockPool.take(size);
+            governor.checkpoint();
+            if (fromDisc)
+                readThrottle.acquire(size);
+            int length = readFully(in, data, size);
+            eof = length < size || isAtEnd(in);
+            crc.update(data, 0, length);
+            hash.update(data, 0, length);
+            entry.size += length;
+
+            Block block = new Block(entry, length, previous == null);
+            block.last = eof;
+            if (eof)
+                entry.crc = crc.getValue();
+            block.data = data;
+            if (previous != null && !seekable)
+                block.dictionary = previous.data;
+            // a stored block is written from the raw block
+            block.output = codec.isStore() ? data : outputPool.take(Codec.getBound(length));
+            CompressJob job = new CompressJob(codec, block, previous == null ? 0 : previous.length, governor);
+            if (codec.isStore()) {
+                // nothing to compress, so the pool isn't needed
+                FutureTask<Integer> task = new FutureTask<Integer>(job);
+                task.run();
+                block.compressed = task;
+            }
+            else
+                block.compressed = pool.submit(job);
+            pending.add(block);
+            // the arrays count, a small file in a large array uses the whole array
+            inFlight += block.getMemory();
+            previous = block;
+            // write everything which is already done
+            while (!pending.isEmpty() && pending.getFirst().compressed.isDone())
+                writeBlock(pending.removeFirst());
+        }
+        return hash.getValue();
+    }
+
+    /**
+     * @return The context the archive is written with
+     */
+    @Override
+    public IOContext getContext () {
+        return context;
+    }
+
+    /**
+     * Waits for all blocks, writes the central directory and closes the file.
+     * @throws IOException when the archive can't be written
+     */
+    @Override
+    public void close () throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            while (!pending.isEmpty())
+                writeBlock(pending.removeFirst());
+            byte[] comment = seekable ? writeIndex() : new byte[0];
+            writeCentralDirectory(comment);
+            flush();
+        }
+        finally {
+            abort();
+        }
+    }
+
+    /**
+     * Stops the archive without writing the pending blocks and closes the
+     * file. The archive is unusable afterwards.
+     */
+    @Override
+    public void abort () {
+        closed = true;
+        for (Block block : pending)
+            block.compressed.cancel(true);
+        pending.clear();
+        FileUtils.closeQuietly(channel);
+        FileUtils.closeQuietly(fos);
+    }
+
+    /**
+     * Fills the array from the stream
+     * @param size How many bytes are read at most
+     * @return The count of read bytes, less than the size only at the end of
+     * the stream
+     */
+    private static int readFully (InputStream in, byte[] data, int size) throws IOException {
+        int length = 0;
+        while (length < size) {
+            int read = in.read(data, length, size - length);
+            if (read == -1)
+                break;
+            length += read;
+        }
+        return length;
+    }
+
+    /**
+     * @return true, when the stream has no more bytes
+     */
+    private static boolean isAtEnd (InputStream in) throws IOException {
+        return in.available() <= 0;
+    }
+
+    /**
+     * Writes a compressed block. The local header of the entry is written
+     * before its first block and updated after its last block.
+     */
+    private void writeBlock (Block block) throws IOException {
+        int compressed;
+        try {
+            compressed = block.compressed.get();
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for the compression");
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Failed to compress " + block.entry.name, e.getCause());
+        }
+        inFlight -= block.getMemory();
+        Entry entry = block.entry;
+        if (block.first) {
+            entry.offset = written;
+            // a single block entry is complete, so the header can be written with the final values
+            if (block.last)
+                entry.compressedSize = compressed;
+            writeLocalHeader(entry);
+        }
+        else if (seekable && !entry.isStored())
+            entry.addBlock(entry.rawWritten, written - entry.dataOffset);
+        write(block.output, 0, compressed);
+        entry.rawWritten += block.length;
+        // the raw block is still the dictionary of the next block, unless it is the last one
+        if (block.output != block.data)
+            outputPool.release(block.output);
+        blockPool.release(block.dictionary);
+        if (block.last || seekable)
+            blockPool.release(block.data);
+        block.output = null;
+        block.dictionary = null;
+        if (block.last) {
+            if (!block.first) {
+                entry.compressedSize = written - entry.dataOffset;
+                updateLocalHeader(entry);
+            }
+            if (!entry.zip64 && (entry.size >= MAX_32 || entry.compressedSize >= MAX_32))
+                throw new IOException("The file " + entry.name + " has grown over 4 GB while it was zipped");
+            entries.add(entry);
+        }
+    }
+
+    private void writeLocalHeader (Entry entry) throws IOException {
+        byte[] name = entry.nameBytes;
+        header.start(30 + name.length + (entry.zip64 ? 20 : 0));
+        header.putInt(0x04034b50);
+        header.putShort(entry.zip64 ? VERSION_ZIP64 : VERSION_DEFLATE);
+        header.putShort(FLAG_UTF8);
+        header.putShort(entry.method);
+        header.putInt(entry.dosTime);
+        putSizes(header, entry);
+        header.putShort(name.length);
+        header.putShort(entry.zip64 ? 20 : 0);
+        header.put(name);
+        if (entry.zip64) {
+            header.putShort(0x0001);
+            header.putShort(16);
+            header.putLong(entry.size);
+            header.putLong(entry.compressedSize);
+        }
+        write(header.array(), 0, header.length());
+        entry.dataOffset = written;
+    }
+
+    /**
+     * Writes the CRC and the sizes into the already written local header
+     */
+    private void updateLocalHeader (Entry entry) throws IOException {
+        flush();
+        header.start(12);
+        putSizes(header, entry);
+        writeAt(header.array(), header.length(), entry.offset + 14);
+        if (entry.zip64) {
+            header.start(16);
+            header.putLong(entry.size);
+            header.putLong(entry.compressedSize);
+            writeAt(header.array(), header.length(), entry.offset + 30 + entry.nameBytes.length + 4);
+        }
+    }
+
+    private void putSizes (HeaderBuilder header, Entry entry) {
+        header.putInt((int) entry.crc);
+        if (entry.zip64) {
+            header.putInt((int) MAX_32);
+            header.putInt((int) MAX_32);
+        }
+        else {
+            header.putInt((int) entry.compressedSize);
+            header.putInt((int) entry.size);
+        }
+    }
+
+    /**
+     * Writes the index of the entries as last stored entry
+     * @return The comment of the archive, which points to the index
+     */
+    private byte[] writeIndex () throws IOException {
+        ByteBuffer index = ArchiveIndex.build(entries.size());
+        for (Entry entry : entries)
+            index = ArchiveIndex.put(index, entry.nameBytes, entry.method, entry.dosTime, entry.crc, entry.size, entry.compressedSize, entry.dataOffset, entry.blocks, entry.blockCount);
+        int length = index.position();
+
+        Entry entry = new Entry(ArchiveIndex.ENTRY_NAME, toDosTime(System.currentTimeMillis()), false, Codec.METHOD_STORED);
+        crc.reset();
+        crc.update(index.array(), 0, length);
+        entry.crc = crc.getValue();
+        entry.size = length;
+        entry.compressedSize = length;
+        entry.offset = written;
+        writeLocalHeader(entry);
+        write(index.array(), 0, length);
+        entries.add(entry);
+        return ArchiveIndex.getComment(entry.dataOffset, length).getBytes(UTF8);
+    }
+
+    /**
+     * @param comment The comment of the archive
+     */
+    private void writeCentralDirectory (byte[] comment) throws IOException {
+        long start = written;
+        for (Entry entry : entries) {
+            byte[] name = entry.nameBytes;
+            boolean largeSize = entry.size >= MAX_32;
+            boolean largeCompressed = entry.compressedSize >= MAX_32;
+            boolean largeOffset = entry.offset >= MAX_32;
+            int extraLength = (largeSize ? 8 : 0) + (largeCompressed ? 8 : 0) + (largeOffset ? 8 : 0);
+            if (extraLength > 0)
+                extraLength += 4;
+            boolean zip64 = extraLength > 0 || entry.zip64;
+
+            header.start(46 + name.length + extraLength);
+            header.putInt(0x02014b50);
+            header.putShort(zip64 ? VERSION_ZIP64 : VERSION_DEFLATE);
+            header.putShort(zip64 ? VERSION_ZIP64 : VERSION_DEFLATE);
+            header.putShort(FLAG_UTF8);
+            header.putShort(entry.method);
+            header.putInt(entry.dosTime);
+            header.putInt((int) entry.crc);
+            header.putInt((int) (largeCompressed ? MAX_32 : entry.compressedSize));
+            header.putInt((int) (largeSize ? MAX_32 : entry.size));
+            header.putShort(name.length);
+            header.putShort(extraLength);
+            // comment length, disk number, internal and external attributes
+            header.putShort(0);
+            header.putShort(0);
+            header.putShort(0);
+            header.putInt(0);
+            header.putInt((int) (largeOffset ? MAX_32 : entry.offset));
+            header.put(name);
+            if (extraLength > 0) {
+                header.putShort(0x0001);
+                header.putShort(extraLength - 4);
+                if (largeSize)
+                    header.putLong(entry.size);
+                if (largeCompressed)
+                    header.putLong(entry.compressedSize);
+                if (largeOffset)
+                    header.putLong(entry.offset);
+            }
+            write(header.array(), 0, header.length());
+        }
+        long size = written - start;
+
+        if (entries.size() >= MAX_16 || size >= MAX_32 || start >= MAX_32) {
+            long zip64End = written;
+            header.start(56 + 20);
+            header.putInt(0x06064b50);
+            header.putLong(44);
+            header.putShort(VERSION_ZIP64);
+            header.putShort(VERSION_ZIP64);
+            header.putInt(0);
+            header.putInt(0);
+            header.putLong(entries.size());
+            header.putLong(entries.size());
+            header.putLong(size);
+            header.putLong(start);
+            // the locator of the ZIP64 end record
+            header.putInt(0x07064b50);
+            header.putInt(0);
+            header.putLong(zip64End);
+            header.putInt(1);
+            write(header.array(), 0, header.length());
+        }
+        header.start(22 + comment.length);
+        header.putInt(0x06054b50);
+        header.putShort(0);
+        header.putShort(0);
+        header.putShort(Math.min(entries.size(), MAX_16));
+        header.putShort(Math.min(entries.size(), MAX_16));
+        header.putInt((int) Math.min(size, MAX_32));
+        header.putInt((int) Math.min(start, MAX_32));
+        header.putShort(comment.length);
+        header.put(comment);
+        write(header.array(), 0, header.length());
+    }
+
+    private void write (byte[] data, int offset, int length) throws IOException {
+        if (length > outBuffer.remaining()) {
+            flush();
+            if (length > outBuffer.capacity()) {
+                writeThrottle.acquire(length);
+                ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+                written += length;
+                return;
+            }
+        }
+        outBuffer.put(data, offset, length);
+        written += length;
+    }
+
+    private void writeAt (byte[] data, int length, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining())
+            channel.write(buffer, position + buffer.position());
+    }
+
+    private void flush () throws IOException {
+        outBuffer.flip();
+        writeThrottle.acquire(outBuffer.remaining());
+        while (outBuffer.hasRemaining())
+            channel.write(outBuffer);
+        outBuffer.clear();
+    }
+
+    /**
+     * Converts a time into the MS-DOS format of the ZIP headers
+     */
+    private int toDosTime (long time) {
+        Calendar cal = calendar;
+        cal.setTimeInMillis(time);
+        int year = cal.get(Calendar.YEAR);
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+        return (year - 1980) << 25
+                | (cal.get(Calendar.MONTH) + 1) << 21
+                | cal.get(Calendar.DAY_OF_MONTH) << 16
+                | cal.get(Calendar.HOUR_OF_DAY) << 11
+                | cal.get(Calendar.MINUTE) << 5
+                | cal.get(Calendar.SECOND) >> 1;
+    }
+
+    /**
+     * A file in the archive
+     */
+    private static class Entry {
+
+        private final String name;
+        private final byte[] nameBytes;
+        private final int dosTime;
+        private final boolean zip64;
+        private long crc;
+        private long size;
+        private long compressedSize;
+        /** The position of the local header */
+        private long offset;
+        /** The position of the compressed data */
+        private long dataOffset;
+        /** The ZIP compression method */
+        private final int method;
+        /** The raw and the compressed position of every block after the
+         * first one, relative to the data, only known in a seekable archive */
+        private long[] blocks = null;
+        private int blockCount = 0;
+        /** The raw bytes of the written blocks */
+        private long rawWritten = 0;
+
+        private Entry (String name, int dosTime, boolean zip64, int method) {
+            this.name = name;
+            this.nameBytes = name.getBytes(UTF8);
+            this.dosTime = dosTime;
+            this.zip64 = zip64;
+            this.method = method;
+        }
+
+        private boolean isStored () {
+            return method == Codec.METHOD_STORED;
+        }
+
+        private void addBlock (long raw, long compressed) {
+            if (blocks == null)
+                blocks = new long[16];
+            else if (blockCount * 2 == blocks.length)
+                blocks = Arrays.copyOf(blocks, blocks.length * 2);
+            blocks[blockCount * 2] = raw;
+            blocks[blockCount * 2 + 1] = compressed;
+            ++blockCount;
+        }
+    }
+
+    /**
+     * A part of a file, which is compressed on its own
+     */
+    private static class Block {
+
+        private final Entry entry;
+        private final int length;
+        private final boolean first;
+        private boolean last;
+        /** The raw data, it is kept until the next block is written, which
+         * needs it as dictionary */
+        private byte[] data;
+        /** The raw data of the previous block, may be null */
+        private byte[] dictionary;
+        /** Gets the compressed data, the raw data itself for a stored block */
+        private byte[] output;
+        /** The count of compressed bytes in the output */
+        private Future<Integer> compressed;
+
+        private Block (Entry entry, int length, boolean first) {
+            this.entry = entry;
+            this.length = length;
+            this.first = first;
+        }
+
+        /**
+         * @return The size of the arrays of the block
+         */
+        private long getMemory () {
+            return data.length + (output != data ? output.length : 0);
+        }
+    }
+
+    /**
+     * Compresses a single block
+     */
+    private static class CompressJob implements Callable<Integer> {
+
+        private final Codec codec;
+        private final byte[] data;
+        private final int length;
+        private final byte[] dictionary;
+        private final int dictionaryEnd;
+        private final boolean last;
+        private final byte[] output;
+        private final SpeedGovernor governor;
+
+        /**
+         * @param codec The compression of the entry
+         * @param block The block with its raw data, its dictionary and the
+         * array for the compressed data
+         * @param dictionaryEnd The count of bytes in the previous block
+         * @param governor Slows the compression down, while the server lags
+         */
+        private CompressJob (Codec codec, Block block, int dictionaryEnd, SpeedGovernor governor) {
+            this.codec = codec;
+            this.data = block.data;
+            this.length = block.length;
+            this.dictionary = block.dictionary;
+            this.dictionaryEnd = dictionaryEnd;
+            this.last = block.last;
+            this.output = block.output;
+            this.governor = governor;
+        }
+
+        @Override
+        public Integer call () throws InterruptedIOException {
+            long start = System.nanoTime();
+            int compressed = codec.compressBlock(data, length, dictionary, dictionaryEnd, last, output);
+            if (!codec.isStore())
+                governor.pause(System.nanoTime() - start);
+            return compressed;
+        }
+    }
+
+    /**
+     * Builds a little endian header of fixed size
+     */
+    private static class HeaderBuilder {
+
+        private ByteBuffer buffer = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+
+        /**
+         * Starts a new header, the buffer grows when it is too small
+         * @param size The size of the header
+         */
+        private void start (int size) {
+            if (size > buffer.capacity())
+                buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.clear();
+        }
+
+        private void putShort (int value) {
+            buffer.putShort((short) value);
+        }
+
+        private void putInt (long value) {
+            buffer.putInt((int) value);
+        }
+
+        private void putLong (long value) {
+            buffer.putLong(value);
+        }
+
+        private void put (byte[] data) {
+            buffer.put(data);
+        }
+
+        private byte[] array () {
+            return buffer.array();
+        }
+
+        private int length () {
+            return buffer.position();
+        }
+    }
+}
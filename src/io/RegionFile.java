@@ -0,0 +1,372 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Reads and writes Minecraft region files (<code>region/r.X.Z.mcr</code> and
+ * <code>.mca</code>) on the level of their chunks.
+ * <p>
+ * A region file starts with two tables of 1024 entries: the location of every
+ * chunk in sectors of 4 KB and the time the chunk was saved the last time.
+ * Every chunk is stored as length, compression type and compressed payload.
+ * <p>
+ * A delta of a region file contains only the chunks whose payload changed,
+ * the chunks whose timestamp changed and the removed chunks. A complete region
+ * file is rebuilt from a full copy and all following deltas.
+ * @author Kilian Gaertner
+ */
+public class RegionFile {
+
+    public static final int CHUNKS = 1024;
+    /** The extension of a delta in a backup */
+    public static final String DELTA_SUFFIX = ".rdelta";
+    private static final int SECTOR_SIZE = 4096;
+    private static final int DELTA_MAGIC = 0x52444C54;
+    private static final int STATE_MAGIC = 0x52535431;
+    private static final int OP_CHUNK = 0;
+    private static final int OP_TIMESTAMP = 1;
+    private static final int OP_REMOVE = 2;
+    private static final int OP_END = 0xFF;
+    private static final Pattern REGION_PATH = Pattern.compile("(^|.*/)region/r\\.-?\\d+\\.-?\\d+\\.mc[ar]");
+
+    private final int[] timestamps = new int[CHUNKS];
+    /** The compression type of every chunk, -1 when there is no chunk */
+    private final int[] types = new int[CHUNKS];
+    private final byte[][] payloads = new byte[CHUNKS][];
+
+    private RegionFile () {
+        for (int i = 0; i < CHUNKS; ++i)
+            types[i] = -1;
+    }
+
+    /**
+     * @param path The path of a file in a backup
+     * @return true, when the file is a region file
+     */
+    public static boolean isRegionPath (String path) {
+        return REGION_PATH.matcher(path).matches();
+    }
+
+    /**
+     * Parses the content of a region file
+     * @param data The complete region file
+     * @return The region, null when the data is no valid region file
+     */
+    public static RegionFile parse (byte[] data) {
+        RegionFile region = new RegionFile();
+        if (data.length == 0)
+            return region;
+        if (data.length < 2 * SECTOR_SIZE)
+            return null;
+        for (int i = 0; i < CHUNKS; ++i) {
+            int location = readInt(data, i * 4);
+            region.timestamps[i] = readInt(data, SECTOR_SIZE + i * 4);
+            if (location == 0)
+                continue;
+            long offset = (long) (location >>> 8) * SECTOR_SIZE;
+            int sectors = location & 0xFF;
+            if (offset < 2 * SECTOR_SIZE || offset + 5 > data.length)
+                return null;
+            int length = readInt(data, (int) offset);
+            if (length < 1 || length > sectors * SECTOR_SIZE - 4 || offset + 4 + length > data.length)
+                return null;
+            region.types[i] = data[(int) offset + 4] & 0xFF;
+            byte[] payload = new byte[length - 1];
+            System.arraycopy(data, (int) offset + 5, payload, 0, payload.length);
+            region.payloads[i] = payload;
+        }
+        return region;
+    }
+
+    /**
+     * @return The state of the chunks, which the next delta is based on
+     */
+    public State getState (String chain) {
+        State state = new State(chain);
+        for (int i = 0; i < CHUNKS; ++i) {
+            state.timestamps[i] = timestamps[i];
+            state.hashes[i] = hashChunk(i);
+        }
+        return state;
+    }
+
+    /**
+     * Creates the delta from a previous state to this region
+     * @param previous The state of the region in the previous backup
+     * @return The content of the delta file
+     */
+    public byte[] createDelta (State previous) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(DELTA_MAGIC);
+            for (int i = 0; i < CHUNKS; ++i) {
+                long hash = hashChunk(i);
+                if (types[i] == -1) {
+                    if (previous.hashes[i] != 0) {
+                        out.writeByte(OP_REMOVE);
+                        out.writeShort(i);
+                    }
+                }
+                else if (hash != previous.hashes[i]) {
+                    out.writeByte(OP_CHUNK);
+                    out.writeShort(i);
+                    out.writeInt(timestamps[i]);
+                    out.writeByte(types[i]);
+                    out.writeInt(payloads[i].length);
+                    out.write(payloads[i]);
+                }
+                else if (timestamps[i] != previous.timestamps[i]) {
+                    out.writeByte(OP_TIMESTAMP);
+                    out.writeShort(i);
+                    out.writeInt(timestamps[i]);
+                }
+            }
+            out.writeByte(OP_END);
+            out.close();
+            return bytes.toByteArray();
+        }
+        catch (IOException e) {
+            // a ByteArrayOutputStream doesn't throw exceptions
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Applies a delta to this region
+     * @param in The content of the delta file
+     * @throws IOException when the delta is damaged
+     */
+    public void applyDelta (InputStream in) throws IOException {
+        DataInputStream dis = new DataInputStream(in);
+        if (dis.readInt() != DELTA_MAGIC)
+            throw new IOException("This is no region delta");
+        while (true) {
+            int op = dis.readUnsignedByte();
+            if (op == OP_END)
+                return;
+            int i = dis.readUnsignedShort();
+            if (i >= CHUNKS)
+                throw new IOException("Invalid chunk index " + i + " in the region delta");
+            if (op == OP_CHUNK) {
+                timestamps[i] = dis.readInt();
+                types[i] = dis.readUnsignedByte();
+                byte[] payload = new byte[dis.readInt()];
+                dis.readFully(payload);
+                payloads[i] = payload;
+            }
+            else if (op == OP_TIMESTAMP)
+                timestamps[i] = dis.readInt();
+            else if (op == OP_REMOVE) {
+                timestamps[i] = 0;
+                types[i] = -1;
+                payloads[i] = null;
+            }
+            else
+                throw new IOException("Invalid operation " + op + " in the region delta");
+        }
+    }
+
+    /**
+     * Rebuilds a complete region file from a full copy and its deltas. The
+     * chunks are packed behind the header, so the file has the same chunks
+     * as the original one, but not always the same bytes.
+     * @param base The full region file of the oldest backup
+     * @param deltas The deltas of the following backups, oldest first
+     * @param out The region file to write
+     * @return The rebuilt region
+     * @throws IOException when a file is damaged or the region can't be written
+     */
+    public static RegionFile rebuild (InputStream base, List<InputStream> deltas, File out) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = base.read(buffer)) != -1)
+            bytes.write(buffer, 0, read);
+        RegionFile region = parse(bytes.toByteArray());
+        if (region == null)
+            throw new IOException("The base of " + out + " is no valid region file");
+        for (InputStream delta : deltas)
+            region.applyDelta(delta);
+        FileOutputStream fos = new FileOutputStream(out);
+        try {
+            region.write(fos);
+        }
+        finally {
+            fos.close();
+        }
+        return region;
+    }
+
+    /**
+     * Writes the region with all chunks packed behind the header
+     */
+    private void write (FileOutputStream fos) throws IOException {
+        byte[] header = new byte[2 * SECTOR_SIZE];
+        int sector = 2;
+        for (int i = 0; i < CHUNKS; ++i) {
+            writeInt(header, SECTOR_SIZE + i * 4, timestamps[i]);
+            if (types[i] == -1)
+                continue;
+            int sectors = (payloads[i].length + 5 + SECTOR_SIZE - 1) / SECTOR_SIZE;
+            if (sectors > 0xFF)
+                throw new IOException("The chunk " + i + " is too large for a region file");
+            writeInt(header, i * 4, sector << 8 | sectors);
+            sector += sectors;
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+        out.write(header);
+        byte[] padding = new byte[SECTOR_SIZE];
+        for (int i = 0; i < CHUNKS; ++i) {
+            if (types[i] == -1)
+                continue;
+            int length = payloads[i].length + 5;
+            out.writeInt(payloads[i].length + 1);
+            out.writeByte(types[i]);
+            out.write(payloads[i]);
+            out.write(padding, 0, (SECTOR_SIZE - length % SECTOR_SIZE) % SECTOR_SIZE);
+        }
+        out.flush();
+    }
+
+    /**
+     * @return The hash of the type and payload of a chunk, 0 when there is no chunk
+     */
+    private long hashChunk (int i) {
+        if (types[i] == -1)
+            return 0;
+        XXHash64 hash = new XXHash64();
+        hash.update(new byte[] { (byte) types[i] }, 0, 1);
+        hash.update(payloads[i], 0, payloads[i].length);
+        long value = hash.getValue();
+        return value == 0 ? 1 : value;
+    }
+
+    private static int readInt (byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16
+                | (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+    }
+
+    private static void writeInt (byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    /**
+     * The timestamps and payload hashes of the chunks of a region file in a
+     * backup, and the backups which are needed to restore it.
+     */
+    public static class State {
+
+        /** The names of the backups with the full copy and the deltas */
+        private final String chain;
+        private final int[] timestamps = new int[CHUNKS];
+        private final long[] hashes = new long[CHUNKS];
+
+        private State (String chain) {
+            this.chain = chain;
+        }
+
+        public String getChain () {
+            return chain;
+        }
+
+        /**
+         * @return The same state, but restored by another chain of backups
+         */
+        public State withChain (String newChain) {
+            State state = new State(newChain);
+            System.arraycopy(timestamps, 0, state.timestamps, 0, CHUNKS);
+            System.arraycopy(hashes, 0, state.hashes, 0, CHUNKS);
+            return state;
+        }
+
+        /**
+         * @return true, when the other state has the same chunks with the
+         * same timestamps
+         */
+        public boolean hasSameChunks (State other) {
+            return Arrays.equals(timestamps, other.timestamps) && Arrays.equals(hashes, other.hashes);
+        }
+
+        /**
+         * Reads a stored state
+         * @return The state, null when there is none or it is damaged
+         */
+        public static State read (File file) {
+            if (!file.exists())
+                return null;
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                if (in.readInt() != STATE_MAGIC)
+                    return null;
+                State state = new State(in.readUTF());
+                for (int i = 0; i < CHUNKS; ++i) {
+                    state.timestamps[i] = in.readInt();
+                    state.hashes[i] = in.readLong();
+                }
+                return state;
+            }
+            catch (IOException e) {
+                return null;
+            }
+            finally {
+                FileUtils.closeQuietly(in);
+            }
+        }
+
+        /**
+         * Writes the state, the file is replaced atomically
+         * @throws IOException
+         */
+        public void write (File file) throws IOException {
+            file.getParentFile().mkdirs();
+            File tempFile = new File(file.getPath().concat(".tmp"));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(STATE_MAGIC);
+                out.writeUTF(chain);
+                for (int i = 0; i < CHUNKS; ++i) {
+                    out.writeInt(timestamps[i]);
+                    out.writeLong(hashes[i]);
+                }
+            }
+            finally {
+                out.close();
+            }
+            FileUtils.moveAtomically(tempFile, file);
+        }
+    }
+}
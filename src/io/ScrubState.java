@@ -0,0 +1,176 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The outcome of the last scrub of every backup. It is stored in the meta
+ * directory as <code>scrub.state</code> and written after every checked
+ * backup, so a scrub, which was stopped by a restart of the server, goes on
+ * with the backups which weren't checked.
+ * @author Kilian Gaertner
+ */
+public class ScrubState {
+
+    /** The file name of the state in the meta directory */
+    public static final String FILE_NAME = "scrub.state";
+    public static final String STATUS_OK = "ok";
+    public static final String STATUS_BROKEN = "broken";
+    public static final String STATUS_ERROR = "error";
+
+    /** The outcomes mapped by the id of the backup */
+    private final Map<String, Record> records = new TreeMap<String, Record>();
+
+    /**
+     * @param id The id of the backup
+     * @return The outcome of the last scrub, null when it was never scrubbed
+     */
+    public Record get (String id) {
+        return records.get(id);
+    }
+
+    public void put (String id, Record record) {
+        records.put(id, record);
+    }
+
+    /**
+     * Forgets the backups, which don't exist any longer
+     * @param ids The ids of the existing backups
+     */
+    public void retain (Collection<String> ids) {
+        records.keySet().retainAll(ids);
+    }
+
+    /**
+     * Writes the state. The file is replaced atomically.
+     * @param metaDir The meta directory of the backup folder
+     * @throws IOException
+     */
+    public void write (File metaDir) throws IOException {
+        // a backup folder with only the repository has no meta directory
+        metaDir.mkdirs();
+        File tempFile = new File(metaDir, FILE_NAME.concat(".tmp"));
+        BufferedWriter bWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+        try {
+            for (Map.Entry<String, Record> entry : records.entrySet()) {
+                Record record = entry.getValue();
+                bWriter.write(entry.getKey() + "\t" + record.checked + "\t" + record.status + "\t" + record.files + "\t" + record.bytes + "\t" + record.detail);
+                bWriter.newLine();
+            }
+        }
+        finally {
+            bWriter.close();
+        }
+        FileUtils.moveAtomically(tempFile, new File(metaDir, FILE_NAME));
+    }
+
+    /**
+     * Reads the state. A missing or damaged state is empty, so every backup
+     * is scrubbed again.
+     * @param metaDir The meta directory of the backup folder
+     * @return The state
+     */
+    public static ScrubState read (File metaDir) {
+        ScrubState state = new ScrubState();
+        File file = new File(metaDir, FILE_NAME);
+        if (!file.exists())
+            return state;
+        try {
+            BufferedReader bReader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = bReader.readLine()) != null) {
+                    String[] split = line.split("\t", 6);
+                    if (split.length == 6)
+                        state.put(split[0], new Record(Long.parseLong(split[1]), split[2], Integer.parseInt(split[3]), Long.parseLong(split[4]), split[5]));
+                }
+            }
+            finally {
+                bReader.close();
+            }
+        }
+        catch (IOException e) {
+            System.out.println("[BACKUP] Can't read the scrub state, every backup is scrubbed again.");
+            return new ScrubState();
+        }
+        catch (NumberFormatException e) {
+            System.out.println("[BACKUP] The scrub state is damaged, every backup is scrubbed again.");
+            return new ScrubState();
+        }
+        return state;
+    }
+
+    /**
+     * The outcome of the scrub of a backup
+     */
+    public static class Record {
+
+        private final long checked;
+        private final String status;
+        private final int files;
+        private final long bytes;
+        private final String detail;
+
+        /**
+         * @param checked When the backup was scrubbed
+         * @param status ok, broken or error
+         * @param files How many files are fine
+         * @param bytes How many bytes were read
+         * @param detail The first problem, empty when there is none
+         */
+        public Record (long checked, String status, int files, long bytes, String detail) {
+            this.checked = checked;
+            this.status = status;
+            this.files = files;
+            this.bytes = bytes;
+            // the state has a line per backup
+            this.detail = detail.replaceAll("[\\t\\r\\n]", " ");
+        }
+
+        public long getChecked () {
+            return checked;
+        }
+
+        public String getStatus () {
+            return status;
+        }
+
+        public int getFiles () {
+            return files;
+        }
+
+        public long getBytes () {
+            return bytes;
+        }
+
+        public String getDetail () {
+            return detail;
+        }
+    }
+}
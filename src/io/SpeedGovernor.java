@@ -0,0 +1,106 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Slows the threads of a backup down to a fraction of their full speed. A
+ * thread working with a speed of 25 % sleeps three times as long as it has
+ * worked since its last checkpoint, so it uses only a quarter of the disc
+ * and the processor it would use otherwise. The speed can be changed at any
+ * time by another thread, for example by a monitor of the server ticks.
+ * @author Kilian Gaertner
+ */
+public class SpeedGovernor {
+
+    /** The lowest speed, the backup shall finish some day */
+    public static final double MIN_SPEED = 0.05;
+    /** A single sleep never takes longer, so a new speed is used soon */
+    private static final long MAX_SLEEP_NANOS = 1000000000L;
+
+    private volatile double speed = 1.0;
+    /** The end of the last checkpoint of every thread */
+    private final ThreadLocal<long[]> lastCheckpoint = new ThreadLocal<long[]>() {
+
+        @Override
+        protected long[] initialValue () {
+            return new long[] { System.nanoTime() };
+        }
+    };
+    /** How long the threads slept together */
+    private long sleptNanos = 0;
+
+    /**
+     * Sleeps after the work the thread has done since its last checkpoint
+     * @throws InterruptedIOException when the thread is interrupted while it
+     * sleeps
+     */
+    public void checkpoint () throws InterruptedIOException {
+        long[] last = lastCheckpoint.get();
+        long now = System.nanoTime();
+        if (speed < 1.0)
+            pause(now - last[0]);
+        last[0] = System.nanoTime();
+    }
+
+    /**
+     * Sleeps after a measured work
+     * @param workNanos How long the work took
+     * @throws InterruptedIOException when the thread is interrupted while it
+     * sleeps
+     */
+    public void pause (long workNanos) throws InterruptedIOException {
+        double currentSpeed = speed;
+        if (currentSpeed >= 1.0 || workNanos <= 0)
+            return;
+        long sleep = Math.min((long) (workNanos * (1.0 - currentSpeed) / currentSpeed), MAX_SLEEP_NANOS);
+        synchronized (this) {
+            sleptNanos += sleep;
+        }
+        try {
+            Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while the backup was slowed down");
+        }
+    }
+
+    /**
+     * @return The fraction of the full speed, between MIN_SPEED and 1
+     */
+    public double getSpeed () {
+        return speed;
+    }
+
+    /**
+     * @param speed The fraction of the full speed, it is kept between
+     * MIN_SPEED and 1
+     */
+    public void setSpeed (double speed) {
+        this.speed = Math.max(MIN_SPEED, Math.min(1.0, speed));
+    }
+
+    /**
+     * @return How many milliseconds the threads slept together
+     */
+    public synchronized long getSleptMillis () {
+        return sleptNanos / 1000000;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lists the entries of a tar archive, which was written by the TarWriter.
+ * Only the headers are read, the content of an entry can be read afterwards
+ * at its offset, by several threads at the same time.
+ * @author Kilian Gaertner
+ */
+class TarReader {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BLOCK = 512;
+
+    private TarReader () {
+    }
+
+    /**
+     * @param tar The archive
+     * @return The files in the archive in the order of the archive
+     * @throws IOException when the archive can't be read or is damaged
+     */
+    static List<Entry> list (File tar) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        RandomAccessFile file = new RandomAccessFile(tar, "r");
+        try {
+            byte[] header = new byte[BLOCK];
+            long length = file.length();
+            long position = 0;
+            String paxPath = null;
+            long paxSize = -1;
+            while (position + BLOCK <= length) {
+                file.seek(position);
+                file.readFully(header);
+                // two empty blocks mark the end of the archive
+                if (header[0] == 0)
+                    break;
+                long size = paxSize >= 0 ? paxSize : parseOctal(header, 124, 12);
+                byte type = header[156];
+                position += BLOCK;
+                if (type == 'x') {
+                    if (size > Integer.MAX_VALUE)
+                        throw new IOException("The archive " + tar + " is damaged");
+                    byte[] pax = new byte[(int) size];
+                    file.readFully(pax);
+                    for (String record : new String(pax, UTF8).split("\n")) {
+                        int start = record.indexOf(' ');
+                        if (record.startsWith("path=", start + 1))
+                            paxPath = record.substring(start + 6);
+                        else if (record.startsWith("size=", start + 1))
+                            paxSize = Long.parseLong(record.substring(start + 6));
+                    }
+                }
+                else {
+                    if (type == '0' || type == 0)
+                        entries.add(new Entry(paxPath != null ? paxPath : parseName(header), position, size));
+                    paxPath = null;
+                    paxSize = -1;
+                }
+                position += (size + BLOCK - 1) / BLOCK * BLOCK;
+            }
+            if (position > length)
+                throw new IOException("The archive " + tar + " is truncated");
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("The archive " + tar + " is damaged", e);
+        }
+        finally {
+            file.close();
+        }
+        return entries;
+    }
+
+    private static String parseName (byte[] header) {
+        int end = 0;
+        while (end < 100 && header[end] != 0)
+            ++end;
+        return new String(header, 0, end, UTF8);
+    }
+
+    private static long parseOctal (byte[] header, int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length && header[i] >= '0' && header[i] <= '7'; ++i)
+            value = value * 8 + (header[i] - '0');
+        return value;
+    }
+
+    /**
+     * A file in the archive
+     */
+    static class Entry {
+
+        private final String name;
+        private final long offset;
+        private final long size;
+
+        private Entry (String name, long offset, long size) {
+            this.name = name;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        String getName () {
+            return name;
+        }
+
+        /**
+         * @return The position of the content in the archive
+         */
+        long getOffset () {
+            return offset;
+        }
+
+        long getSize () {
+            return size;
+        }
+    }
+}
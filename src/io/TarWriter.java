@@ -0,0 +1,251 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Writes an uncompressed POSIX tar archive. Names, which don't fit into the
+ * ustar header, and very large files get a pax extended header.
+ * <p>
+ * The content of a file is transferred by the channels from the file to the
+ * archive, so it doesn't pass the heap and on Linux the kernel copies it
+ * directly. So the files aren't hashed, their records in the manifest have
+ * an unknown hash.
+ * @author Kilian Gaertner
+ */
+public class TarWriter implements ArchiveWriter {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BLOCK = 512;
+    /** The largest size the octal size field of the ustar header can hold */
+    private static final long MAX_USTAR_SIZE = 077777777777L;
+    private static final int MAX_USTAR_NAME = 100;
+    private static final byte TYPE_FILE = '0';
+    private static final byte TYPE_PAX = 'x';
+    private static final int MODE_FILE = 0644;
+    /** The size of a step of an unthrottled transfer */
+    private static final long STEP = FileUtils.ONE_MB * 50;
+
+    private final FileOutputStream fos;
+    private final FileChannel channel;
+    private final IOContext context;
+    private final ByteBuffer header = ByteBuffer.allocate(BLOCK);
+    private boolean closed = false;
+
+    /**
+     * @param tarFile The archive to write, an existing file is overwritten
+     * @param context The throttles and the governor for the reads and writes
+     * @throws IOException when the archive can't be created
+     */
+    public TarWriter (File tarFile, IOContext context) throws IOException {
+        this.fos = new FileOutputStream(tarFile);
+        this.channel = fos.getChannel();
+        this.context = context;
+    }
+
+    /**
+     * Adds a file to the archive. The file must not change while it is
+     * added.
+     * @return BackupManifest.UNKNOWN_HASH, the content isn't read
+     */
+    @Override
+    public long putFile (File file, String name) throws IOException {
+        if (closed)
+            throw new IOException("The archive is already closed");
+        FileInputStream fis = new FileInputStream(file);
+        FileChannel input = fis.getChannel();
+        try {
+            long size = input.size();
+            writeHeader(name, size, file.lastModified());
+            transfer(input, size);
+            pad(size);
+            return BackupManifest.UNKNOWN_HASH;
+        }
+        finally {
+            FileUtils.closeQuietly(input);
+            FileUtils.closeQuietly(fis);
+        }
+    }
+
+    @Override
+    public long putBytes (byte[] content, String name, long lastModified) throws IOException {
+        if (closed)
+            throw new IOException("The archive is already closed");
+        writeHeader(name, content.length, lastModified);
+        context.getGovernor().checkpoint();
+        context.getWriteThrottle().acquire(content.length);
+        writeFully(ByteBuffer.wrap(content));
+        pad(content.length);
+        XXHash64 hash = new XXHash64();
+        hash.update(content, 0, content.length);
+        return hash.getValue();
+    }
+
+    /**
+     * Transfers the content of a file to the archive without reading it
+     */
+    private void transfer (FileChannel input, long size) throws IOException {
+        // a throttled transfer is done in small steps, so the waits are short
+        long step = context.getReadThrottle().isLimited() || context.getWriteThrottle().isLimited() ? FileUtils.ONE_MB : STEP;
+        long pos = 0;
+        while (pos < size) {
+            long count = Math.min(step, size - pos);
+            FileUtils.throttle(context, count);
+            long transferred = input.transferTo(pos, count, channel);
+            if (transferred <= 0)
+                throw new IOException("The file got shorter while it was archived");
+            pos += transferred;
+        }
+    }
+
+    /**
+     * Writes the header of an entry. A pax header is written before it,
+     * when the name or the size doesn't fit into the ustar header.
+     */
+    private void writeHeader (String name, long size, long lastModified) throws IOException {
+        byte[] nameBytes = name.getBytes(UTF8);
+        long mtime = Math.max(lastModified / 1000, 0);
+        boolean longName = nameBytes.length > MAX_USTAR_NAME || nameBytes.length != name.length();
+        if (longName || size > MAX_USTAR_SIZE) {
+            StringBuilder records = new StringBuilder();
+            if (longName)
+                records.append(paxRecord("path", name));
+            if (size > MAX_USTAR_SIZE)
+                records.append(paxRecord("size", Long.toString(size)));
+            byte[] pax = records.toString().getBytes(UTF8);
+            writeUstarHeader(asciiName("PaxHeaders/".concat(name)), pax.length, mtime, TYPE_PAX);
+            writeFully(ByteBuffer.wrap(pax));
+            pad(pax.length);
+        }
+        writeUstarHeader(longName ? asciiName(name) : nameBytes, Math.min(size, MAX_USTAR_SIZE), mtime, TYPE_FILE);
+    }
+
+    private void writeUstarHeader (byte[] name, long size, long mtime, byte type) throws IOException {
+        Arrays.fill(header.array(), (byte) 0);
+        header.clear();
+        header.put(name, 0, Math.min(name.length, MAX_USTAR_NAME));
+        putOctal(100, MODE_FILE, 8);
+        putOctal(108, 0, 8);
+        putOctal(116, 0, 8);
+        putOctal(124, size, 12);
+        putOctal(136, mtime, 12);
+        header.position(148);
+        // the checksum is calculated with spaces in its own field
+        header.put("        ".getBytes(UTF8));
+        header.put(156, type);
+        header.position(257);
+        header.put("ustar\0".getBytes(UTF8));
+        header.put("00".getBytes(UTF8));
+        int checksum = 0;
+        for (int i = 0; i < BLOCK; ++i)
+            checksum += header.get(i) & 0xFF;
+        putOctal(148, checksum, 7);
+        header.clear();
+        writeFully(header);
+    }
+
+    /**
+     * Writes a zero terminated octal number into the header
+     */
+    private void putOctal (int offset, long value, int length) {
+        String octal = Long.toOctalString(value);
+        header.position(offset);
+        for (int i = octal.length(); i < length - 1; ++i)
+            header.put((byte) '0');
+        header.put(octal.getBytes(UTF8));
+        header.put((byte) 0);
+    }
+
+    /**
+     * @return A record of a pax header, it starts with its own length
+     */
+    private static String paxRecord (String key, String value) {
+        int length = key.length() + value.getBytes(UTF8).length + 3;
+        // the length counts its own digits
+        int total = length + Integer.toString(length).length();
+        if (Integer.toString(total).length() != Integer.toString(length).length())
+            ++total;
+        return total + " " + key + "=" + value + "\n";
+    }
+
+    /**
+     * @return The name for the ustar header of an entry, which has its real
+     * name in the pax header
+     */
+    private static byte[] asciiName (String name) {
+        byte[] ascii = name.replaceAll("[^\\x20-\\x7E]", "_").getBytes(UTF8);
+        if (ascii.length <= MAX_USTAR_NAME)
+            return ascii;
+        // the end of the name is more helpful for an old tar
+        byte[] shortened = new byte[MAX_USTAR_NAME];
+        System.arraycopy(ascii, ascii.length - MAX_USTAR_NAME, shortened, 0, MAX_USTAR_NAME);
+        return shortened;
+    }
+
+    /**
+     * Fills the last block of an entry with zeros
+     */
+    private void pad (long size) throws IOException {
+        int padding = (int) ((BLOCK - size % BLOCK) % BLOCK);
+        if (padding > 0)
+            writeFully(ByteBuffer.wrap(new byte[padding]));
+    }
+
+    private void writeFully (ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    @Override
+    public IOContext getContext () {
+        return context;
+    }
+
+    /**
+     * Writes the end of the archive and closes the file
+     * @throws IOException when the archive can't be written
+     */
+    @Override
+    public void close () throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            // two empty blocks mark the end of a tar archive
+            writeFully(ByteBuffer.wrap(new byte[BLOCK * 2]));
+        }
+        finally {
+            abort();
+        }
+    }
+
+    @Override
+    public void abort () {
+        closed = true;
+        FileUtils.closeQuietly(channel);
+        FileUtils.closeQuietly(fos);
+    }
+}
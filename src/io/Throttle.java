@@ -0,0 +1,118 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the bytes per second of file operations with a token bucket. The
+ * bucket fills with the allowed rate up to one second of bytes. Every
+ * operation takes its bytes out of the bucket and waits, when the bucket
+ * runs empty, until the bytes are refilled. The throttle can be shared by
+ * several threads, they get the rate together.
+ * @author Kilian Gaertner
+ */
+public class Throttle {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    /** The allowed bytes per second, 0 means unlimited */
+    private final long rate;
+    /** The bytes in the bucket, negative when operations are waiting */
+    private double available;
+    private long lastRefill;
+    /** How long the threads waited together */
+    private long waitedNanos = 0;
+    /** How many bytes were read or written through the throttle */
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * @param bytesPerSecond The allowed rate, 0 means unlimited
+     */
+    public Throttle (long bytesPerSecond) {
+        this.rate = Math.max(bytesPerSecond, 0);
+        this.available = rate;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Waits until the bytes may be read or written
+     * @param bytes The size of the next operation
+     * @throws InterruptedIOException when the thread is interrupted while
+     * it waits
+     */
+    public void acquire (long bytes) throws InterruptedIOException {
+        if (bytes <= 0)
+            return;
+        this.bytes.addAndGet(bytes);
+        pace(bytes);
+    }
+
+    /**
+     * Waits like for an operation of the given size, but nothing is counted
+     * as read or written. Used for operations without content, like deletes.
+     * @param bytes The bytes the operation is worth
+     * @throws InterruptedIOException when the thread is interrupted while
+     * it waits
+     */
+    public void pace (long bytes) throws InterruptedIOException {
+        if (rate == 0 || bytes <= 0)
+            return;
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            available = Math.min(rate, available + (double) (now - lastRefill) * rate / NANOS_PER_SECOND);
+            lastRefill = now;
+            // the operation runs into debt, the following ones wait for it too
+            available -= bytes;
+            waitNanos = available < 0 ? (long) (-available * NANOS_PER_SECOND / rate) : 0;
+            waitedNanos += waitNanos;
+        }
+        if (waitNanos == 0)
+            return;
+        try {
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the throttle");
+        }
+    }
+
+    /**
+     * @return true, when the rate is limited
+     */
+    public boolean isLimited () {
+        return rate != 0;
+    }
+
+    /**
+     * @return How many bytes were read or written through the throttle
+     */
+    public long getBytes () {
+        return bytes.get();
+    }
+
+    /**
+     * @return How many milliseconds the threads waited for the throttle
+     */
+    public synchronized long getWaitedMillis () {
+        return waitedNanos / 1000000;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Copies a directory tree. The calling thread walks the tree, reads the
+ * attributes of every file with the listing of its directory and creates
+ * the directories of the copy. Every file becomes a copy task for the copy
+ * workers of the context, so several files are copied at the same time. The
+ * dates of the directories are set when every file is copied.
+ * @author Kilian Gaertner
+ */
+class TreeCopier extends SimpleFileVisitor<Path> {
+
+    /** How many copy tasks may wait for a worker, the walk waits for them otherwise */
+    private static final int MAX_PENDING = 1024;
+
+    private final Path srcRoot;
+    private final File destRoot;
+    private final File linkRoot;
+    private final String rootPath;
+    private final boolean preserveFileDate;
+    private final FileTracker tracker;
+    private final IOContext context;
+    /** The workers, null when the files are copied by the walking thread */
+    private final ExecutorService workers;
+    /** The directories, which are not copied, like the copy itself */
+    private final Set<Path> excluded = new HashSet<Path>();
+    private final Semaphore pending = new Semaphore(MAX_PENDING);
+    /** The directories which are walked at the moment, the deepest first */
+    private final LinkedList<Directory> directories = new LinkedList<Directory>();
+    /** The copied directories and their dates, the children before their parents */
+    private final List<Directory> copiedDirectories = new ArrayList<Directory>();
+    /** The first error of a copy task */
+    private volatile Throwable error = null;
+
+    /**
+     * @param srcDir The validated source directory
+     * @param destDir The validated destination directory
+     * @param excludedDir A directory in the source, which isn't copied, may be null
+     * @param preserveFileDate Whether to preserve the dates of the files
+     * @param path The path of the directory in the backup
+     * @param tracker Decides which files are copied, may be null
+     * @param linkDir The previous copy, whose unchanged files are linked, may be null
+     * @param context Throttles the reads and writes and has the workers, may be null
+     */
+    TreeCopier (File srcDir, File destDir, File excludedDir, boolean preserveFileDate, String path, FileTracker tracker, File linkDir, IOContext context) {
+        this.srcRoot = srcDir.toPath();
+        this.destRoot = destDir;
+        this.linkRoot = linkDir;
+        this.rootPath = path;
+        this.preserveFileDate = preserveFileDate;
+        this.tracker = tracker;
+        this.context = context;
+        this.workers = context == null ? null : context.getCopyPool();
+        if (excludedDir != null)
+            excluded.add(excludedDir.toPath());
+    }
+
+    /**
+     * Copies the tree and waits until every file is copied
+     * @throws IOException when a file or directory can't be read or written
+     */
+    void copy () throws IOException {
+        try {
+            Files.walkFileTree(srcRoot, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, this);
+        }
+        finally {
+            // the tasks must not write into the copy after the method has returned
+            try {
+                pending.acquire(MAX_PENDING);
+                pending.release(MAX_PENDING);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the copies");
+            }
+        }
+        Throwable failure = error;
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        if (failure != null)
+            throw new IOException("Failed to copy " + srcRoot, failure);
+        // do this last, as the copies have affected the directory metadata
+        if (preserveFileDate)
+            for (Directory directory : copiedDirectories)
+                directory.dest.setLastModified(directory.lastModified);
+    }
+
+    @Override
+    public FileVisitResult preVisitDirectory (Path dir, BasicFileAttributes attrs) throws IOException {
+        if (error != null)
+            return FileVisitResult.TERMINATE;
+        if (excluded.contains(dir))
+            return FileVisitResult.SKIP_SUBTREE;
+        Directory parent = directories.peekFirst();
+        Directory directory;
+        if (parent == null)
+            directory = new Directory(destRoot, linkRoot, rootPath);
+        else {
+            String name = dir.getFileName().toString();
+            directory = new Directory(new File(parent.dest, name), parent.link == null ? null : new File(parent.link, name), parent.path.concat(name).concat("/"));
+        }
+        directory.lastModified = attrs.lastModifiedTime().toMillis();
+        File destDir = directory.dest;
+        if (destDir.exists()) {
+            if (destDir.isDirectory() == false)
+                throw new IOException("Destination '" + destDir + "' exists but is not a directory");
+        }
+        else if (destDir.mkdirs() == false)
+            throw new IOException("Destination '" + destDir + "' directory cannot be created");
+        if (destDir.canWrite() == false)
+            throw new IOException("Destination '" + destDir + "' cannot be written to");
+        directories.addFirst(directory);
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult postVisitDirectory (Path dir, IOException exc) throws IOException {
+        if (exc != null)
+            throw exc;
+        copiedDirectories.add(directories.removeFirst());
+        return error != null ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFile (Path file, BasicFileAttributes attrs) throws IOException {
+        if (error != null)
+            return FileVisitResult.TERMINATE;
+        Directory directory = directories.getFirst();
+        String name = file.getFileName().toString();
+        final File srcFile = file.toFile();
+        final File destFile = new File(directory.dest, name);
+        final File linkFile = directory.link == null ? null : new File(directory.link, name);
+        final String filePath = directory.path.concat(name);
+        if (workers == null) {
+            FileUtils.copyEntry(srcFile, destFile, filePath, preserveFileDate, tracker, linkFile, context);
+            return FileVisitResult.CONTINUE;
+        }
+        try {
+            pending.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the copies");
+        }
+        workers.execute(new Runnable() {
+
+            @Override
+            public void run () {
+                try {
+                    if (error == null)
+                        FileUtils.copyEntry(srcFile, destFile, filePath, preserveFileDate, tracker, linkFile, context);
+                }
+                catch (Throwable t) {
+                    synchronized (TreeCopier.this) {
+                        if (error == null)
+                            error = t;
+                    }
+                }
+                finally {
+                    pending.release();
+                }
+            }
+        });
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFileFailed (Path file, IOException exc) throws IOException {
+        if (exc instanceof FileSystemLoopException) {
+            // a link to a parent directory would be copied endlessly
+            System.out.println("[BACKUP] Skipping " + file + ", because it links to one of its parent directories");
+            return FileVisitResult.CONTINUE;
+        }
+        throw exc;
+    }
+
+    /**
+     * A directory of the tree and its copy
+     */
+    private static class Directory {
+
+        private final File dest;
+        /** The directory in the previous copy, may be null */
+        private final File link;
+        /** The path in the backup, ending with a / */
+        private final String path;
+        private long lastModified;
+
+        private Directory (File dest, File link, String path) {
+            this.dest = dest;
+            this.link = link;
+            this.path = path;
+        }
+    }
+}
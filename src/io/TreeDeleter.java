@@ -0,0 +1,202 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deletes directory trees. The calling thread walks the tree and every file
+ * becomes a delete task for the workers, so several files are deleted at
+ * the same time. A directory is deleted by the task, which deletes its last
+ * child. Links are deleted, but never followed.
+ * @author Kilian Gaertner
+ */
+public class TreeDeleter {
+
+    /** How many delete tasks may wait for a worker, the walk waits for them otherwise */
+    private static final int MAX_PENDING = 1024;
+
+    private final ExecutorService workers;
+    private final Throttle throttle;
+
+    /**
+     * @param workers The threads, which delete the files
+     * @param throttle Limits the deletes, every file and directory takes one
+     * unit of it
+     */
+    public TreeDeleter (ExecutorService workers, Throttle throttle) {
+        this.workers = workers;
+        this.throttle = throttle;
+    }
+
+    /**
+     * Deletes a directory with everything in it and waits until it is done.
+     * A link to a directory is deleted, the directory it links to is kept.
+     * @param root The directory to delete
+     * @throws IOException when a file or a directory can't be deleted
+     */
+    public void delete (File root) throws IOException {
+        Walk walk = new Walk();
+        try {
+            Files.walkFileTree(root.toPath(), walk);
+        }
+        finally {
+            // the tasks must not delete anything after the method has returned
+            try {
+                walk.pending.acquire(MAX_PENDING);
+                walk.pending.release(MAX_PENDING);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the deletes");
+            }
+        }
+        Throwable failure = walk.error;
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        if (failure != null)
+            throw new IOException("Failed to delete " + root, failure);
+    }
+
+    /**
+     * Deletes a file or an empty directory
+     */
+    private void deleteEntry (Path path) throws IOException {
+        throttle.pace(1);
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * The walk through one tree
+     */
+    private class Walk extends SimpleFileVisitor<Path> {
+
+        private final Semaphore pending = new Semaphore(MAX_PENDING);
+        /** The directories which are walked at the moment, the deepest first */
+        private final LinkedList<Directory> directories = new LinkedList<Directory>();
+        /** The first error of a delete task */
+        private volatile Throwable error = null;
+
+        @Override
+        public FileVisitResult preVisitDirectory (Path dir, BasicFileAttributes attrs) {
+            if (error != null)
+                return FileVisitResult.TERMINATE;
+            directories.addFirst(new Directory(dir, directories.peekFirst()));
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile (Path file, BasicFileAttributes attrs) throws IOException {
+            if (error != null)
+                return FileVisitResult.TERMINATE;
+            final Directory directory = directories.peekFirst();
+            final Path path = file;
+            if (directory == null) {
+                // the root itself is a file or a link
+                deleteEntry(path);
+                return FileVisitResult.CONTINUE;
+            }
+            try {
+                pending.acquire();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the deletes");
+            }
+            directory.children.incrementAndGet();
+            workers.execute(new Runnable() {
+
+                @Override
+                public void run () {
+                    try {
+                        if (error == null)
+                            deleteEntry(path);
+                        directory.childDone();
+                    }
+                    catch (Throwable t) {
+                        fail(t);
+                    }
+                    finally {
+                        pending.release();
+                    }
+                }
+            });
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory (Path dir, IOException exc) throws IOException {
+            if (exc != null)
+                throw exc;
+            Directory directory = directories.removeFirst();
+            try {
+                // the walk is done with the directory, it was counted as a child
+                directory.childDone();
+            }
+            catch (IOException e) {
+                fail(e);
+            }
+            return error != null ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+        }
+
+        private synchronized void fail (Throwable t) {
+            if (error == null)
+                error = t;
+        }
+
+        /**
+         * A directory, which is deleted as soon as its children are
+         */
+        private class Directory {
+
+            private final Path path;
+            private final Directory parent;
+            /** The children which aren't deleted yet, the walk counts as one */
+            private final AtomicInteger children = new AtomicInteger(1);
+
+            private Directory (Path path, Directory parent) {
+                this.path = path;
+                this.parent = parent;
+                if (parent != null)
+                    parent.children.incrementAndGet();
+            }
+
+            /**
+             * Deletes the directory, when it was the last child
+             */
+            private void childDone () throws IOException {
+                if (children.decrementAndGet() != 0 || error != null)
+                    return;
+                deleteEntry(path);
+                if (parent != null)
+                    parent.childDone();
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io;
+
+/**
+ * A streaming implementation of the xxHash64 algorithm with the seed 0.
+ * The hash is much faster than a cryptographic one and good enough to detect
+ * changed or damaged files.
+ * @author Kilian Gaertner
+ */
+public class XXHash64 {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private long v1, v2, v3, v4;
+    /** The input which doesn't fill a complete stripe of 32 bytes yet */
+    private final byte[] buffer = new byte[32];
+    private int buffered;
+    private long length;
+
+    public XXHash64 () {
+        reset();
+    }
+
+    /**
+     * Starts a new hash
+     */
+    public final void reset () {
+        v1 = PRIME1 + PRIME2;
+        v2 = PRIME2;
+        v3 = 0;
+        v4 = -PRIME1;
+        buffered = 0;
+        length = 0;
+    }
+
+    /**
+     * Adds bytes to the hash
+     */
+    public void update (byte[] data, int offset, int count) {
+        length += count;
+        if (buffered + count < 32) {
+            System.arraycopy(data, offset, buffer, buffered, count);
+            buffered += count;
+            return;
+        }
+        int end = offset + count;
+        if (buffered > 0) {
+            int fill = 32 - buffered;
+            System.arraycopy(data, offset, buffer, buffered, fill);
+            processStripe(buffer, 0);
+            offset += fill;
+            buffered = 0;
+        }
+        for (; offset + 32 <= end; offset += 32)
+            processStripe(data, offset);
+        buffered = end - offset;
+        System.arraycopy(data, offset, buffer, 0, buffered);
+    }
+
+    /**
+     * @return The hash of all bytes added since the last reset
+     */
+    public long getValue () {
+        long hash;
+        if (length >= 32) {
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        }
+        else
+            hash = PRIME5;
+        hash += length;
+
+        int offset = 0;
+        for (; offset + 8 <= buffered; offset += 8) {
+            hash ^= round(0, readLong(buffer, offset));
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+        }
+        if (offset + 4 <= buffered) {
+            hash ^= (readInt(buffer, offset) & 0xFFFFFFFFL) * PRIME1;
+            hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+            offset += 4;
+        }
+        for (; offset < buffered; ++offset) {
+            hash ^= (buffer[offset] & 0xFF) * PRIME5;
+            hash = Long.rotateLeft(hash, 11) * PRIME1;
+        }
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    /**
+     * @return The hash as 16 hex digits
+     */
+    public static String toHex (long hash) {
+        String hex = Long.toHexString(hash);
+        return "0000000000000000".substring(hex.length()).concat(hex);
+    }
+
+    /**
+     * @return The hash of 16 hex digits
+     * @throws NumberFormatException when the string is no valid hash
+     */
+    public static long fromHex (String hex) {
+        if (hex.length() != 16)
+            throw new NumberFormatException("Invalid hash " + hex);
+        return Long.parseLong(hex.substring(0, 8), 16) << 32 | Long.parseLong(hex.substring(8), 16);
+    }
+
+    private void processStripe (byte[] data, int offset) {
+        v1 = round(v1, readLong(data, offset));
+        v2 = round(v2, readLong(data, offset + 8));
+        v3 = round(v3, readLong(data, offset + 16));
+        v4 = round(v4, readLong(data, offset + 24));
+    }
+
+    private static long round (long acc, long input) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    private static long mergeRound (long acc, long value) {
+        acc ^= round(0, value);
+        return acc * PRIME1 + PRIME4;
+    }
+
+    private static long readLong (byte[] data, int offset) {
+        return (data[offset] & 0xFFL)
+                | (data[offset + 1] & 0xFFL) << 8
+                | (data[offset + 2] & 0xFFL) << 16
+                | (data[offset + 3] & 0xFFL) << 24
+                | (data[offset + 4] & 0xFFL) << 32
+                | (data[offset + 5] & 0xFFL) << 40
+                | (data[offset + 6] & 0xFFL) << 48
+                | (data[offset + 7] & 0xFFL) << 56;
+    }
+
+    private static int readInt (byte[] data, int offset) {
+        return (data[offset] & 0xFF)
+                | (data[offset + 1] & 0xFF) << 8
+                | (data[offset + 2] & 0xFF) << 16
+                | (data[offset + 3] & 0xFF) << 24;
+    }
+}
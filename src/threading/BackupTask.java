@@ -17,17 +17,43 @@
 
 package threading;
 
-import java.io.IOException;
 import org.bukkit.command.ConsoleCommandSender;
 import org.bukkit.Server;
+import io.BackupCatalog;
+import io.BackupEvent;
+import io.BackupManifest;
+import io.BackupMetrics;
+import io.ChangeDetector;
+import io.ChunkRepository;
+import io.CodecRules;
 import io.FileUtils;
+import io.IOContext;
+import io.NamedThreadFactory;
+import io.SpeedGovernor;
 import java.util.Calendar;
 import backup.PropertiesSystem;
 import backup.PropertyConstants;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static io.FileUtils.FILE_SEPARATOR;
 
@@ -40,81 +66,578 @@ import static io.FileUtils.FILE_SEPARATOR;
  */
 public class BackupTask implements Runnable, PropertyConstants {
 
+    /** The name of the directory for the manifests in the backup folder */
+    public static final String META_FOLDER = "meta";
+    /** The name of the directory of the chunk repository in the backup folder */
+    public static final String REPOSITORY_FOLDER = "repository";
+    /** The series name of the summarized backups */
+    private static final String SUMMARY_SERIES = "summary";
+    /** How often the queues are sampled for the metrics */
+    private static final long SAMPLE_MILLIS = 100;
+
     private final PropertiesSystem pSystem;
     private final LinkedList<String> worldsToBackup;
     private final Server server;
     private final String backupName;
-    public BackupTask (PropertiesSystem pSystem, LinkedList<String> worldsToBackup, Server server, String backupName) {
+    /** The compression pool of the current run */
+    private IOContext context;
+    /** When the saving of the worlds was disabled */
+    private final long saveOffTime;
+    /** Limit the disc bandwidth to ReadLimit and WriteLimit */
+    private final boolean throttled;
+    /** Write tar archives instead of zip archives */
+    private boolean tar = false;
+    /** When the backup has started */
+    private long startTime;
+    /** When the worlds were read and the saving was enabled again, 0 before */
+    private long saveOnTime = 0;
+    /** The measurements of this run */
+    private final BackupMetrics metrics;
+    /** When the running phase started, by System.nanoTime() */
+    private long phaseStart;
+    /** The read bytes, when the running phase started */
+    private long phaseBytes;
+    /** The flight recorder event of the running phase */
+    private BackupEvent phaseEvent;
+    /** The pool of the running jobs, sampled for the metrics */
+    private volatile ExecutorService workerPool = null;
+    /** The fingerprint of the worlds found by the change check, null when
+     * they weren't checked */
+    private final Long fingerprint;
+    /** Whether a world or directory failed */
+    private boolean failed = false;
+
+    /**
+     * @param saveOffTime When the saving of the worlds was disabled
+     * @param throttled Limit the disc bandwidth to ReadLimit and WriteLimit
+     * @param metrics The measurements of the run, which has started with the
+     * PrepareBackupTask
+     * @param fingerprint The fingerprint of the worlds found by the change
+     * check, null when they weren't checked
+     */
+    public BackupTask (PropertiesSystem pSystem, LinkedList<String> worldsToBackup, Server server, String backupName, long saveOffTime, boolean throttled, BackupMetrics metrics, Long fingerprint) {
         this.pSystem = pSystem;
         this.worldsToBackup = worldsToBackup;
         this.server = server;
         this.backupName = backupName;
+        this.saveOffTime = saveOffTime;
+        this.throttled = throttled;
+        this.metrics = metrics;
+        this.fingerprint = fingerprint;
     }
 
     @Override
     public void run () {
+        long readLimit = throttled ? pSystem.getIntProperty(INT_READ_LIMIT) * FileUtils.ONE_MB : 0;
+        long writeLimit = throttled ? pSystem.getIntProperty(INT_WRITE_LIMIT) * FileUtils.ONE_MB : 0;
+        SpeedGovernor governor = new SpeedGovernor();
+        CodecRules codecRules = new CodecRules(pSystem.getStringProperty(STRING_COMPRESSION), pSystem.getStringProperty(STRING_COMPRESSION_RULES));
+        context = new IOContext(pSystem.getIntProperty(INT_COMPRESSION_THREADS), pSystem.getIntProperty(INT_COPY_THREADS), pSystem.getIntProperty(INT_BLOCK_SIZE) * (int) FileUtils.ONE_KB, pSystem.getIntProperty(INT_COMPRESSION_MEMORY) * FileUtils.ONE_MB, readLimit, writeLimit, governor, codecRules);
+        context.setSeekable(pSystem.getBooleanProperty(BOOL_SEEKABLE_ARCHIVE));
+        // the monitor slows the backup down, when the server lags
+        int monitorID = -1;
+        if (throttled && pSystem.getIntProperty(INT_MIN_TPS) > 0)
+            monitorID = server.getScheduler().scheduleSyncRepeatingTask(server.getPluginManager().getPlugin("Backup"), new TickMonitor(governor, pSystem.getIntProperty(INT_MIN_TPS)), 1L, 1L);
+        // the depths of the queues show, which stage of the pipeline is the bottleneck
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Backup-Metrics"));
+        sampler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run () {
+                metrics.sampleQueue("workers", workerPool);
+                metrics.sampleQueue("copy", context.getCopyPool());
+                metrics.sampleQueue("compression", context.getCompressionPool());
+            }
+        }, SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
         try {
             backup();
         }
         catch (Exception ex) {
             ex.printStackTrace(System.out);
         }
+        finally {
+            if (monitorID != -1)
+                server.getScheduler().cancelTask(monitorID);
+            // a failed backup must not leave the worlds unsaved
+            enableSaving();
+            sampler.shutdownNow();
+            context.shutdown();
+        }
     }
 
+    /**
+     * The backup has two phases. In the first one the worlds are read, so
+     * they must not be saved. In the second one the copy is compressed and
+     * old backups are removed, while the worlds are saved again. Only when
+     * the worlds are zipped directly, the first phase lasts until the archive
+     * is written.
+     */
     public void backup() throws Exception {
 
+        startTime = System.currentTimeMillis();
+        startPhase();
+        String date = getDate();
+        if (pSystem.getBooleanProperty(BOOL_REPOSITORY)) {
+            backupToRepository(date);
+            finish();
+            // like the other backups, the repository is pruned in the background
+            server.getScheduler().scheduleAsyncDelayedTask(server.getPluginManager().getPlugin("Backup"), new PruneTask(pSystem, Collections.<BackupCatalog.Entry>emptyList(), worldsToBackup, SUMMARY_SERIES, metrics));
+            return;
+        }
+        boolean zip = pSystem.getBooleanProperty(BOOL_ZIP);
+        String format = pSystem.getStringProperty(STRING_ARCHIVE_FORMAT);
+        tar = format != null && format.trim().equalsIgnoreCase("tar");
+        boolean streaming = pSystem.getBooleanProperty(BOOL_ZIP_STREAMING);
+        File metaDir = new File(pSystem.getStringProperty(STRING_BACKUP_FOLDER), META_FOLDER);
+        // hard linked snapshots are complete, so they are never incremental
+        boolean hardLinks = !zip && pSystem.getBooleanProperty(BOOL_HARD_LINKS);
+        boolean incremental = !hardLinks && pSystem.getBooleanProperty(BOOL_INCREMENTAL);
+        metaDir.mkdirs();
+        // the jobs for the worker pool, mapped by the world or directory they backup
+        Map<String, Callable<Void>> jobs = new LinkedHashMap<String, Callable<Void>>();
+        // the new backups for the catalog
+        List<BackupCatalog.Entry> newBackups = new ArrayList<BackupCatalog.Entry>();
         if (pSystem.getBooleanProperty(BOOL_SUMMARIZE_CONTENT)) {
             String backupDirName = pSystem.getStringProperty(STRING_BACKUP_FOLDER).concat(FILE_SEPARATOR);
             if (backupName != null)
                 backupDirName = backupDirName.concat("custom").concat(FILE_SEPARATOR).concat(backupName);
             else
-                backupDirName = backupDirName.concat(getDate());
-            File backupDir = new File(backupDirName);
-            backupDir.mkdir();
-            while (!worldsToBackup.isEmpty()) {
-                String worldName = worldsToBackup.removeFirst();
-                try {
-                    FileUtils.copyDirectory(worldName, backupDirName.concat(FILE_SEPARATOR).concat(worldName));
+                backupDirName = backupDirName.concat(date);
+            // custom backups are always complete, they don't belong to the series
+            String name = backupName != null ? backupName : date;
+            File manifestDir = backupName != null ? new File(metaDir, "custom") : metaDir;
+            BackupManifest manifest;
+            if (incremental && backupName == null)
+                manifest = createManifest(metaDir, SUMMARY_SERIES, date);
+            else if (hardLinks)
+                manifest = createSnapshotManifest(metaDir, SUMMARY_SERIES, name);
+            else
+                manifest = new BackupManifest(name, null, 0);
+            Map<String, Throwable> errors;
+            if (zip && streaming) {
+                // all worlds are written to the same archive, so there is only one job
+                List<String> dirs = new ArrayList<String>(worldsToBackup);
+                if (pSystem.getBooleanProperty(BOOL_BACKUP_PLUGINS))
+                    dirs.add("plugins");
+                new File(backupDirName).getParentFile().mkdirs();
+                jobs.put(backupDirName, createZipJob(dirs, backupDirName, manifest));
+                errors = runJobs(jobs);
+                enableSaving();
+            }
+            else if (hardLinks) {
+                File lastSnapshot = getLastSnapshot(metaDir, SUMMARY_SERIES);
+                List<String> dirs = new ArrayList<String>(worldsToBackup);
+                if (pSystem.getBooleanProperty(BOOL_BACKUP_PLUGINS))
+                    dirs.add("plugins");
+                for (String dir : dirs)
+                    jobs.put(dir, createLinkJob(dir, backupDirName.concat(FILE_SEPARATOR).concat(dir), dir.concat("/"), lastSnapshot == null ? null : new File(lastSnapshot, dir), manifest));
+                errors = runJobs(jobs);
+                enableSaving();
+                // a snapshot with missing worlds must not be the base of the next one
+                if (errors.isEmpty() && backupName == null)
+                    setLastSnapshot(metaDir, SUMMARY_SERIES, new File(backupDirName));
+            }
+            else {
+                File backupDir = new File(backupDirName);
+                backupDir.mkdir();
+                for (String worldName : worldsToBackup)
+                    jobs.put(worldName, createCopyJob(worldName, backupDirName.concat(FILE_SEPARATOR).concat(worldName), worldName.concat("/"), manifest));
+                if (pSystem.getBooleanProperty(BOOL_BACKUP_PLUGINS))
+                    jobs.put("plugins", createCopyJob("plugins", backupDirName.concat(FILE_SEPARATOR).concat("plugins"), "plugins/", manifest));
+                errors = runJobs(jobs);
+                enableSaving();
+
+                // only a complete copy is zipped, an incomplete one stays for a look at it
+                if (zip && errors.isEmpty()) {
+                    errors.putAll(runJobs(Collections.singletonMap(backupDirName, createArchiveJob(backupDirName))));
+                    endPhase("archive");
                 }
-                catch (IOException e) {
-                    System.out.println("[BACKUP] An error occurs while creating a temporary copy of world ".concat(worldName).concat(". Maybe the complete world isn' backuped, please take a look at it!"));
-                    e.printStackTrace(System.out);
-                    server.broadcastMessage("[BACKUP] An error occurs while backup. Please report an admin!");
+            }
+            reportErrors(errors);
+            // a backup with errors must not be the base of the next one
+            if (errors.isEmpty()) {
+                manifest.finish();
+                if (incremental && backupName == null)
+                    manifest.writeAsLast(metaDir, SUMMARY_SERIES);
+                else {
+                    manifestDir.mkdirs();
+                    manifest.write(BackupManifest.getFile(manifestDir, name));
                 }
             }
-            if (pSystem.getBooleanProperty(BOOL_BACKUP_PLUGINS))
-                FileUtils.copyDirectory("plugins", backupDirName.concat(FILE_SEPARATOR).concat("plugins"));
-
-            if (pSystem.getBooleanProperty(BOOL_ZIP)) {
-                FileUtils.zipDir(backupDirName, backupDirName);
-                FileUtils.deleteDirectory(backupDir);
+            if (backupName == null) {
+                List<String> dirs = new ArrayList<String>(worldsToBackup);
+                if (pSystem.getBooleanProperty(BOOL_BACKUP_PLUGINS))
+                    dirs.add("plugins");
+                BackupCatalog.Entry entry = createCatalogEntry(backupDirName, SUMMARY_SERIES, dirs, manifest, !errors.isEmpty());
+                if (entry != null)
+                    newBackups.add(entry);
             }
         }
         else {
             String backupDirName = pSystem.getStringProperty(STRING_BACKUP_FOLDER).concat(FILE_SEPARATOR);
             File backupDir = new File(backupDirName);
             backupDir.mkdir();
-            boolean zip = pSystem.getBooleanProperty(BOOL_ZIP);
-            while (!worldsToBackup.isEmpty()) {
-                String worldName = worldsToBackup.removeFirst();
-                String destDir = backupDirName.concat(FILE_SEPARATOR).concat(worldName).concat("-").concat(getDate());
-                FileUtils.copyDirectory(worldName, destDir);
-                if (zip) {
-                    FileUtils.zipDir(destDir, destDir);
-                    FileUtils.deleteDirectory(new File(destDir));
-                }
+            List<String> dirs = new ArrayList<String>(worldsToBackup);
+            if (pSystem.getBooleanProperty(BOOL_BACKUP_PLUGINS))
+                dirs.add("plugins");
+            Map<String, String> destDirs = new LinkedHashMap<String, String>();
+            Map<String, BackupManifest> manifests = new LinkedHashMap<String, BackupManifest>();
+            for (String dir : dirs) {
+                String destDir = backupDirName.concat(FILE_SEPARATOR).concat(dir).concat("-").concat(date);
+                String name = new File(destDir).getName();
+                BackupManifest manifest;
+                if (incremental)
+                    manifest = createManifest(metaDir, dir, name);
+                else if (hardLinks)
+                    manifest = createSnapshotManifest(metaDir, dir, name);
+                else
+                    manifest = new BackupManifest(name, null, 0);
+                manifests.put(dir, manifest);
+                destDirs.put(dir, destDir);
+                jobs.put(dir, createJob(dir, destDir, zip && streaming, manifest, hardLinks ? metaDir : null));
             }
-            if (pSystem.getBooleanProperty(BOOL_BACKUP_PLUGINS)) {
-                String destDir = backupDirName.concat(FILE_SEPARATOR).concat("plugins").concat("-").concat(getDate());
-                FileUtils.copyDirectory("plugins", destDir);
-                if (zip) {
-                    FileUtils.zipDir(destDir, destDir);
-                    FileUtils.deleteDirectory(new File(destDir));
+            Map<String, Throwable> errors = runJobs(jobs);
+            enableSaving();
+
+            if (zip && !streaming) {
+                // only complete copies are zipped, an incomplete one stays for a look at it
+                Map<String, Callable<Void>> archiveJobs = new LinkedHashMap<String, Callable<Void>>();
+                for (Map.Entry<String, String> destDir : destDirs.entrySet())
+                    if (!errors.containsKey(destDir.getKey()))
+                        archiveJobs.put(destDir.getKey(), createArchiveJob(destDir.getValue()));
+                errors.putAll(runJobs(archiveJobs));
+                endPhase("archive");
+            }
+            reportErrors(errors);
+            // a backup with errors must not be the base of the next one
+            for (Map.Entry<String, BackupManifest> manifest : manifests.entrySet())
+                if (!errors.containsKey(manifest.getKey())) {
+                    manifest.getValue().finish();
+                    if (incremental)
+                        manifest.getValue().writeAsLast(metaDir, manifest.getKey());
+                    else
+                        manifest.getValue().write(BackupManifest.getFile(metaDir, manifest.getValue().getName()));
                 }
+            for (Map.Entry<String, String> destDir : destDirs.entrySet()) {
+                String dir = destDir.getKey();
+                BackupCatalog.Entry entry = createCatalogEntry(destDir.getValue(), dir, Collections.singletonList(dir), manifests.get(dir), errors.containsKey(dir));
+                if (entry != null)
+                    newBackups.add(entry);
             }
         }
-        deleteOldBackups ();
         finish();
+        // the old backups are removed in the background, so they don't delay the end of the backup
+        List<String> series = new ArrayList<String>(worldsToBackup);
+        series.add("plugins");
+        server.getScheduler().scheduleAsyncDelayedTask(server.getPluginManager().getPlugin("Backup"), new PruneTask(pSystem, newBackups, series, SUMMARY_SERIES, metrics));
+    }
+
+    /**
+     * Stores the worlds in the chunk repository. In the summarized mode all
+     * worlds are stored in one snapshot, otherwise every world gets its own
+     * snapshot. Old snapshots and unused chunks are removed afterwards by
+     * the PruneTask.
+     * @param date The formatted date of this backup
+     */
+    private void backupToRepository (String date) throws InterruptedException {
+        final ChunkRepository repository = new ChunkRepository(new File(pSystem.getStringProperty(STRING_BACKUP_FOLDER), REPOSITORY_FOLDER));
+        List<String> dirs = new ArrayList<String>(worldsToBackup);
+        if (pSystem.getBooleanProperty(BOOL_BACKUP_PLUGINS))
+            dirs.add("plugins");
+        // no prune may remove the chunks of the snapshots until their indexes are written
+        repository.beginStore();
+        try {
+            // the jobs for the worker pool, mapped by the world or directory they backup
+            Map<String, Callable<Void>> jobs = new LinkedHashMap<String, Callable<Void>>();
+            if (pSystem.getBooleanProperty(BOOL_SUMMARIZE_CONTENT)) {
+                final ChunkRepository.Snapshot snapshot = repository.createSnapshot(backupName != null ? backupName : date, SUMMARY_SERIES, backupName != null);
+                for (final String dir : dirs)
+                    jobs.put(dir, new Callable<Void>() {
+                        @Override
+                        public Void call () throws Exception {
+                            repository.storeDirectory(new File(dir), dir.concat("/"), snapshot, context);
+                            return null;
+                        }
+                    });
+                Map<String, Throwable> errors = runJobs(jobs);
+                reportErrors(errors);
+                // a snapshot with missing worlds must not replace the last complete one
+                if (errors.isEmpty()) {
+                    try {
+                        repository.writeSnapshot(snapshot);
+                    }
+                    catch (IOException e) {
+                        reportErrors(Collections.<String, Throwable>singletonMap(snapshot.getName(), e));
+                    }
+                }
+            }
+            else {
+                for (final String dir : dirs) {
+                    final String snapshotName = dir.concat("-").concat(date);
+                    jobs.put(dir, new Callable<Void>() {
+                        @Override
+                        public Void call () throws Exception {
+                            ChunkRepository.Snapshot snapshot = repository.createSnapshot(snapshotName, dir, false);
+                            repository.storeDirectory(new File(dir), "", snapshot, context);
+                            repository.writeSnapshot(snapshot);
+                            return null;
+                        }
+                    });
+                }
+                reportErrors(runJobs(jobs));
+            }
+        }
+        finally {
+            repository.endStore();
+        }
+        enableSaving();
+        repository.printStatistics();
+    }
+
+    /**
+     * Creates the manifest for a new backup of a series. It is a full backup,
+     * when the series has no previous backup or FullBackupEvery incremental
+     * backups were created since the last full one.
+     * @param metaDir The directory of the manifests
+     * @param series The world name or the name of the summarized backups
+     * @param name The name of the new backup
+     */
+    private BackupManifest createManifest (File metaDir, String series, String name) {
+        BackupManifest manifest = new BackupManifest(name, BackupManifest.readLast(metaDir, series), pSystem.getIntProperty(INT_FULL_BACKUP_EVERY));
+        if (pSystem.getBooleanProperty(BOOL_REGION_DELTA))
+            manifest.setRegionStateDir(new File(metaDir, series.concat(".regions")));
+        if (manifest.isFull())
+            System.out.println("[BACKUP] Creating a full backup of ".concat(series));
+        else
+            System.out.println("[BACKUP] Creating an incremental backup of ".concat(series).concat(" based on ").concat(manifest.getBase()));
+        return manifest;
+    }
+
+    /**
+     * Creates the manifest for a new snapshot of a series. The hashes of the
+     * unchanged files are taken from the manifest of the last snapshot.
+     * @param metaDir The directory of the manifests
+     * @param series The world name or the name of the summarized backups
+     * @param name The name of the new snapshot
+     */
+    private BackupManifest createSnapshotManifest (File metaDir, String series, String name) {
+        File lastSnapshot = getLastSnapshot(metaDir, series);
+        BackupManifest previous = null;
+        if (lastSnapshot != null) {
+            File manifestFile = BackupManifest.getFile(metaDir, lastSnapshot.getName());
+            try {
+                if (manifestFile.exists())
+                    previous = BackupManifest.read(manifestFile);
+            }
+            catch (IOException e) {
+                System.out.println("[BACKUP] Can't read the manifest of the last snapshot of " + series + ", the linked files are read again.");
+                e.printStackTrace(System.out);
+            }
+        }
+        return BackupManifest.createSnapshot(name, previous);
+    }
+
+    /**
+     * Creates a job for the backup of a single world or directory. When
+     * streaming is enabled, the world is zipped directly, otherwise it is
+     * copied.
+     * @param srcDir The world or directory to backup
+     * @param destDir The name of the backup
+     * @param streaming Zip the world without a temporary copy
+     * @param manifest Decides which files are stored, may be null
+     * @param linkMetaDir The directory of the last snapshots, null when the
+     * backup isn't a hard linked snapshot
+     */
+    private Callable<Void> createJob (final String srcDir, final String destDir, final boolean streaming, final BackupManifest manifest, final File linkMetaDir) {
+        return new Callable<Void>() {
+            @Override
+            public Void call () throws Exception {
+                if (linkMetaDir != null) {
+                    FileUtils.copyDirectory(srcDir, destDir, "", manifest, getLastSnapshot(linkMetaDir, srcDir), context);
+                    setLastSnapshot(linkMetaDir, srcDir, new File(destDir));
+                }
+                else if (streaming && tar)
+                    FileUtils.tarDir(srcDir, destDir, context, manifest);
+                else if (streaming)
+                    FileUtils.zipDir(srcDir, destDir, context, manifest);
+                else
+                    FileUtils.copyDirectory(srcDir, destDir, "", manifest, context);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Creates a job, which archives a copy and deletes the copy afterwards.
+     * @param copyDir The copied worlds, the archive gets the same name
+     */
+    private Callable<Void> createArchiveJob (final String copyDir) {
+        return new Callable<Void>() {
+            @Override
+            public Void call () throws Exception {
+                if (tar)
+                    FileUtils.tarDir(copyDir, copyDir, context, null);
+                else
+                    FileUtils.zipDir(copyDir, copyDir, context);
+                FileUtils.deleteDirectory(new File(copyDir), context);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Creates a job, which copies a world or directory.
+     * @param srcDir The world or directory to backup
+     * @param destDir The directory of the copy
+     * @param path The path of the world in the backup
+     * @param manifest Decides which files are copied, may be null
+     */
+    private Callable<Void> createCopyJob (final String srcDir, final String destDir, final String path, final BackupManifest manifest) {
+        return new Callable<Void>() {
+            @Override
+            public Void call () throws Exception {
+                FileUtils.copyDirectory(srcDir, destDir, path, manifest, context);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Creates a job, which copies a world or directory and hard links the
+     * files which are unchanged since the last snapshot.
+     * @param srcDir The world or directory to backup
+     * @param destDir The directory of the copy
+     * @param path The path of the world in the backup
+     * @param linkDir The world or directory in the last snapshot, may be null
+     * @param manifest Decides which files are unchanged and gets their hashes
+     */
+    private Callable<Void> createLinkJob (final String srcDir, final String destDir, final String path, final File linkDir, final BackupManifest manifest) {
+        return new Callable<Void>() {
+            @Override
+            public Void call () throws Exception {
+                FileUtils.copyDirectory(srcDir, destDir, path, manifest, linkDir, context);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * @param metaDir The meta directory of the backup folder
+     * @param series The world name or the name of the summarized backups
+     * @return The last complete snapshot of the series, null when there is
+     * none or it was deleted
+     */
+    private File getLastSnapshot (File metaDir, String series) {
+        File lastFile = new File(metaDir, series.concat(".snapshot"));
+        if (!lastFile.exists())
+            return null;
+        BufferedReader bReader = null;
+        try {
+            bReader = new BufferedReader(new InputStreamReader(new FileInputStream(lastFile), "UTF-8"));
+            String name = bReader.readLine();
+            if (name == null)
+                return null;
+            File snapshot = new File(metaDir.getParentFile(), name);
+            return snapshot.isDirectory() ? snapshot : null;
+        }
+        catch (IOException e) {
+            System.out.println("[BACKUP] Can't read the last snapshot of " + series + ", every file is copied.");
+            e.printStackTrace(System.out);
+            return null;
+        }
+        finally {
+            FileUtils.closeQuietly(bReader);
+        }
+    }
+
+    /**
+     * Marks a snapshot as the base of the next snapshot of the series
+     * @param metaDir The meta directory of the backup folder
+     * @param series The world name or the name of the summarized backups
+     * @param snapshot The directory of the snapshot in the backup folder
+     */
+    private void setLastSnapshot (File metaDir, String series, File snapshot) throws IOException {
+        File tempFile = new File(metaDir, series.concat(".snapshot.tmp"));
+        BufferedWriter bWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+        try {
+            bWriter.write(snapshot.getName());
+            bWriter.newLine();
+        }
+        finally {
+            bWriter.close();
+        }
+        FileUtils.moveAtomically(tempFile, new File(metaDir, series.concat(".snapshot")));
+    }
+
+    /**
+     * Creates a job, which writes the directories directly into one archive.
+     * Every directory is stored under its own name in the archive.
+     * @param srcDirs The worlds and directories to backup
+     * @param zipName The name of the archive
+     * @param manifest Decides which files are zipped, may be null
+     */
+    private Callable<Void> createZipJob (final List<String> srcDirs, final String zipName, final BackupManifest manifest) {
+        return new Callable<Void>() {
+            @Override
+            public Void call () throws Exception {
+                if (tar)
+                    FileUtils.tarDirs(srcDirs, zipName, context, manifest);
+                else
+                    FileUtils.zipDirs(srcDirs, zipName, context, manifest);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Runs the jobs on a pool with at most BackupThreads threads and waits
+     * until every job is done. A failing job doesn't stop the other ones.
+     * @param jobs The jobs, mapped by the world or directory they backup
+     * @return The errors of the failed jobs, mapped by the world or directory
+     */
+    private Map<String, Throwable> runJobs (Map<String, Callable<Void>> jobs) throws InterruptedException {
+        Map<String, Throwable> errors = new LinkedHashMap<String, Throwable>();
+        if (jobs.isEmpty())
+            return errors;
+        int threads = pSystem.getIntProperty(INT_BACKUP_THREADS);
+        if (threads <= 0)
+            threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, jobs.size()), new NamedThreadFactory("Backup-Worker"));
+        workerPool = pool;
+        try {
+            Map<String, Future<Void>> results = new LinkedHashMap<String, Future<Void>>();
+            for (Map.Entry<String, Callable<Void>> job : jobs.entrySet())
+                results.put(job.getKey(), pool.submit(job.getValue()));
+            for (Map.Entry<String, Future<Void>> result : results.entrySet()) {
+                try {
+                    result.getValue().get();
+                }
+                catch (ExecutionException e) {
+                    errors.put(result.getKey(), e.getCause());
+                }
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+        return errors;
+    }
+
+    /**
+     * Prints every error of the jobs and informs the players about it
+     * @param errors The errors, mapped by the world or directory
+     */
+    private void reportErrors (Map<String, Throwable> errors) {
+        if (errors.isEmpty())
+            return;
+        failed = true;
+        metrics.addErrors(errors.size());
+        for (Map.Entry<String, Throwable> error : errors.entrySet()) {
+            System.out.println("[BACKUP] An error occurs while backup ".concat(error.getKey()).concat(". Maybe the complete world isn' backuped, please take a look at it!"));
+            error.getValue().printStackTrace(System.out);
+        }
+        System.out.println("[BACKUP] The backup of the following world(s) failed:");
+        System.out.println(errors.keySet());
+        server.broadcastMessage("[BACKUP] An error occurs while backup. Please report an admin!");
     }
 
     /**
@@ -138,73 +661,88 @@ public class BackupTask implements Runnable, PropertyConstants {
     }
 
     /**
-     * Check whethere there are more backups as allowed to store. When this case
-     * is true, it deletes oldest ones
+     * Creates the catalog entry of a new backup
+     * @param backupPath The path of the backup without the file extension
+     * @param series The world name or the name of the summarized backups
+     * @param worlds The worlds and directories in the backup
+     * @param manifest The manifest of the backup, null when it has none
+     * @param failed Whether the backup has errors
+     * @return The entry or null, when nothing of the backup was written
      */
-    private void deleteOldBackups () {
-        try {
-            //
-            File backupDir = new File(pSystem.getStringProperty(STRING_BACKUP_FOLDER));
-            // get every zip file in the backup Dir
-            File[] tempArray = backupDir.listFiles();
-            File[] array = new File[tempArray.length - 1];
-            for (int i = 0 , j = 0; i < tempArray.length ; ++i) {
-                File file = tempArray[i];
-                if (file.isDirectory() && file.getName().equals("custom"))
-                    continue;
-                array[j++] = tempArray[i];
-            }
-            tempArray = array;
-            final int maxBackups = pSystem.getIntProperty(INT_MAX_BACKUPS);
-            // when are more backups existing as allowed as to store
-            if (tempArray.length > maxBackups) {
-                System.out.println("Delete old backups");
-
-                // Store the to delete backups in a list
-                ArrayList<File> backups = new ArrayList<File>(tempArray.length);
-                // For this add all backups in the list and remove later the newest ones
-                backups.addAll(Arrays.asList(tempArray));
-
-                // the current index of the newest backup
-                int maxModifiedIndex;
-                // the current time of the newest backup
-                long maxModified;
-
-                //remove all newest backups from the list to delete
-                for (int i = 0 ; i < maxBackups ; ++i) {
-                    maxModifiedIndex = 0;
-                    maxModified = backups.get(0).lastModified();
-                    for (int j = 1 ; j < backups.size() ; ++j) {
-                        File currentFile = backups.get(j);
-                        if (currentFile.lastModified() > maxModified) {
-                            maxModified = currentFile.lastModified();
-                            maxModifiedIndex = j;
-                        }
-                    }
-                    backups.remove(maxModifiedIndex);
-                }
-                System.out.println("[BACKUP] Removing the following backups due to age:");
-                System.out.println(Arrays.toString(backups.toArray()));
-                // this are the oldest backups, so delete them
-                for (File backupToDelete : backups)
-                    backupToDelete.delete();
-            }
-        }
-        catch (Exception e) {
-            e.printStackTrace(System.out);
+    private BackupCatalog.Entry createCatalogEntry (String backupPath, String series, List<String> worlds, BackupManifest manifest, boolean failed) {
+        File backup = new File(backupPath.concat(".zip"));
+        if (!backup.exists())
+            backup = new File(backupPath.concat(".tar"));
+        if (!backup.exists())
+            backup = new File(backupPath);
+        if (!backup.exists())
+            return null;
+        long[] measured = BackupCatalog.measure(backup);
+        String kind = failed ? BackupCatalog.KIND_FAILED : (manifest != null ? manifest.getKind() : BackupManifest.KIND_FULL);
+        long hash = 0;
+        List<String> sources = Collections.emptyList();
+        if (manifest != null && !failed) {
+            hash = manifest.getFingerprint();
+            sources = new ArrayList<String>(manifest.getSources());
+            sources.remove(manifest.getName());
         }
+        metrics.addBackup(measured[1], measured[0]);
+        return new BackupCatalog.Entry(backup.getName(), series, startTime, kind, measured[0], measured[1], worlds, hash, sources);
     }
 
     /**
-     * Creates a temporary Runnable that is running on the main thread by the
-     * sheduler to prevent thread problems.
+     * Enables the saving of the worlds again, when it is not already done.
+     * Called as soon as the worlds are read.
      */
-    private void finish() {
+    private void enableSaving () {
+        if (saveOnTime != 0)
+            return;
+        saveOnTime = System.currentTimeMillis();
+        endPhase("copy");
+        metrics.setSaveOffMillis(saveOnTime - saveOffTime);
+        System.out.println("[BACKUP] Read the worlds in " + formatDuration(saveOnTime - startTime) + ", the worlds weren't saved for " + formatDuration(saveOnTime - saveOffTime));
         Runnable run = new Runnable() {
             @Override
             public void run () {
                 if (pSystem.getBooleanProperty(BOOL_ACTIVATE_AUTOSAVE))
                     server.dispatchCommand(new ConsoleCommandSender(server), "save-on");
+            }
+        };
+        server.getScheduler().scheduleSyncDelayedTask(server.getPluginManager().getPlugin("Backup"), run);
+    }
+
+    /**
+     * Ends the backup: prints the statistics of the run, publishes the
+     * metrics, stores the state for the change check and broadcasts the
+     * finish message by a temporary Runnable, that is running on the main
+     * thread by the sheduler to prevent thread problems.
+     */
+    private void finish() {
+        enableSaving();
+        long now = System.currentTimeMillis();
+        System.out.println("[BACKUP] Compressed the backups in " + formatDuration(now - saveOnTime) + ", the backup took " + formatDuration(now - startTime));
+        if (context.getReadThrottle().isLimited() || context.getWriteThrottle().isLimited())
+            System.out.println("[BACKUP] The disc bandwidth limit delayed the reads for " + formatDuration(context.getReadThrottle().getWaitedMillis()) + " and the writes for " + formatDuration(context.getWriteThrottle().getWaitedMillis()));
+        context.getCodecRules().printStatistics();
+        if (context.getGovernor().getSleptMillis() > 0)
+            System.out.println("[BACKUP] The backup was slowed down for " + formatDuration(context.getGovernor().getSleptMillis()) + " because of the low TPS");
+        metrics.addTransfer(context.getReadThrottle().getBytes(), context.getWriteThrottle().getBytes());
+        endPhase("finish");
+        metrics.publish(pSystem.getStringProperty(STRING_METRICS_FILE));
+        // a failed backup doesn't count, the next one is created even without a change.
+        // The fingerprint is older than the save of the worlds, a change by the save only leads to one more backup.
+        if (fingerprint != null && !failed) {
+            try {
+                ChangeDetector.writeState(new File(pSystem.getStringProperty(STRING_BACKUP_FOLDER), META_FOLDER), fingerprint, startTime);
+            }
+            catch (IOException e) {
+                System.out.println("[BACKUP] Can't store the state of the backup, the next backup is created anyway.");
+                e.printStackTrace(System.out);
+            }
+        }
+        Runnable run = new Runnable() {
+            @Override
+            public void run () {
                 String completedBackupMessage = pSystem.getStringProperty(STRING_FINISH_BACKUP_MESSAGE);
                 if (completedBackupMessage != null && !completedBackupMessage.trim().isEmpty()) {
                     server.broadcastMessage(completedBackupMessage);
@@ -214,4 +752,30 @@ public class BackupTask implements Runnable, PropertyConstants {
         };
         server.getScheduler().scheduleSyncDelayedTask(server.getPluginManager().getPlugin("Backup"), run);
     }
+
+    /**
+     * Starts the measurement of the next phase
+     */
+    private void startPhase () {
+        phaseStart = System.nanoTime();
+        phaseBytes = context.getReadThrottle().getBytes();
+        phaseEvent = BackupEvent.begin(BackupEvent.PHASE);
+    }
+
+    /**
+     * Ends the measurement of the running phase and starts the next one
+     * @param phase The name of the ended phase
+     */
+    private void endPhase (String phase) {
+        metrics.addPhase(phase, phaseStart);
+        phaseEvent.commit(phase, worldsToBackup.toString(), pSystem.getStringProperty(STRING_BACKUP_FOLDER), context.getReadThrottle().getBytes() - phaseBytes);
+        startPhase();
+    }
+
+    /**
+     * @return The duration in seconds with one decimal place
+     */
+    private static String formatDuration (long millis) {
+        return String.format("%d.%d s", millis / 1000, millis % 1000 / 100);
+    }
 }
@@ -0,0 +1,123 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package threading;
+
+import backup.PropertiesSystem;
+import backup.PropertyConstants;
+import io.ChangeDetector;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.bukkit.Server;
+
+/**
+ * This task is running by an asyncronized thread before a scheduled backup,
+ * when SkipUnchangedBackups is enabled. It compares the worlds with the state
+ * of the last backup. When nothing changed, the backup is skipped, otherwise
+ * the PrepareBackupTask is started in the main thread. After
+ * MaximumBackupIntervall minutes without a backup, the backup is created
+ * anyway.
+ * @author Kilian Gaertner
+ * @see ChangeDetector
+ */
+public class ChangeCheckTask implements Runnable, PropertyConstants {
+
+    private final Server server;
+    private final PropertiesSystem pSystem;
+    private final PrepareBackupTask prepareTask;
+    private final List<String> worlds;
+
+    /**
+     * @param server The server where the Task is running on
+     * @param pSystem This must be a loaded PropertiesSystem
+     * @param prepareTask Prepares the backup, when it isn't skipped
+     * @param worlds The names of the worlds, which are backuped
+     */
+    public ChangeCheckTask (Server server, PropertiesSystem pSystem, PrepareBackupTask prepareTask, List<String> worlds) {
+        this.server = server;
+        this.pSystem = pSystem;
+        this.prepareTask = prepareTask;
+        this.worlds = worlds;
+    }
+
+    @Override
+    public void run () {
+        final long fingerprint;
+        try {
+            fingerprint = new ChangeDetector(pSystem.getStringProperty(STRING_CHANGE_CHECK_IGNORE)).fingerprint(getDirs(worlds, pSystem));
+        }
+        catch (IOException e) {
+            System.out.println("[BACKUP] Can't check the worlds for changes, the backup is created anyway.");
+            e.printStackTrace(System.out);
+            startBackup(null);
+            return;
+        }
+        if (!isUnchanged(fingerprint))
+            startBackup(fingerprint);
+    }
+
+    /**
+     * Starts the backup in the main thread
+     * @param fingerprint The fingerprint, which is stored by the backup, null
+     * when it is unknown
+     */
+    private void startBackup (final Long fingerprint) {
+        server.getScheduler().scheduleSyncDelayedTask(server.getPluginManager().getPlugin("Backup"), new Runnable() {
+
+            @Override
+            public void run () {
+                prepareTask.prepareCheckedBackup(fingerprint);
+            }
+        });
+    }
+
+    /**
+     * @param fingerprint The fingerprint of the worlds now
+     * @return true, when the backup is skipped
+     */
+    private boolean isUnchanged (long fingerprint) {
+        File metaDir = new File(pSystem.getStringProperty(STRING_BACKUP_FOLDER), BackupTask.META_FOLDER);
+        long[] state = ChangeDetector.readState(metaDir);
+        if (state == null || fingerprint != state[0])
+            return false;
+        long minutes = (System.currentTimeMillis() - state[1]) / 60000;
+        int maximum = pSystem.getIntProperty(INT_MAX_BACKUP_INTERVALL);
+        if (maximum > 0 && minutes >= maximum) {
+            System.out.println("[BACKUP] Nothing changed since the last backup, but it is " + minutes + " minutes old, so a backup is created anyway.");
+            return false;
+        }
+        System.out.println("[BACKUP] Scheduled backup was skipped, nothing changed since the last backup " + minutes + " minutes ago."
+                + (maximum > 0 ? " A backup is created at the latest in " + (maximum - minutes) + " minutes." : ""));
+        return true;
+    }
+
+    /**
+     * @param worlds The names of the worlds, which are backuped
+     * @return The directories of the worlds and the plugin folder, when it is
+     * backuped, too
+     */
+    private static List<File> getDirs (List<String> worlds, PropertiesSystem pSystem) {
+        List<File> dirs = new ArrayList<File>(worlds.size() + 1);
+        for (String world : worlds)
+            dirs.add(new File(world));
+        if (pSystem.getBooleanProperty(BOOL_BACKUP_PLUGINS))
+            dirs.add(new File("plugins"));
+        return dirs;
+    }
+}
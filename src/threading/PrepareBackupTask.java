@@ -19,8 +19,12 @@ package threading;
 
 import backup.PropertiesSystem;
 import backup.PropertyConstants;
+import io.BackupEvent;
+import io.BackupMetrics;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
 import org.bukkit.Server;
 import org.bukkit.World;
 import org.bukkit.command.ConsoleCommandSender;
@@ -55,16 +59,46 @@ public class PrepareBackupTask implements Runnable, PropertyConstants{
     @Override
     public void run () {
         boolean backupOnlyWithPlayer = pSystem.getBooleanProperty(BOOL_BACKUP_ONLY_PLAYER);
-        if ((backupOnlyWithPlayer && server.getOnlinePlayers().length > 0)
-                || !backupOnlyWithPlayer
-                || isManuelBackup
-                || backupName != null)
+        if (isManuelBackup || backupName != null)
             prepareBackup();
+        else if ((backupOnlyWithPlayer && server.getOnlinePlayers().length > 0)
+                || !backupOnlyWithPlayer) {
+            // the worlds are compared with the last backup in the background
+            if (pSystem.getBooleanProperty(BOOL_SKIP_UNCHANGED))
+                server.getScheduler().scheduleAsyncDelayedTask(server.getPluginManager().getPlugin("Backup"), new ChangeCheckTask(server, pSystem, this, getWorldsToBackup()));
+            else
+                prepareBackup();
+        }
         else
             System.out.println("[BACKUP] Scheduled backup was aborted due to lack of players. Next backup attempt in " + pSystem.getIntProperty(INT_BACKUP_INTERVALL) / 1200 + " minutes.");
     }
 
     protected void prepareBackup() {
+        String name = backupName;
+        boolean manuel = isManuelBackup;
+        backupName = null;
+        isManuelBackup = false;
+        prepareBackup(name, manuel, null);
+    }
+
+    /**
+     * Prepares a scheduled backup after the change check, it doesn't touch
+     * the name or the flag of a manuel backup, which may wait for its run
+     * @param fingerprint The fingerprint of the worlds found by the check,
+     * null when they couldn't be read
+     */
+    void prepareCheckedBackup (Long fingerprint) {
+        prepareBackup(null, false, fingerprint);
+    }
+
+    /**
+     * @param backupName The name of a custom backup, null for a normal one
+     * @param manuel Whether the backup was started by a command
+     * @param fingerprint The fingerprint of the worlds found by the change
+     * check, null when they weren't checked
+     */
+    private void prepareBackup (String backupName, boolean manuel, Long fingerprint) {
+        BackupEvent prepareEvent = BackupEvent.begin(BackupEvent.PREPARE);
 
         // start broadcast informing the players about the backup
         String startBackupMessage = pSystem.getStringProperty(STRING_START_BACKUP_MESSAGE);
@@ -73,13 +107,17 @@ public class PrepareBackupTask implements Runnable, PropertyConstants{
             server.broadcastMessage(startBackupMessage);
         }
 
+        BackupMetrics metrics = new BackupMetrics();
         // a hack like methode to send the console command for disabling every world save
         ConsoleCommandSender ccs = new ConsoleCommandSender(server);
+        long phaseStart = System.nanoTime();
         server.dispatchCommand(ccs, "save-all");
         server.dispatchCommand(ccs, "save-off");
+        long saveOffTime = System.currentTimeMillis();
 
         // the Player Position are getting stored
         server.savePlayers();
+        metrics.addPhase("save-all", phaseStart);
 
         // get the names of the worlds which shall not backuped
         String[] ignoredWorlds = getToIgnoreWorlds();
@@ -92,19 +130,40 @@ public class PrepareBackupTask implements Runnable, PropertyConstants{
                 System.out.println("[BACKUP] Backup compression is disabled.");
 
         // iterate through all worlds and filter the one, that shall get backuped!
-        outer:
+        phaseStart = System.nanoTime();
         for (World world : server.getWorlds()) {
             String worldName = world.getName();
-            for (String ignoredWorldName : ignoredWorlds) {
-                if (ignoredWorldName.equalsIgnoreCase(worldName))
-                    continue outer;
-            }
+            if (isIgnored(worldName, ignoredWorlds))
+                continue;
             worldsToBackup.add(worldName);
+            BackupEvent saveEvent = BackupEvent.begin(BackupEvent.PHASE);
             world.save();
+            saveEvent.commit("world-save", worldName, null, 0);
         }
-        server.getScheduler().scheduleAsyncDelayedTask(server.getPluginManager().getPlugin("Backup"), new BackupTask(pSystem,worldsToBackup,server,backupName));
-        backupName = null;
-        isManuelBackup = false;
+        metrics.addPhase("world-save", phaseStart);
+        prepareEvent.commit(backupName != null ? backupName : "scheduled", worldsToBackup.toString(), null, 0);
+        // a backup started by a command shall be done as fast as possible
+        boolean throttled = !manuel && backupName == null;
+        server.getScheduler().scheduleAsyncDelayedTask(server.getPluginManager().getPlugin("Backup"), new BackupTask(pSystem,worldsToBackup,server,backupName,saveOffTime,throttled,metrics,fingerprint));
+    }
+
+    /**
+     * @return The names of the worlds, which shall get backuped
+     */
+    private List<String> getWorldsToBackup () {
+        String[] ignoredWorlds = pSystem.getStringProperty(STRING_NO_BACKUP_WORLDNAMES).split(";");
+        List<String> worlds = new ArrayList<String>();
+        for (World world : server.getWorlds())
+            if (!isIgnored(world.getName(), ignoredWorlds))
+                worlds.add(world.getName());
+        return worlds;
+    }
+
+    private static boolean isIgnored (String worldName, String[] ignoredWorlds) {
+        for (String ignoredWorldName : ignoredWorlds)
+            if (ignoredWorldName.equalsIgnoreCase(worldName))
+                return true;
+        return false;
     }
 
     private String[] getToIgnoreWorlds () {
@@ -0,0 +1,196 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package threading;
+
+import backup.PropertiesSystem;
+import backup.PropertyConstants;
+import io.BackupCatalog;
+import io.BackupEvent;
+import io.BackupManifest;
+import io.BackupMetrics;
+import io.ChunkRepository;
+import io.NamedThreadFactory;
+import io.Throttle;
+import io.TreeDeleter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This task is running by an asyncronized thread from the sheduler after a
+ * backup is finished. It adds the new backups to the catalog and removes the
+ * old backups, which are no longer kept by MaximumBackups, KeepHourly,
+ * KeepDaily and KeepWeekly. The backups are selected by the catalog, so the
+ * backup folder isn't listed. In the repository mode the oldest snapshots
+ * beyond MaximumBackups and the unused chunks are removed instead.
+ * <p>
+ * The files of the old backups are deleted by PruneThreads threads at the
+ * same time, limited to PruneLimit files per second. Only one PruneTask runs
+ * at the same time, a later one waits for the earlier one.
+ * @author Kilian Gaertner
+ * @see BackupCatalog
+ */
+public class PruneTask implements Runnable, PropertyConstants {
+
+    /** Only one task may read and write the catalog at the same time */
+    private static final Object LOCK = new Object();
+
+    private final PropertiesSystem pSystem;
+    private final List<BackupCatalog.Entry> newBackups;
+    /** The series, which are known when the catalog has to be created */
+    private final List<String> series;
+    private final String summarySeries;
+    /** The metrics of the finished run, null when they aren't recorded */
+    private final BackupMetrics metrics;
+
+    /**
+     * @param newBackups The backups of the finished run
+     * @param series The worlds and directories, which have their own series
+     * @param summarySeries The series name of the summarized backups
+     * @param metrics The metrics of the finished run, which get the prune
+     * phase, may be null
+     */
+    public PruneTask (PropertiesSystem pSystem, List<BackupCatalog.Entry> newBackups, List<String> series, String summarySeries, BackupMetrics metrics) {
+        this.pSystem = pSystem;
+        this.newBackups = newBackups;
+        this.series = series;
+        this.summarySeries = summarySeries;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void run () {
+        synchronized (LOCK) {
+            long start = System.nanoTime();
+            BackupEvent event = BackupEvent.begin(BackupEvent.PHASE);
+            try {
+                // the snapshots of the repository aren't in the catalog
+                if (pSystem.getBooleanProperty(BOOL_REPOSITORY))
+                    pruneRepository();
+                else
+                    prune();
+            }
+            catch (Exception e) {
+                e.printStackTrace(System.out);
+            }
+            event.commit("prune", null, pSystem.getStringProperty(STRING_BACKUP_FOLDER), 0);
+            if (metrics != null) {
+                metrics.addPhase("prune", start);
+                metrics.publish(pSystem.getStringProperty(STRING_METRICS_FILE));
+            }
+        }
+    }
+
+    private void prune () throws IOException {
+        long startTime = System.currentTimeMillis();
+        File backupDir = new File(pSystem.getStringProperty(STRING_BACKUP_FOLDER));
+        File metaDir = new File(backupDir, BackupTask.META_FOLDER);
+        BackupCatalog catalog = readCatalog(backupDir, metaDir);
+        for (BackupCatalog.Entry entry : newBackups)
+            catalog.add(entry);
+        catalog.write(metaDir);
+
+        Set<String> allSeries = new TreeSet<String>();
+        for (BackupCatalog.Entry entry : catalog.getEntries())
+            allSeries.add(entry.getSeries());
+        List<BackupCatalog.Entry> expired = new ArrayList<BackupCatalog.Entry>();
+        for (String name : allSeries)
+            expired.addAll(catalog.selectExpired(name, pSystem.getIntProperty(INT_MAX_BACKUPS), pSystem.getIntProperty(INT_KEEP_HOURLY), pSystem.getIntProperty(INT_KEEP_DAILY), pSystem.getIntProperty(INT_KEEP_WEEKLY)));
+        if (expired.isEmpty())
+            return;
+        System.out.println("[BACKUP] Removing the following backups due to age:");
+        System.out.println(expired);
+
+        int threads = pSystem.getIntProperty(INT_PRUNE_THREADS);
+        ExecutorService workers = Executors.newFixedThreadPool(threads > 0 ? threads : 1, new NamedThreadFactory("Backup-Pruner"));
+        TreeDeleter deleter = new TreeDeleter(workers, new Throttle(pSystem.getIntProperty(INT_PRUNE_LIMIT)));
+        int removed = 0;
+        try {
+            for (BackupCatalog.Entry entry : expired) {
+                File backup = new File(backupDir, entry.getId());
+                try {
+                    // a hard linked file of a snapshot stays in the newer snapshots
+                    if (backup.isDirectory())
+                        deleter.delete(backup);
+                    else if (backup.exists() && !backup.delete())
+                        throw new IOException("Unable to delete file: " + backup);
+                }
+                catch (IOException e) {
+                    System.out.println("[BACKUP] Can't remove the old backup " + entry.getId() + ", it stays in the catalog.");
+                    e.printStackTrace(System.out);
+                    continue;
+                }
+                BackupManifest.getFile(metaDir, entry.getName()).delete();
+                catalog.remove(entry.getId());
+                ++removed;
+            }
+        }
+        finally {
+            workers.shutdownNow();
+            catalog.write(metaDir);
+        }
+        long millis = System.currentTimeMillis() - startTime;
+        System.out.println("[BACKUP] Removed " + removed + " old backups in " + String.format("%d.%d s", millis / 1000, millis % 1000 / 100));
+    }
+
+    /**
+     * Removes the oldest snapshots of the chunk repository and its unused
+     * chunks
+     */
+    private void pruneRepository () throws IOException {
+        long startTime = System.currentTimeMillis();
+        File repositoryDir = new File(pSystem.getStringProperty(STRING_BACKUP_FOLDER), BackupTask.REPOSITORY_FOLDER);
+        int threads = pSystem.getIntProperty(INT_PRUNE_THREADS);
+        ExecutorService workers = Executors.newFixedThreadPool(threads > 0 ? threads : 1, new NamedThreadFactory("Backup-Pruner"));
+        try {
+            new ChunkRepository(repositoryDir).prune(pSystem.getIntProperty(INT_MAX_BACKUPS), workers, new Throttle(pSystem.getIntProperty(INT_PRUNE_LIMIT)));
+        }
+        finally {
+            workers.shutdownNow();
+        }
+        long millis = System.currentTimeMillis() - startTime;
+        System.out.println("[BACKUP] Pruned the repository in " + String.format("%d.%d s", millis / 1000, millis % 1000 / 100));
+    }
+
+    /**
+     * Reads the catalog of the backups. When there is no or a damaged one,
+     * it is created from the backups in the backup folder.
+     */
+    private BackupCatalog readCatalog (File backupDir, File metaDir) {
+        try {
+            BackupCatalog catalog = BackupCatalog.read(metaDir);
+            if (catalog != null)
+                return catalog;
+        }
+        catch (IOException e) {
+            System.out.println("[BACKUP] Can't read the catalog of the backups, it is created again.");
+            e.printStackTrace(System.out);
+        }
+        System.out.println("[BACKUP] Creating the catalog of the backups in " + backupDir);
+        // the custom backups, the manifests and the repository are no normal backups
+        Set<String> ignored = new HashSet<String>(Arrays.asList("custom", BackupTask.META_FOLDER, BackupTask.REPOSITORY_FOLDER));
+        return BackupCatalog.create(backupDir, metaDir, ignored, series, summarySeries);
+    }
+}
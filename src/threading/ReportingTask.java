@@ -0,0 +1,76 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package threading;
+
+import java.util.List;
+import org.bukkit.Server;
+import org.bukkit.command.CommandSender;
+
+/**
+ * A task started by a command, which sends its outcome to the one, who has
+ * started it. The outcome is printed to the console as well.
+ * @author Kilian Gaertner
+ */
+public abstract class ReportingTask implements Runnable {
+
+    /** How many files are listed in a message */
+    private static final int MAX_LISTED = 10;
+
+    protected final Server server;
+    private final CommandSender sender;
+
+    /**
+     * @param sender Gets the outcome, null when it is only printed
+     */
+    protected ReportingTask (Server server, CommandSender sender) {
+        this.server = server;
+        this.sender = sender;
+    }
+
+    /**
+     * Reports the first paths of a list in one message
+     * @param prefix The beginning of the message
+     */
+    protected void list (String prefix, List<String> paths) {
+        if (paths.isEmpty())
+            return;
+        StringBuilder sBuilder = new StringBuilder(prefix);
+        for (int i = 0; i < paths.size() && i < MAX_LISTED; ++i)
+            sBuilder.append(i == 0 ? "" : ", ").append(paths.get(i));
+        if (paths.size() > MAX_LISTED)
+            sBuilder.append(" and ").append(paths.size() - MAX_LISTED).append(" more");
+        report(sBuilder.toString());
+    }
+
+    /**
+     * Prints a message and sends it to the one, who has started the task, by
+     * the main thread
+     */
+    protected void report (final String message) {
+        System.out.println(message);
+        if (sender == null)
+            return;
+        server.getScheduler().scheduleSyncDelayedTask(server.getPluginManager().getPlugin("Backup"), new Runnable() {
+
+            @Override
+            public void run () {
+                sender.sendMessage(message);
+            }
+        });
+    }
+}
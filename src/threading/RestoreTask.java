@@ -0,0 +1,152 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package threading;
+
+import backup.PropertiesSystem;
+import backup.PropertyConstants;
+import io.BackupCatalog;
+import io.BackupManifest;
+import io.BackupRestorer;
+import io.BackupVerifier;
+import io.ChunkRepository;
+import io.FileUtils;
+import io.NamedThreadFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.bukkit.Server;
+import org.bukkit.command.CommandSender;
+
+/**
+ * This task is running by an asyncronized thread from the sheduler, when a
+ * backup is restored by <code>/backup restore NAME [PATH]</code>. The files
+ * are extracted with CopyThreads threads into <code>RestoreDir/NAME</code>,
+ * while the server keeps running. Afterwards only the restored worlds have
+ * to be moved in place while the server is stopped.
+ * @author Kilian Gaertner
+ * @see BackupRestorer
+ */
+public class RestoreTask extends ReportingTask implements PropertyConstants {
+
+    /** The restore folder, when the config has none */
+    private static final String DEFAULT_RESTORE_FOLDER = "restore";
+
+    private final PropertiesSystem pSystem;
+    private final String name;
+    private final String selection;
+
+    /**
+     * @param name The name of the backup, with or without the file extension
+     * @param selection A world, a directory, a file or the name of a player,
+     * null to restore the whole backup
+     * @param sender Gets the outcome
+     */
+    public RestoreTask (Server server, PropertiesSystem pSystem, String name, String selection, CommandSender sender) {
+        super(server, sender);
+        this.pSystem = pSystem;
+        this.name = BackupCatalog.getBackupName(name);
+        this.selection = selection;
+    }
+
+    @Override
+    public void run () {
+        // the name must not lead out of the restore folder, it could be a live world
+        if (!BackupCatalog.isValidName(name)) {
+            report("[BACKUP] The name " + name + " is no valid backup name");
+            return;
+        }
+        File backupDir = new File(pSystem.getStringProperty(STRING_BACKUP_FOLDER));
+        File metaDir = new File(backupDir, BackupTask.META_FOLDER);
+        String restoreDir = pSystem.getStringProperty(STRING_RESTORE_FOLDER);
+        File target = new File(restoreDir != null && !restoreDir.trim().isEmpty() ? restoreDir.trim() : DEFAULT_RESTORE_FOLDER, name);
+        int threads = pSystem.getIntProperty(INT_COPY_THREADS);
+        ExecutorService workers = Executors.newFixedThreadPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors(), new NamedThreadFactory("Backup-Restorer"));
+        try {
+            long startTime = System.currentTimeMillis();
+            BackupRestorer restorer = new BackupRestorer(workers);
+            BackupVerifier.Result result;
+            File backup = BackupCatalog.findBackup(backupDir, name);
+            // the custom backups have their own manifests
+            if (backup == null) {
+                backupDir = new File(backupDir, "custom");
+                metaDir = new File(metaDir, "custom");
+                backup = BackupCatalog.findBackup(backupDir, name);
+            }
+            if (backup != null) {
+                File manifestFile = BackupManifest.getFile(metaDir, name);
+                // a backup of an older version has no manifest, its files are only checked by the CRC32 of a zip archive
+                result = restorer.restore(backup, manifestFile.exists() ? BackupManifest.read(manifestFile) : null, selection, target, getRegionStateDir(metaDir, backup));
+            }
+            else {
+                File repositoryDir = new File(pSystem.getStringProperty(STRING_BACKUP_FOLDER), BackupTask.REPOSITORY_FOLDER);
+                ChunkRepository.Snapshot snapshot = null;
+                ChunkRepository repository = null;
+                if (repositoryDir.isDirectory()) {
+                    repository = new ChunkRepository(repositoryDir);
+                    snapshot = repository.findSnapshot(name);
+                }
+                if (snapshot == null) {
+                    report("[BACKUP] There is no backup " + name);
+                    return;
+                }
+                result = restorer.restore(repository, snapshot, selection, target);
+            }
+            long millis = System.currentTimeMillis() - startTime;
+            if (result.getFiles() == 0 && result.isValid()) {
+                report("[BACKUP] The backup " + name + " has no files" + (selection != null ? " matching " + selection : ""));
+                return;
+            }
+            report("[BACKUP] Restored " + result.getFiles() + " files with " + result.getBytes() / FileUtils.ONE_MB + " MB of the backup " + name + " to " + target + " in " + String.format("%d.%d s", millis / 1000, millis % 1000 / 100));
+            if (result.isValid())
+                return;
+            report("[BACKUP] The restore is incomplete, " + result.getMissing().size() + " files are missing and " + result.getCorrupt().size() + " files are corrupt");
+            list("Missing: ", result.getMissing());
+            list("Corrupt: ", result.getCorrupt());
+        }
+        catch (IOException e) {
+            report("[BACKUP] Can't restore the backup " + name + ": " + e.getMessage());
+            e.printStackTrace(System.out);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * @return The chunk states of the region files of the series of the
+     * backup, null when the series is unknown
+     */
+    private File getRegionStateDir (File metaDir, File backup) {
+        try {
+            BackupCatalog catalog = BackupCatalog.read(metaDir);
+            if (catalog == null)
+                return null;
+            for (BackupCatalog.Entry entry : catalog.getEntries())
+                if (entry.getId().equals(backup.getName()))
+                    return new File(metaDir, entry.getSeries().concat(".regions"));
+        }
+        catch (IOException e) {
+            // without the states the rebuilt region files are only checked by their structure
+        }
+        return null;
+    }
+}
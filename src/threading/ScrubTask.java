@@ -0,0 +1,207 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package threading;
+
+import backup.PropertiesSystem;
+import backup.PropertyConstants;
+import io.BackupCatalog;
+import io.BackupManifest;
+import io.BackupVerifier;
+import io.ChunkRepository;
+import io.FileUtils;
+import io.NamedThreadFactory;
+import io.ScrubState;
+import io.Throttle;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This task is running by an asyncronized thread from the sheduler every
+ * ScrubIntervall minutes. It reads the stored backups again and checks them
+ * against their manifests and the CRC32 of their zip entries, so a broken
+ * backup is found before it is needed. The backups, which were checked
+ * within the last ScrubAge days, are skipped, the others are checked in the
+ * order of their last check. The chunks of the repository are checked
+ * against their SHA-1 hashes like one backup, because a damaged chunk breaks
+ * every snapshot which uses it.
+ * <p>
+ * The scrub reads with threads of the lowest priority and at most
+ * ScrubLimit MB per second. The outcome of every backup is stored in the
+ * scrub state, so a scrub goes on after a restart of the server.
+ * @author Kilian Gaertner
+ * @see BackupVerifier
+ * @see ScrubState
+ */
+public class ScrubTask implements Runnable, PropertyConstants {
+
+    /** How many files are read at the same time */
+    private static final int READERS = 2;
+    private static final long ONE_DAY = 24L * 60 * 60 * 1000;
+
+    /** A scrub, which lasts longer than the intervall, is not started twice */
+    private static final AtomicBoolean running = new AtomicBoolean(false);
+
+    private final PropertiesSystem pSystem;
+
+    public ScrubTask (PropertiesSystem pSystem) {
+        this.pSystem = pSystem;
+    }
+
+    @Override
+    public void run () {
+        if (!running.compareAndSet(false, true))
+            return;
+        Thread thread = Thread.currentThread();
+        int priority = thread.getPriority();
+        thread.setPriority(Thread.MIN_PRIORITY);
+        try {
+            scrub();
+        }
+        catch (InterruptedException e) {
+            thread.interrupt();
+        }
+        catch (Exception e) {
+            e.printStackTrace(System.out);
+        }
+        finally {
+            thread.setPriority(priority);
+            running.set(false);
+        }
+    }
+
+    private void scrub () throws InterruptedException, IOException {
+        File backupDir = new File(pSystem.getStringProperty(STRING_BACKUP_FOLDER));
+        File metaDir = new File(backupDir, BackupTask.META_FOLDER);
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        BackupCatalog catalog = BackupCatalog.read(metaDir);
+        if (catalog != null)
+            for (BackupCatalog.Entry entry : catalog.getEntries())
+                // a failed backup is known to be incomplete
+                if (!entry.isFailed())
+                    candidates.add(new Candidate(entry.getId(), new File(backupDir, entry.getId()), BackupManifest.getFile(metaDir, entry.getName())));
+        File[] customBackups = new File(backupDir, "custom").listFiles();
+        if (customBackups != null)
+            for (File backup : customBackups)
+                candidates.add(new Candidate("custom/".concat(backup.getName()), backup, BackupManifest.getFile(new File(metaDir, "custom"), BackupCatalog.getBackupName(backup.getName()))));
+        // the snapshots of the repository aren't in the catalog
+        File repositoryDir = new File(backupDir, BackupTask.REPOSITORY_FOLDER);
+        if (repositoryDir.isDirectory())
+            candidates.add(new Candidate(BackupTask.REPOSITORY_FOLDER, repositoryDir, null));
+
+        final ScrubState state = ScrubState.read(metaDir);
+        List<String> ids = new ArrayList<String>(candidates.size());
+        for (Candidate candidate : candidates)
+            ids.add(candidate.id);
+        state.retain(ids);
+        // the backups, which weren't checked for the longest time, first
+        Collections.sort(candidates, new Comparator<Candidate>() {
+
+            @Override
+            public int compare (Candidate a, Candidate b) {
+                long checkedA = getChecked(state, a.id);
+                long checkedB = getChecked(state, b.id);
+                return checkedA < checkedB ? -1 : (checkedA > checkedB ? 1 : 0);
+            }
+        });
+
+        long checkedBefore = System.currentTimeMillis() - pSystem.getIntProperty(INT_SCRUB_AGE) * ONE_DAY;
+        ExecutorService readers = Executors.newFixedThreadPool(READERS, new NamedThreadFactory("Backup-Scrubber", Thread.MIN_PRIORITY));
+        Throttle throttle = new Throttle(pSystem.getIntProperty(INT_SCRUB_LIMIT) * FileUtils.ONE_MB);
+        BackupVerifier verifier = new BackupVerifier(readers, throttle);
+        int scrubbed = 0;
+        int broken = 0;
+        long startTime = System.currentTimeMillis();
+        try {
+            for (Candidate candidate : candidates) {
+                if (getChecked(state, candidate.id) > checkedBefore)
+                    break;
+                if (!candidate.backup.exists())
+                    continue;
+                ScrubState.Record record;
+                try {
+                    BackupVerifier.Result result;
+                    if (candidate.manifestFile == null)
+                        result = new ChunkRepository(candidate.backup).scrub(readers, throttle);
+                    else {
+                        BackupManifest manifest = candidate.manifestFile.exists() ? BackupManifest.read(candidate.manifestFile) : null;
+                        result = verifier.verify(candidate.backup, manifest);
+                    }
+                    String detail = "";
+                    if (!result.getMissing().isEmpty())
+                        detail = "missing " + result.getMissing().get(0);
+                    else if (!result.getCorrupt().isEmpty())
+                        detail = "corrupt " + result.getCorrupt().get(0);
+                    record = new ScrubState.Record(System.currentTimeMillis(), result.isValid() ? ScrubState.STATUS_OK : ScrubState.STATUS_BROKEN, result.getFiles(), result.getBytes(), detail);
+                }
+                catch (IOException e) {
+                    record = new ScrubState.Record(System.currentTimeMillis(), ScrubState.STATUS_ERROR, 0, 0, String.valueOf(e.getMessage()));
+                }
+                // the backup was removed because of its age, while it was read
+                if (!candidate.backup.exists())
+                    continue;
+                if (!record.getStatus().equals(ScrubState.STATUS_OK)) {
+                    System.out.println("[BACKUP] The scrub found the broken backup " + candidate.id + ": " + record.getDetail());
+                    ++broken;
+                }
+                state.put(candidate.id, record);
+                state.write(metaDir);
+                ++scrubbed;
+            }
+        }
+        finally {
+            readers.shutdownNow();
+        }
+        if (scrubbed > 0) {
+            long millis = System.currentTimeMillis() - startTime;
+            System.out.println("[BACKUP] Scrubbed " + scrubbed + " backups in " + String.format("%d.%d s", millis / 1000, millis % 1000 / 100) + ", " + broken + " of them are broken");
+        }
+    }
+
+    /**
+     * @return When the backup was checked the last time, 0 when it was
+     * never checked
+     */
+    private static long getChecked (ScrubState state, String id) {
+        ScrubState.Record record = state.get(id);
+        return record == null ? 0 : record.getChecked();
+    }
+
+    /**
+     * A backup, which may be scrubbed
+     */
+    private static class Candidate {
+
+        private final String id;
+        private final File backup;
+        /** null for the chunks of the repository */
+        private final File manifestFile;
+
+        private Candidate (String id, File backup, File manifestFile) {
+            this.id = id;
+            this.backup = backup;
+            this.manifestFile = manifestFile;
+        }
+    }
+}
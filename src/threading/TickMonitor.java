@@ -0,0 +1,80 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package threading;
+
+import io.SpeedGovernor;
+
+/**
+ * This task is running every tick by the sheduler, while a backup is running.
+ * It measures the time between the ticks of the main thread and calculates
+ * the ticks per second (TPS) of the last second. When the TPS drop below the
+ * minimum, the speed of the backup is halved. When the TPS are fine again,
+ * the speed is raised step by step.
+ * @author Kilian Gaertner
+ * @see SpeedGovernor
+ */
+public class TickMonitor implements Runnable {
+
+    /** A healthy server has 20 ticks per second */
+    private static final double MAX_TPS = 20.0;
+    /** After how many ticks the speed is adjusted */
+    private static final int WINDOW = 20;
+    /** The speed is raised by this step when the TPS are fine */
+    private static final double SPEED_STEP = 0.1;
+
+    private final SpeedGovernor governor;
+    private final double minTPS;
+    private long windowStart = 0;
+    private int ticks = 0;
+
+    /**
+     * @param governor The speed of the backup
+     * @param minTPS The TPS the server shall have at least
+     */
+    public TickMonitor (SpeedGovernor governor, double minTPS) {
+        this.governor = governor;
+        this.minTPS = Math.min(minTPS, MAX_TPS);
+    }
+
+    @Override
+    public void run () {
+        long now = System.nanoTime();
+        // the first tick only starts the window
+        if (windowStart == 0) {
+            windowStart = now;
+            return;
+        }
+        if (++ticks < WINDOW)
+            return;
+        double tps = Math.min(MAX_TPS, ticks * 1000000000.0 / (now - windowStart));
+        ticks = 0;
+        windowStart = now;
+
+        double speed = governor.getSpeed();
+        if (tps < minTPS && speed > SpeedGovernor.MIN_SPEED) {
+            governor.setSpeed(speed / 2);
+            System.out.println(String.format("[BACKUP] The server has %.1f TPS, the backup is slowed down to %d %%", tps, Math.round(governor.getSpeed() * 100)));
+        }
+        // a small margin, otherwise the speed would swing around the minimum
+        else if (tps >= Math.min(minTPS + 1, MAX_TPS - 0.5) && speed < 1.0) {
+            governor.setSpeed(speed + SPEED_STEP);
+            if (governor.getSpeed() >= 1.0)
+                System.out.println(String.format("[BACKUP] The server has %.1f TPS, the backup runs with full speed again", tps));
+        }
+    }
+}
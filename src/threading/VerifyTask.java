@@ -0,0 +1,123 @@
+/*
+ *  Copyright (C) 2011 Kilian Gaertner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package threading;
+
+import backup.PropertiesSystem;
+import backup.PropertyConstants;
+import io.BackupCatalog;
+import io.BackupManifest;
+import io.BackupVerifier;
+import io.ChunkRepository;
+import io.FileUtils;
+import io.NamedThreadFactory;
+import io.Throttle;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.bukkit.Server;
+import org.bukkit.command.CommandSender;
+
+/**
+ * This task is running by an asyncronized thread from the sheduler, when a
+ * backup is verified by <code>/backup verify NAME</code>. It reads every
+ * file of the backup with CopyThreads threads and compares it with the
+ * manifest of the backup. A snapshot of the repository is checked against
+ * the hashes of its chunks and files. The outcome is sent to the one, who
+ * has started the verification.
+ * @author Kilian Gaertner
+ * @see BackupVerifier
+ */
+public class VerifyTask extends ReportingTask implements PropertyConstants {
+
+    private final PropertiesSystem pSystem;
+    private final String name;
+
+    /**
+     * @param name The name of the backup, with or without the file extension
+     * @param sender Gets the outcome
+     */
+    public VerifyTask (Server server, PropertiesSystem pSystem, String name, CommandSender sender) {
+        super(server, sender);
+        this.pSystem = pSystem;
+        this.name = BackupCatalog.getBackupName(name);
+    }
+
+    @Override
+    public void run () {
+        if (!BackupCatalog.isValidName(name)) {
+            report("[BACKUP] The name " + name + " is no valid backup name");
+            return;
+        }
+        File backupDir = new File(pSystem.getStringProperty(STRING_BACKUP_FOLDER));
+        File metaDir = new File(backupDir, BackupTask.META_FOLDER);
+        File backup = BackupCatalog.findBackup(backupDir, name);
+        // the custom backups have their own manifests
+        if (backup == null) {
+            backupDir = new File(backupDir, "custom");
+            metaDir = new File(metaDir, "custom");
+            backup = BackupCatalog.findBackup(backupDir, name);
+        }
+        File manifestFile = BackupManifest.getFile(metaDir, name);
+        if (backup != null && !manifestFile.exists()) {
+            report("[BACKUP] The backup " + name + " has no manifest, it was created by an older version");
+            return;
+        }
+        int threads = pSystem.getIntProperty(INT_COPY_THREADS);
+        ExecutorService readers = Executors.newFixedThreadPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors(), new NamedThreadFactory("Backup-Verifier"));
+        try {
+            long startTime = System.currentTimeMillis();
+            BackupVerifier verifier = new BackupVerifier(readers, new Throttle(0));
+            BackupVerifier.Result result;
+            if (backup != null)
+                result = verifier.verify(backup, BackupManifest.read(manifestFile));
+            else {
+                File repositoryDir = new File(pSystem.getStringProperty(STRING_BACKUP_FOLDER), BackupTask.REPOSITORY_FOLDER);
+                ChunkRepository.Snapshot snapshot = null;
+                ChunkRepository repository = null;
+                if (repositoryDir.isDirectory()) {
+                    repository = new ChunkRepository(repositoryDir);
+                    snapshot = repository.findSnapshot(name);
+                }
+                if (snapshot == null) {
+                    report("[BACKUP] There is no backup " + name);
+                    return;
+                }
+                result = verifier.verify(repository, snapshot);
+            }
+            long millis = System.currentTimeMillis() - startTime;
+            if (result.isValid()) {
+                report("[BACKUP] The backup " + name + " is fine, checked " + result.getFiles() + " files with " + result.getBytes() / FileUtils.ONE_MB + " MB in " + String.format("%d.%d s", millis / 1000, millis % 1000 / 100));
+                return;
+            }
+            report("[BACKUP] The backup " + name + " is broken, " + result.getMissing().size() + " files are missing and " + result.getCorrupt().size() + " files are corrupt");
+            list("Missing: ", result.getMissing());
+            list("Corrupt: ", result.getCorrupt());
+        }
+        catch (IOException e) {
+            report("[BACKUP] Can't verify the backup " + name + ": " + e.getMessage());
+            e.printStackTrace(System.out);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            readers.shutdownNow();
+        }
+    }
+}